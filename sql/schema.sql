@@ -0,0 +1,17 @@
+-- Tables the server and client expect in the tongchat database. Run once after creating it:
+--   mysql -u root -p tongchat < sql/schema.sql
+
+-- Every chat message, written in batches by the server's database writer (MessageDAO)
+CREATE TABLE IF NOT EXISTS messages (
+    message_id BIGINT AUTO_INCREMENT PRIMARY KEY,
+    room_key VARCHAR(191) NOT NULL,
+    sender_name VARCHAR(64),
+    message_content TEXT NOT NULL,
+    sent_at DATETIME(3) NOT NULL,
+    INDEX idx_messages_room (room_key, message_id)
+) CHARACTER SET utf8mb4;
+
+-- Random identifiers are drawn by each client (RandomIdAllocator) and only this index stops two
+-- of them handing out the same one; clients refuse to allocate identifiers without it. Kept last
+-- because running the script again stops here with "Duplicate key name", which is harmless.
+ALTER TABLE users ADD UNIQUE INDEX uk_users_random_identifier (random_identifier);
@@ -1,76 +1,137 @@
 package client;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.Socket;
-import java.util.ArrayList;
+import java.util.List;
 
-public class ClientHandler implements Runnable {
-    public static ArrayList<ClientHandler> clientHandlers = new ArrayList<>();
+import server.ClusterBus;
+import server.IdleWatch;
+import server.JoinRequest;
+import server.RoomShard;
+import server.SessionRegistry;
+
+public class ClientHandler implements Runnable, RoomMember {
+    private static final String FORUM_ROOM = "forum";
+    private static final RoomShard shard = RoomShard.forRoom(FORUM_ROOM);
     private Socket socket;
-    private BufferedReader bufferedReader;
+    private MessageReader messageReader;
     private BufferedWriter bufferedWriter;
     private String clientUsername;
+    private OutboundQueue outbound;
+    private IdleWatch idleWatch;
+    private String sessionToken;
 
-    public ClientHandler(Socket socket) {
-        try {
-            this.socket = socket;
-            this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            this.bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.clientUsername = bufferedReader.readLine();
-            clientHandlers.add(this);
-            broadcastMessage("SERVER: " + clientUsername + " has entered the chat!");
-        } catch (IOException e) {
-            closeEverything(socket, bufferedReader, bufferedWriter);
+    // The router has already negotiated the protocol and read the username (and any RESUME or HISTORY line) from messageReader
+    public ClientHandler(Socket socket, MessageReader messageReader, BufferedWriter bufferedWriter, String clientUsername, JoinRequest request) {
+        this.socket = socket;
+        this.bufferedWriter = bufferedWriter;
+        this.messageReader = messageReader;
+        this.clientUsername = clientUsername;
+        this.outbound = new OutboundQueue(socket, bufferedWriter, messageReader.isFramed(), messageReader.getCompressor(), this::closeSocket, this::closeSocket);
+        if (messageReader.isFramed()) {
+            idleWatch = IdleWatch.start(messageReader::getLastReadNanos, outbound::ping, this::closeSocket);
+            sessionToken = SessionRegistry.open(FORUM_ROOM, clientUsername);
         }
+        shard.execute(FORUM_ROOM, () -> {
+            shard.join(FORUM_ROOM, this);
+            SessionRegistry.attach(shard, FORUM_ROOM, this, sessionToken, request);
+        });
+        broadcastNotice(clientUsername + " has entered the chat!");
     }
 
     @Override
     public void run() {
         String messageFromClient;
 
-        while (socket.isConnected()) {
+        // A closed socket or end of stream ends the loop; readMessage returns null at end of stream
+        while (!socket.isClosed()) {
             try {
-                messageFromClient = bufferedReader.readLine();
+                messageFromClient = messageReader.readMessage();
+                if (messageFromClient == null) {
+                    closeEverything(socket, messageReader, bufferedWriter);
+                    break;
+                }
                 broadcastMessage(messageFromClient);
             } catch (IOException e) {
-                closeEverything(socket, bufferedReader, bufferedWriter);
+                closeEverything(socket, messageReader, bufferedWriter);
                 break;
             }
         }
     }
 
     public void broadcastMessage(String messageToSend) {
-        for (ClientHandler clientHandler : clientHandlers) {
-            try {
-                if (clientHandler.clientUsername != clientUsername) {
-                    clientHandler.bufferedWriter.write(messageToSend);
-                    clientHandler.bufferedWriter.newLine();
-                    clientHandler.bufferedWriter.flush();
-                }
-            } catch (IOException e) {
-                clientHandler.closeEverything(clientHandler.socket, clientHandler.bufferedReader, clientHandler.bufferedWriter);
-            }
-        }
+        broadcast(FrameCodec.TYPE_TEXT, messageToSend);
+    }
+
+    private void broadcastNotice(String notice) {
+        broadcast(FrameCodec.TYPE_SYSTEM, notice);
+    }
+
+    // Encoded here, fanned out and relayed to the cluster on the forum's shard, in the order it broadcasts them
+    private void broadcast(byte type, String text) {
+        EncodedMessage message = EncodedMessage.of(type, FrameCodec.FORUM_ROOM_ID, text);
+        shard.execute(FORUM_ROOM, () -> {
+            shard.broadcast(FORUM_ROOM, message, member -> !member.getClientUsername().equals(clientUsername));
+            ClusterBus.publish(type, text);
+        });
     }
 
     public void removeClientHandler() {
-        clientHandlers.remove(this);
-        broadcastMessage("SERVER: " + clientUsername + " has left the chat!");
+        shard.execute(FORUM_ROOM, () -> {
+            if (shard.leave(FORUM_ROOM, this)) {
+                broadcastNotice(clientUsername + " has left the chat!");
+            }
+        });
+    }
+
+    @Override
+    public String getClientUsername() {
+        return clientUsername;
     }
 
-    public void closeEverything(Socket socket, BufferedReader br, BufferedWriter bw) {
+    @Override
+    public void deliver(EncodedMessage message) {
+        outbound.offer(message);
+    }
+
+    @Override
+    public void deliverAll(List<EncodedMessage> messages) {
+        outbound.offerAll(messages);
+    }
+
+    @Override
+    public void disconnect() {
+        closeSocket();
+    }
+
+    // Called from a drain or a broadcasting thread; the reader notices and cleans up
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void closeEverything(Socket socket, MessageReader reader, BufferedWriter bw) {
         removeClientHandler();
+        if (idleWatch != null) {
+            idleWatch.stop();
+        }
+        if (sessionToken != null) {
+            SessionRegistry.detach(sessionToken);
+        }
 
         try {
-            if (br != null) {
-                br.close();
+            if (reader != null) {
+                reader.close();
             }
 
-            if (bw != null) {
+            // The queue closes bw, after its last write if one is in progress
+            if (outbound != null) {
+                outbound.close();
+            } else if (bw != null) {
                 bw.close();
             }
 
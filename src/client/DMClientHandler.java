@@ -1,97 +1,136 @@
 package client;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
-public class DMClientHandler implements Runnable {
-    private static Map<String, ArrayList<DMClientHandler>> dmClientHandlers = new HashMap<>();
+import server.DMServer;
+import server.IdleWatch;
+import server.JoinRequest;
+import server.RoomDirectory;
+import server.RoomShard;
+import server.SessionRegistry;
+
+public class DMClientHandler implements Runnable, RoomMember {
     private Socket socket;
-    private BufferedReader bufferedReader;
+    private MessageReader messageReader;
     private BufferedWriter bufferedWriter;
     private String clientUsername;
+    private OutboundQueue outbound;
+    private IdleWatch idleWatch;
+    private String sessionToken;
     private String dmKey;
-
-    public DMClientHandler(Socket socket, String dmKey) {
-        try {
-            this.socket = socket;
-            this.dmKey = dmKey;
-            this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            this.bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.clientUsername = bufferedReader.readLine();
-
-            // Add to DM-specific client list
-            dmClientHandlers.computeIfAbsent(dmKey, _ -> new ArrayList<>()).add(this);
-
-            System.out.println("DM Client " + clientUsername + " joined DM: " + dmKey);
-            broadcastToDM("SERVER: " + clientUsername + " has joined the DM!");
-        } catch (IOException e) {
-            closeEverything(socket, bufferedReader, bufferedWriter);
+    private String roomKey;
+    private RoomShard shard;
+    private int roomId;
+
+    // Reader and writer come from ConnectionRouter, which has already read the JOIN line and the username
+    public DMClientHandler(Socket socket, MessageReader messageReader, BufferedWriter bufferedWriter, String clientUsername, String dmKey, JoinRequest request) {
+        this.socket = socket;
+        this.dmKey = dmKey;
+        this.roomKey = "dm:" + dmKey;
+        this.shard = RoomShard.forRoom(roomKey);
+        this.roomId = RoomDirectory.getRoomId(dmKey);
+        this.bufferedWriter = bufferedWriter;
+        this.messageReader = messageReader;
+        this.clientUsername = clientUsername;
+
+        this.outbound = new OutboundQueue(socket, bufferedWriter, messageReader.isFramed(), messageReader.getCompressor(), this::closeSocket, this::closeSocket);
+        if (messageReader.isFramed()) {
+            idleWatch = IdleWatch.start(messageReader::getLastReadNanos, outbound::ping, this::closeSocket);
+            sessionToken = SessionRegistry.open(roomKey, clientUsername);
         }
+
+        // Join the DM on its shard; directory presence is updated from there
+        shard.execute(roomKey, () -> {
+            shard.join(roomKey, this);
+            // Again, in case the room emptied and was unregistered after this client was routed to it
+            RoomDirectory.register(RoomInfo.TYPE_DM, dmKey, dmKey);
+            RoomDirectory.memberJoined(dmKey);
+            SessionRegistry.attach(shard, roomKey, this, sessionToken, request);
+        });
+
+        System.out.println("DM Client " + clientUsername + " joined DM: " + dmKey);
+        broadcastNotice(clientUsername + " has joined the DM!");
     }
 
     @Override
     public void run() {
         String messageFromClient;
 
-        while (socket.isConnected()) {
+        // A closed socket or end of stream ends the loop; readMessage returns null at end of stream
+        while (!socket.isClosed()) {
             try {
-                messageFromClient = bufferedReader.readLine();
-                if (messageFromClient != null) {
-                    broadcastToDM(messageFromClient);
+                messageFromClient = messageReader.readMessage();
+                if (messageFromClient == null) {
+                    closeEverything(socket, messageReader, bufferedWriter);
+                    break;
                 }
+                RoomDirectory.touch(dmKey);
+                broadcastToDM(messageFromClient);
             } catch (IOException e) {
-                closeEverything(socket, bufferedReader, bufferedWriter);
+                closeEverything(socket, messageReader, bufferedWriter);
                 break;
             }
         }
     }
 
     public void broadcastToDM(String messageToSend) {
-        ArrayList<DMClientHandler> dmClients = dmClientHandlers.get(dmKey);
-        if (dmClients != null) {
-            for (DMClientHandler clientHandler : dmClients) {
-                try {
-                    if (!clientHandler.clientUsername.equals(clientUsername)) {
-                        clientHandler.bufferedWriter.write(messageToSend);
-                        clientHandler.bufferedWriter.newLine();
-                        clientHandler.bufferedWriter.flush();
-                    }
-                } catch (IOException e) {
-                    clientHandler.closeEverything(clientHandler.socket, clientHandler.bufferedReader, clientHandler.bufferedWriter);
-                }
-            }
-        }
+        broadcast(EncodedMessage.of(FrameCodec.TYPE_TEXT, roomId, messageToSend));
+    }
+
+    private void broadcastNotice(String notice) {
+        broadcast(EncodedMessage.of(FrameCodec.TYPE_SYSTEM, roomId, notice));
+    }
+
+    // Encoded here, fanned out on the room's shard
+    private void broadcast(EncodedMessage message) {
+        shard.execute(roomKey, () -> shard.broadcast(roomKey, message, member -> !member.getClientUsername().equals(clientUsername)));
     }
 
     public void removeClientHandler() {
-        ArrayList<DMClientHandler> dmClients = dmClientHandlers.get(dmKey);
-        if (dmClients != null) {
-            dmClients.remove(this);
-            broadcastToDM("SERVER: " + clientUsername + " has left the DM!");
-
-            // If no more clients, remove the DM entry
-            if (dmClients.isEmpty()) {
-                dmClientHandlers.remove(dmKey);
+        shard.execute(roomKey, () -> {
+            if (!shard.leave(roomKey, this)) {
+                return;
             }
+            RoomDirectory.memberLeft(dmKey);
+            if (shard.hasMembers(roomKey)) {
+                // Already on the shard, so the notice goes out before anything queued behind this task
+                shard.broadcast(roomKey, EncodedMessage.of(FrameCodec.TYPE_SYSTEM, roomId, clientUsername + " has left the DM!"), member -> !member.getClientUsername().equals(clientUsername));
+            } else {
+                DMServer.closeEmptyRoom(dmKey);
+            }
+        });
+    }
+
+    // Called from a drain or a broadcasting thread; the reader notices and cleans up
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
-    public void closeEverything(Socket socket, BufferedReader br, BufferedWriter bw) {
+    public void closeEverything(Socket socket, MessageReader reader, BufferedWriter bw) {
         removeClientHandler();
+        if (idleWatch != null) {
+            idleWatch.stop();
+        }
+        if (sessionToken != null) {
+            SessionRegistry.detach(sessionToken);
+        }
 
         try {
-            if (br != null) {
-                br.close();
+            if (reader != null) {
+                reader.close();
             }
 
-            if (bw != null) {
+            // The queue closes bw, after its last write if one is in progress
+            if (outbound != null) {
+                outbound.close();
+            } else if (bw != null) {
                 bw.close();
             }
 
@@ -103,6 +142,22 @@ public class DMClientHandler implements Runnable {
         }
     }
 
+    @Override
+    public void deliver(EncodedMessage message) {
+        outbound.offer(message);
+    }
+
+    @Override
+    public void deliverAll(List<EncodedMessage> messages) {
+        outbound.offerAll(messages);
+    }
+
+    @Override
+    public void disconnect() {
+        closeSocket();
+    }
+
+    @Override
     public String getClientUsername() {
         return clientUsername;
     }
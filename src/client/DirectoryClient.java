@@ -0,0 +1,128 @@
+package client;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Resolves rooms through the server's room directory and searches and pages through chat
+ * history, one short request per call. The Async variants are for the JavaFX thread: the request
+ * runs on a directory thread and the future completes with its result, or exceptionally with the
+ * IOException, for the caller to apply in one Platform.runLater.
+ */
+public class DirectoryClient {
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final int READ_TIMEOUT_MS = 5000;
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "tong-directory");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public static RoomInfo lookup(String host, int port, String roomKey) throws IOException {
+        List<String> response = request(host, port, "DIRECTORY LOOKUP " + roomKey);
+        return response.isEmpty() ? null : RoomInfo.parse(response.get(0));
+    }
+
+    public static List<RoomInfo> listGroupChats(String host, int port, int page, int pageSize) throws IOException {
+        List<RoomInfo> rooms = new ArrayList<>();
+        for (String line : request(host, port, "DIRECTORY LIST " + RoomInfo.TYPE_GC + " " + page + " " + pageSize)) {
+            RoomInfo info = RoomInfo.parse(line);
+            if (info != null) {
+                rooms.add(info);
+            }
+        }
+        return rooms;
+    }
+
+    public static CompletableFuture<RoomInfo> lookupAsync(String host, int port, String roomKey) {
+        return async(() -> lookup(host, port, roomKey));
+    }
+
+    public static CompletableFuture<List<RoomInfo>> listGroupChatsAsync(String host, int port, int page, int pageSize) {
+        return async(() -> listGroupChats(host, port, page, pageSize));
+    }
+
+    // Searches the rooms of the given sessions (ForumClient.getSessionToken() of each open room);
+    // hits come back best first, and none at all if any session is not the caller's current one
+    public static List<SearchHit> search(String host, int port, List<String> sessionTokens, String query, int limit) throws IOException {
+        List<SearchHit> hits = new ArrayList<>();
+        String requestLine = "SEARCH " + String.join(",", sessionTokens) + " " + limit + " " + query.replaceAll("\\s+", " ").trim();
+        for (String line : request(host, port, requestLine)) {
+            SearchHit hit = SearchHit.parse(line);
+            if (hit != null) {
+                hits.add(hit);
+            }
+        }
+        return hits;
+    }
+
+    // One page of the history of the session's room (ForumClient.getSessionToken()) next to cursor,
+    // null for the newest or, with older false, the oldest page; since, until and sender narrow it
+    // down when not null. Cursors are only good for the room and server run that issued them.
+    public static HistoryPage fetchHistory(String host, int port, String sessionToken, int limit, boolean older, String cursor,
+                                           Long since, Long until, String sender) throws IOException {
+        StringBuilder requestLine = new StringBuilder("FETCH ").append(sessionToken).append(' ').append(limit)
+                .append(older ? " BEFORE " : " AFTER ").append(cursor == null ? "-" : cursor);
+        if (since != null) {
+            requestLine.append(" SINCE ").append(since);
+        }
+        if (until != null) {
+            requestLine.append(" UNTIL ").append(until);
+        }
+        if (sender != null && !sender.isBlank()) {
+            requestLine.append(" FROM ").append(sender.replaceAll("\\s+", " ").trim());
+        }
+        return HistoryPage.parse(request(host, port, requestLine.toString()));
+    }
+
+    private static <T> CompletableFuture<T> async(Callable<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            try {
+                future.complete(call.call());
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private static List<String> request(String host, int port, String requestLine) throws IOException {
+        List<String> lines = new ArrayList<>();
+
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+
+            BufferedWriter bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            bufferedWriter.write(requestLine);
+            bufferedWriter.newLine();
+            bufferedWriter.flush();
+
+            String line;
+            while ((line = bufferedReader.readLine()) != null) {
+                lines.add(line);
+                if (line.startsWith("END ") || line.startsWith("NOT_FOUND ") || line.startsWith("ERROR ")) {
+                    break;
+                }
+                if (requestLine.startsWith("DIRECTORY LOOKUP ")) {
+                    break;
+                }
+            }
+        }
+        return lines;
+    }
+}
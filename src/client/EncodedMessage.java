@@ -0,0 +1,120 @@
+package client;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import server.ServerStats;
+
+/**
+ * One outbound message, UTF-8 encoded once and shared by every recipient of a broadcast.
+ * The body is immutable and written through read-only duplicates, so nothing is copied per recipient:
+ * text-protocol connections get the body plus a shared newline (and "SERVER: " for system notices),
+ * framed connections get a FrameCodec header built once per message plus the same body.
+ * Room broadcasts are given their room sequence number by the room's shard before fan-out,
+ * so the header carries it for every recipient and for later replays.
+ * The creator holds the first reference and every queue holding the message retains one more;
+ * the payload is dropped when the last reference is released.
+ */
+public class EncodedMessage {
+    private static final ByteBuffer NEWLINE = ByteBuffer.wrap(new byte[] { '\n' }).asReadOnlyBuffer();
+    private static final ByteBuffer SYSTEM_PREFIX = ByteBuffer.wrap(FrameCodec.SYSTEM_PREFIX.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+
+    private final byte type;
+    private final int roomId;
+    private final String text;
+    private final boolean lineOnly;
+    private final int bodyLength;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+    private volatile long sequence;
+    private volatile ByteBuffer body;
+    private volatile ByteBuffer frameHeader;
+
+    private EncodedMessage(byte type, int roomId, String text, boolean lineOnly) {
+        this.type = type;
+        this.roomId = roomId;
+        this.text = text;
+        this.lineOnly = lineOnly;
+        this.body = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)).asReadOnlyBuffer();
+        this.bodyLength = body.remaining();
+        ServerStats.messageEncoded(bodyLength);
+    }
+
+    public static EncodedMessage of(byte type, int roomId, String text) {
+        return new EncodedMessage(type, roomId, text, false);
+    }
+
+    // Sent as a text line even on framed connections, e.g. the negotiation reply itself
+    public static EncodedMessage ofLine(String text) {
+        return new EncodedMessage(FrameCodec.TYPE_CONTROL, FrameCodec.FORUM_ROOM_ID, text, true);
+    }
+
+    // Set once, on the room's shard, before any recipient sees the message
+    public void assignSequence(long sequence) {
+        if (this.sequence != 0 || frameHeader != null) {
+            throw new IllegalStateException("EncodedMessage already sequenced or sent");
+        }
+        this.sequence = sequence;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public EncodedMessage retain() {
+        if (refCount.getAndUpdate(count -> count > 0 ? count + 1 : count) <= 0) {
+            throw new IllegalStateException("EncodedMessage already released");
+        }
+        return this;
+    }
+
+    public void release() {
+        int remaining = refCount.decrementAndGet();
+        if (remaining == 0) {
+            body = null;
+            frameHeader = null;
+        } else if (remaining < 0) {
+            throw new IllegalStateException("EncodedMessage released too often");
+        }
+    }
+
+    // Fresh read-only views of the message in the connection's protocol, ready for a gathering write
+    public ByteBuffer[] buffers(boolean framed) {
+        ByteBuffer currentBody = body;
+        if (currentBody == null) {
+            throw new IllegalStateException("EncodedMessage already released");
+        }
+
+        if (framed && !lineOnly) {
+            ByteBuffer header = frameHeader;
+            if (header == null) {
+                header = FrameCodec.encodeHeader(type, roomId, sequence, bodyLength).asReadOnlyBuffer();
+                frameHeader = header;
+            }
+            return new ByteBuffer[] { header.duplicate(), currentBody.duplicate() };
+        }
+        if (type == FrameCodec.TYPE_SYSTEM) {
+            return new ByteBuffer[] { SYSTEM_PREFIX.duplicate(), currentBody.duplicate(), NEWLINE.duplicate() };
+        }
+        return new ByteBuffer[] { currentBody.duplicate(), NEWLINE.duplicate() };
+    }
+
+    public int length(boolean framed) {
+        if (framed && !lineOnly) {
+            return FrameCodec.HEADER_SIZE + (sequence > 0 ? FrameCodec.SEQUENCE_SIZE : 0) + bodyLength;
+        }
+        return (type == FrameCodec.TYPE_SYSTEM ? SYSTEM_PREFIX.remaining() : 0) + bodyLength + 1;
+    }
+
+    public boolean isLineOnly() {
+        return lineOnly;
+    }
+
+    public byte getType() {
+        return type;
+    }
+
+    public String getText() {
+        return text;
+    }
+}
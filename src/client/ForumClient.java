@@ -1,35 +1,155 @@
 package client;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
 import javafx.application.Platform;
 
 public class ForumClient {
-    private Socket socket;
-    private BufferedReader bufferedReader;
-    private BufferedWriter bufferedWriter;
+    private static final int NEGOTIATION_TIMEOUT_MS = 5000;
+    private static final int RECONNECT_ATTEMPTS = 5;
+    private static final int RECONNECT_DELAY_MS = 1000;
+
+    // Replaced when the connection is reopened after a network drop
+    private volatile Socket socket;
+    private volatile BufferedReader bufferedReader;
+    private volatile BufferedWriter bufferedWriter;
+    private volatile DataInputStream frameInput;
+    private volatile OutputStream frameOutput;
     private String username;
+    private String joinLine;
+    private int historyLimit;
+    private SocketAddress serverAddress;
     private ForumMessageListener messageListener;
+    private volatile String sessionToken;
+    private volatile long lastSequence;
+    private volatile boolean closed;
+    // Set once the server ignored the negotiation request; later connections speak text at once
+    private volatile boolean textOnly;
+    // Lines sent before the listener thread has opened the connection, sent once it has
+    private final List<String> unsent = new ArrayList<>();
+    private boolean opened;
 
     public interface ForumMessageListener {
         void onMessageReceived(String message);
         void onConnectionStatusChanged(boolean connected);
+
+        // Join/leave announcements and other server notices; shown like a normal line unless overridden
+        default void onSystemMessage(String message) {
+            onMessageReceived(FrameCodec.SYSTEM_PREFIX + message);
+        }
+
+        // Reconnected too late for the server to replay everything after afterSequence
+        default void onMessagesMissed(long afterSequence, long latestSequence) {
+        }
+    }
+
+    // Nothing is sent or read until listenForMessage(), whose thread negotiates the wire protocol,
+    // then sends joinLine (null for the forum) and the username; failure reaches the listener
+    public ForumClient(Socket socket, String username, String joinLine) {
+        this(socket, username, joinLine, -1);
+    }
+
+    // historyLimit caps the recent messages the server backfills on joining: 0 when the chat's
+    // history is already on screen, -1 for the server's default
+    public ForumClient(Socket socket, String username, String joinLine, int historyLimit) {
+        this.username = username;
+        this.joinLine = joinLine;
+        this.historyLimit = historyLimit;
+        this.serverAddress = socket.getRemoteSocketAddress();
+        this.socket = socket;
+    }
+
+    // A reopened framed connection first asks to resume, so the server replays what was missed
+    private void open(Socket socket) throws IOException {
+        this.socket = socket;
+        this.bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+        this.frameInput = null;
+        this.frameOutput = null;
+
+        if (!textOnly) {
+            negotiateProtocol();
+        }
+        if (frameOutput != null && sessionToken != null) {
+            send(FrameCodec.TYPE_CONTROL, FrameCodec.RESUME_PREFIX + sessionToken + " " + lastSequence);
+        } else if (frameOutput != null && historyLimit >= 0) {
+            send(FrameCodec.TYPE_CONTROL, FrameCodec.HISTORY_PREFIX + historyLimit);
+        }
+        if (joinLine != null) {
+            send(FrameCodec.TYPE_CONTROL, joinLine);
+        }
+        send(FrameCodec.TYPE_CONTROL, username);
+
+        synchronized (unsent) {
+            for (String message : unsent) {
+                send(FrameCodec.TYPE_TEXT, message);
+            }
+            unsent.clear();
+            opened = true;
+        }
     }
 
-    public ForumClient(Socket socket, String username) {
+    // Asks for compressed binary frames and falls back to plain frames or text lines, whichever the server accepts
+    private void negotiateProtocol() throws IOException {
+        bufferedWriter.write(FrameCodec.NEGOTIATE_REQUEST + " " + FrameCodec.OPTION_DEFLATE);
+        bufferedWriter.newLine();
+        bufferedWriter.flush();
+
+        socket.setSoTimeout(NEGOTIATION_TIMEOUT_MS);
+        String reply;
         try {
-            this.socket = socket;
-            this.bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            this.username = username;
-        } catch (IOException e) {
-            closeEverything(socket, bufferedReader, bufferedWriter);
+            reply = bufferedReader.readLine();
+        } catch (SocketTimeoutException e) {
+            // A text-only server took the request for a username; start over on a new text connection
+            System.out.println("ForumClient.java : no protocol reply, falling back to text");
+            textOnly = true;
+            socket.close();
+            Socket reopened = new Socket();
+            reopened.connect(serverAddress, NEGOTIATION_TIMEOUT_MS);
+            this.socket = reopened;
+            this.bufferedReader = new BufferedReader(new InputStreamReader(reopened.getInputStream()));
+            this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(reopened.getOutputStream()));
+            return;
         }
+        socket.setSoTimeout(0);
+
+        if (reply != null && reply.startsWith(FrameCodec.NEGOTIATE_ACCEPT)) {
+            if (FrameCodec.hasOption(reply, FrameCodec.OPTION_DEFLATE)) {
+                // Sync-flushed zlib streams, the counterpart of the server's StreamCompressor
+                frameInput = new DataInputStream(new BufferedInputStream(new InflaterInputStream(socket.getInputStream())));
+                frameOutput = new DeflaterOutputStream(socket.getOutputStream(), true);
+            } else {
+                frameInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                frameOutput = new BufferedOutputStream(socket.getOutputStream());
+            }
+        } else if (reply == null) {
+            throw new IOException("Connection closed during protocol negotiation");
+        }
+    }
+
+    // The server's token for this connection, which also authorizes searching and paging the
+    // room's history; null until the server has sent it, and always for a text connection
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    public boolean isFramed() {
+        return frameInput != null;
     }
 
     public void setMessageListener(ForumMessageListener listener) {
@@ -37,39 +157,180 @@ public class ForumClient {
     }
 
     public void sendMessage(String messageToSend) {
+        String message = username + ": " + messageToSend;
+        synchronized (unsent) {
+            if (!opened) {
+                unsent.add(message);
+                return;
+            }
+        }
         try {
-            bufferedWriter.write(username + ": " + messageToSend);
-            bufferedWriter.newLine();
-            bufferedWriter.flush();
+            send(FrameCodec.TYPE_TEXT, message);
         } catch (IOException e) {
-            closeEverything(socket, bufferedReader, bufferedWriter);
+            if (sessionToken == null) {
+                closeEverything(socket, bufferedReader, bufferedWriter);
+                return;
+            }
+            // Wakes the listener, which reconnects and resumes the session
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
         }
     }
 
+    private void send(byte type, String message) throws IOException {
+        OutputStream output = frameOutput;
+        if (output != null) {
+            synchronized (output) {
+                FrameCodec.write(output, type, FrameCodec.FORUM_ROOM_ID, message);
+            }
+            return;
+        }
+
+        BufferedWriter writer = bufferedWriter;
+        writer.write(message);
+        writer.newLine();
+        writer.flush();
+    }
+
+    // Opens the connection and then reads from it, both on a new thread
     public void listenForMessage() {
         new Thread(() -> {
-            String msgFromGroupChat;
-
-            while (socket.isConnected()) {
+            try {
+                open(socket);
+            } catch (IOException e) {
+                System.out.println("ForumClient.java : could not open connection for " + username);
+                closeEverything(socket, bufferedReader, bufferedWriter);
+                return;
+            }
+            while (true) {
                 try {
-                    msgFromGroupChat = bufferedReader.readLine();
-                    if (msgFromGroupChat != null && messageListener != null) {
-                        final String finalMessage = msgFromGroupChat;
-                        try {
-                            Platform.runLater(() -> messageListener.onMessageReceived(finalMessage));
-                        } catch (IllegalStateException e) {
-                            messageListener.onMessageReceived(finalMessage);
-                        }
+                    if (readNext()) {
+                        continue;
                     }
                 } catch (IOException e) {
-                    closeEverything(socket, bufferedReader, bufferedWriter);
+                    // Dropped connection; handled below like end of stream
+                }
+                if (!reconnect()) {
                     break;
                 }
             }
         }).start();
     }
 
+    // False at end of stream
+    private boolean readNext() throws IOException {
+        if (frameInput == null) {
+            String msgFromGroupChat = bufferedReader.readLine();
+            if (msgFromGroupChat == null) {
+                return false;
+            }
+            if (msgFromGroupChat.startsWith(FrameCodec.SYSTEM_PREFIX)) {
+                dispatch(FrameCodec.TYPE_SYSTEM, msgFromGroupChat.substring(FrameCodec.SYSTEM_PREFIX.length()));
+            } else {
+                dispatch(FrameCodec.TYPE_TEXT, msgFromGroupChat);
+            }
+            return true;
+        }
+
+        FrameCodec.Frame frame = FrameCodec.read(frameInput, FrameCodec.DEFAULT_MAX_FRAME_SIZE);
+        if (frame == null) {
+            return false;
+        }
+        if (frame.type == FrameCodec.TYPE_CONTROL) {
+            onControl(frame.payload);
+            return true;
+        }
+
+        // A replay can overlap what already arrived before the drop
+        if (frame.sequence > 0) {
+            if (frame.sequence <= lastSequence) {
+                return true;
+            }
+            lastSequence = frame.sequence;
+        }
+        dispatch(frame.type, frame.payload);
+        return true;
+    }
+
+    private void onControl(String payload) throws IOException {
+        if (FrameCodec.HEARTBEAT_PING.equals(payload)) {
+            send(FrameCodec.TYPE_CONTROL, FrameCodec.HEARTBEAT_PONG);
+        } else if (payload.startsWith(FrameCodec.SESSION_PREFIX)) {
+            sessionToken = payload.substring(FrameCodec.SESSION_PREFIX.length()).trim();
+        } else if (payload.startsWith(FrameCodec.GAP_PREFIX)) {
+            String[] parts = payload.substring(FrameCodec.GAP_PREFIX.length()).trim().split(" ");
+            try {
+                long afterSequence = Long.parseLong(parts[0]);
+                long latestSequence = Long.parseLong(parts[1]);
+                lastSequence = latestSequence;
+                if (messageListener != null) {
+                    Runnable notice = () -> messageListener.onMessagesMissed(afterSequence, latestSequence);
+                    try {
+                        Platform.runLater(notice);
+                    } catch (IllegalStateException e) {
+                        notice.run();
+                    }
+                }
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                System.out.println("ForumClient.java : bad gap notice " + payload);
+            }
+        }
+    }
+
+    // Reopens the connection after a drop and resumes the session; false once closed for good
+    private boolean reconnect() {
+        if (closed) {
+            return false;
+        }
+        if (sessionToken == null) {
+            closeEverything(socket, bufferedReader, bufferedWriter);
+            return false;
+        }
+
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+        for (int attempt = 1; attempt <= RECONNECT_ATTEMPTS && !closed; attempt++) {
+            try {
+                Thread.sleep((long) RECONNECT_DELAY_MS * attempt);
+                Socket reopened = new Socket();
+                reopened.connect(serverAddress, NEGOTIATION_TIMEOUT_MS);
+                open(reopened);
+                System.out.println("ForumClient.java : reconnected " + username + " after " + attempt + " attempt(s)");
+                return true;
+            } catch (IOException e) {
+                System.out.println("ForumClient.java : reconnect attempt " + attempt + " failed");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (!closed) {
+            closeEverything(socket, bufferedReader, bufferedWriter);
+        }
+        return false;
+    }
+
+    private void dispatch(byte type, String message) {
+        if (messageListener == null || type == FrameCodec.TYPE_CONTROL) {
+            return;
+        }
+
+        Runnable delivery = type == FrameCodec.TYPE_SYSTEM
+                ? () -> messageListener.onSystemMessage(message)
+                : () -> messageListener.onMessageReceived(message);
+        try {
+            Platform.runLater(delivery);
+        } catch (IllegalStateException e) {
+            delivery.run();
+        }
+    }
+
     public void closeEverything(Socket socket, BufferedReader bufferedReader, BufferedWriter bufferedWriter) {
+        closed = true;
         try {
             if (bufferedReader != null) {
                 bufferedReader.close();
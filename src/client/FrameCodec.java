@@ -0,0 +1,185 @@
+package client;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary frame format, version 1. Every frame is
+ *
+ *   int length   bytes that follow this field (header remainder + payload)
+ *   byte version
+ *   byte type    TYPE_TEXT, TYPE_SYSTEM or TYPE_CONTROL
+ *   byte flags   FLAG_SEQUENCED or 0
+ *   int roomId   0 for the forum, otherwise the RoomDirectory id of the DM or group chat
+ *   long seq     only with FLAG_SEQUENCED: the message's position in its room
+ *   payload      UTF-8, may contain newlines
+ *
+ * A client asks for frames by sending "PROTO 1" as its very first line and waiting for the reply.
+ * "PROTO 1 OK" switches both directions to frames; anything else (e.g. "PROTO TEXT") keeps the
+ * newline-terminated text protocol, which clients that never send PROTO keep using unchanged.
+ *
+ * Options follow the version. "PROTO 1 DEFLATE" also asks for StreamCompressor compression;
+ * a reply of "PROTO 1 OK DEFLATE" means every byte after the reply line is deflated, both ways.
+ */
+public class FrameCodec {
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 11;
+    public static final int DEFAULT_MAX_FRAME_SIZE = 64 * 1024;
+
+    public static final byte TYPE_TEXT = 1;
+    public static final byte TYPE_SYSTEM = 2;
+    public static final byte TYPE_CONTROL = 3;
+
+    public static final byte FLAG_SEQUENCED = 0x01;
+    public static final int SEQUENCE_SIZE = 8;
+
+    public static final int FORUM_ROOM_ID = 0;
+
+    public static final String NEGOTIATE_PREFIX = "PROTO ";
+    public static final String NEGOTIATE_REQUEST = NEGOTIATE_PREFIX + VERSION;
+    public static final String NEGOTIATE_ACCEPT = NEGOTIATE_PREFIX + VERSION + " OK";
+    public static final String NEGOTIATE_DECLINE = NEGOTIATE_PREFIX + "TEXT";
+    public static final String OPTION_DEFLATE = "DEFLATE";
+
+    // TYPE_CONTROL heartbeat: the server sends PING to a quiet framed client, which answers PONG
+    public static final String HEARTBEAT_PING = "PING";
+    public static final String HEARTBEAT_PONG = "PONG";
+
+    // TYPE_CONTROL session messages: "SESSION <token>" from the server after joining,
+    // "RESUME <token> <lastSeq>" from a reconnecting client, "GAP <lastSeq> <latestSeq>" when replay is impossible
+    public static final String SESSION_PREFIX = "SESSION ";
+    public static final String RESUME_PREFIX = "RESUME ";
+    public static final String GAP_PREFIX = "GAP ";
+
+    // "HISTORY <n>" before the join line caps the backfill a new member is sent; "HISTORY 0" declines it
+    public static final String HISTORY_PREFIX = "HISTORY ";
+
+    // Text-protocol spelling of a TYPE_SYSTEM message
+    public static final String SYSTEM_PREFIX = "SERVER: ";
+
+    public static boolean isHeartbeat(Frame frame) {
+        return frame.type == TYPE_CONTROL && (HEARTBEAT_PING.equals(frame.payload) || HEARTBEAT_PONG.equals(frame.payload));
+    }
+
+    public static class Frame {
+        public final byte type;
+        public final byte flags;
+        public final int roomId;
+        public final long sequence;
+        public final String payload;
+
+        // sequence is 0 for frames sent without FLAG_SEQUENCED
+        public Frame(byte type, byte flags, int roomId, long sequence, String payload) {
+            this.type = type;
+            this.flags = flags;
+            this.roomId = roomId;
+            this.sequence = sequence;
+            this.payload = payload;
+        }
+    }
+
+    // True when the server should answer a negotiation line with NEGOTIATE_ACCEPT
+    public static boolean acceptsNegotiation(String line) {
+        String[] parts = line.substring(NEGOTIATE_PREFIX.length()).trim().split(" ");
+        try {
+            return Integer.parseInt(parts[0]) == VERSION;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public static boolean hasOption(String line, String option) {
+        String[] parts = line.substring(NEGOTIATE_PREFIX.length()).trim().split(" ");
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].equalsIgnoreCase(option)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static ByteBuffer encodeHeader(byte type, byte flags, int roomId, int payloadLength) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(HEADER_SIZE - 4 + payloadLength)
+                .put((byte) VERSION)
+                .put(type)
+                .put(flags)
+                .putInt(roomId)
+                .flip();
+        return header;
+    }
+
+    // Header for a room broadcast carrying its sequence number (sequence > 0)
+    public static ByteBuffer encodeHeader(byte type, int roomId, long sequence, int payloadLength) {
+        if (sequence <= 0) {
+            return encodeHeader(type, (byte) 0, roomId, payloadLength);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + SEQUENCE_SIZE);
+        header.putInt(HEADER_SIZE - 4 + SEQUENCE_SIZE + payloadLength)
+                .put((byte) VERSION)
+                .put(type)
+                .put(FLAG_SEQUENCED)
+                .putInt(roomId)
+                .putLong(sequence)
+                .flip();
+        return header;
+    }
+
+    // Blocking read of one frame; null at a clean end of stream
+    public static Frame read(DataInputStream in, int maxFrameSize) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        checkLength(length, maxFrameSize);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return decode(frame, 0, length);
+    }
+
+    // Decodes the bytes after the length field
+    public static Frame decode(byte[] bytes, int offset, int length) throws ProtocolException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+        int version = buffer.get();
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported frame version " + version);
+        }
+
+        byte type = buffer.get();
+        byte flags = buffer.get();
+        int roomId = buffer.getInt();
+        long sequence = 0;
+        if ((flags & FLAG_SEQUENCED) != 0) {
+            if (buffer.remaining() < SEQUENCE_SIZE) {
+                throw new ProtocolException("Truncated sequenced frame");
+            }
+            sequence = buffer.getLong();
+        }
+        String payload = new String(bytes, buffer.position(), buffer.remaining(), StandardCharsets.UTF_8);
+        return new Frame(type, flags, roomId, sequence, payload);
+    }
+
+    public static void checkLength(int length, int maxFrameSize) throws ProtocolException {
+        if (length < HEADER_SIZE - 4 || length > maxFrameSize) {
+            throw new ProtocolException("Invalid frame length " + length);
+        }
+    }
+
+    // Used by clients and one-shot replies; broadcasts go through EncodedMessage instead
+    public static void write(OutputStream out, byte type, int roomId, String payload) throws IOException {
+        byte[] body = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = encodeHeader(type, (byte) 0, roomId, body.length);
+        out.write(header.array(), 0, header.limit());
+        out.write(body);
+        out.flush();
+    }
+}
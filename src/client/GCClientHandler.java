@@ -1,99 +1,138 @@
 package client;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
 
-public class GCClientHandler implements Runnable {
-    private static Map<String, ArrayList<GCClientHandler>> gcClientHandlers = new HashMap<>();
+import server.GCServer;
+import server.IdleWatch;
+import server.JoinRequest;
+import server.RoomDirectory;
+import server.RoomShard;
+import server.SessionRegistry;
+
+public class GCClientHandler implements Runnable, RoomMember {
     private Socket socket;
-    private BufferedReader bufferedReader;
+    private MessageReader messageReader;
     private BufferedWriter bufferedWriter;
     private String clientUsername;
+    private OutboundQueue outbound;
+    private IdleWatch idleWatch;
+    private String sessionToken;
     private String gcKey;
+    private String roomKey;
+    private RoomShard shard;
+    private int roomId;
     private String gcName;
 
-    public GCClientHandler(Socket socket, String gcKey, String gcName) {
-        try {
-            this.socket = socket;
-            this.gcKey = gcKey;
-            this.gcName = gcName;
-            this.bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
-            this.bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            this.clientUsername = bufferedReader.readLine();
-
-            // Add to GC-specific client list
-            gcClientHandlers.computeIfAbsent(gcKey, _ -> new ArrayList<>()).add(this);
-
-            System.out.println("GC Client " + clientUsername + " joined GC: " + gcName);
-            broadcastToGC("SERVER: " + clientUsername + " has joined " + gcName + "!");
-        } catch (IOException e) {
-            closeEverything(socket, bufferedReader, bufferedWriter);
+    // Reader and writer come from ConnectionRouter, which has already read the JOIN line and the username
+    public GCClientHandler(Socket socket, MessageReader messageReader, BufferedWriter bufferedWriter, String clientUsername, String gcKey, String gcName, JoinRequest request) {
+        this.socket = socket;
+        this.gcKey = gcKey;
+        this.roomKey = "gc:" + gcKey;
+        this.shard = RoomShard.forRoom(roomKey);
+        this.roomId = RoomDirectory.getRoomId(gcKey);
+        this.gcName = gcName;
+        this.bufferedWriter = bufferedWriter;
+        this.messageReader = messageReader;
+        this.clientUsername = clientUsername;
+
+        this.outbound = new OutboundQueue(socket, bufferedWriter, messageReader.isFramed(), messageReader.getCompressor(), this::closeSocket, this::closeSocket);
+        if (messageReader.isFramed()) {
+            idleWatch = IdleWatch.start(messageReader::getLastReadNanos, outbound::ping, this::closeSocket);
+            sessionToken = SessionRegistry.open(roomKey, clientUsername);
         }
+
+        // Join the GC on its shard; directory presence is updated from there
+        shard.execute(roomKey, () -> {
+            shard.join(roomKey, this);
+            // Again, in case the room emptied and was unregistered after this client was routed to it
+            RoomDirectory.register(RoomInfo.TYPE_GC, gcKey, gcName);
+            RoomDirectory.memberJoined(gcKey);
+            SessionRegistry.attach(shard, roomKey, this, sessionToken, request);
+        });
+
+        System.out.println("GC Client " + clientUsername + " joined GC: " + gcName);
+        broadcastNotice(clientUsername + " has joined " + gcName + "!");
     }
 
     @Override
     public void run() {
         String messageFromClient;
 
-        while (socket.isConnected()) {
+        // A closed socket or end of stream ends the loop; readMessage returns null at end of stream
+        while (!socket.isClosed()) {
             try {
-                messageFromClient = bufferedReader.readLine();
-                if (messageFromClient != null) {
-                    broadcastToGC(messageFromClient);
+                messageFromClient = messageReader.readMessage();
+                if (messageFromClient == null) {
+                    closeEverything(socket, messageReader, bufferedWriter);
+                    break;
                 }
+                RoomDirectory.touch(gcKey);
+                broadcastToGC(messageFromClient);
             } catch (IOException e) {
-                closeEverything(socket, bufferedReader, bufferedWriter);
+                closeEverything(socket, messageReader, bufferedWriter);
                 break;
             }
         }
     }
 
     public void broadcastToGC(String messageToSend) {
-        ArrayList<GCClientHandler> gcClients = gcClientHandlers.get(gcKey);
-        if (gcClients != null) {
-            for (GCClientHandler clientHandler : gcClients) {
-                try {
-                    if (!clientHandler.clientUsername.equals(clientUsername)) {
-                        clientHandler.bufferedWriter.write(messageToSend);
-                        clientHandler.bufferedWriter.newLine();
-                        clientHandler.bufferedWriter.flush();
-                    }
-                } catch (IOException e) {
-                    clientHandler.closeEverything(clientHandler.socket, clientHandler.bufferedReader, clientHandler.bufferedWriter);
-                }
-            }
-        }
+        broadcast(EncodedMessage.of(FrameCodec.TYPE_TEXT, roomId, messageToSend));
+    }
+
+    private void broadcastNotice(String notice) {
+        broadcast(EncodedMessage.of(FrameCodec.TYPE_SYSTEM, roomId, notice));
+    }
+
+    // Encoded here, fanned out on the room's shard
+    private void broadcast(EncodedMessage message) {
+        shard.execute(roomKey, () -> shard.broadcast(roomKey, message, member -> !member.getClientUsername().equals(clientUsername)));
     }
 
     public void removeClientHandler() {
-        ArrayList<GCClientHandler> gcClients = gcClientHandlers.get(gcKey);
-        if (gcClients != null) {
-            gcClients.remove(this);
-            broadcastToGC("SERVER: " + clientUsername + " has left " + gcName + "!");
-
-            // If no more clients, remove the GC entry
-            if (gcClients.isEmpty()) {
-                gcClientHandlers.remove(gcKey);
+        shard.execute(roomKey, () -> {
+            if (!shard.leave(roomKey, this)) {
+                return;
+            }
+            RoomDirectory.memberLeft(gcKey);
+            if (shard.hasMembers(roomKey)) {
+                // Already on the shard, so the notice goes out before anything queued behind this task
+                shard.broadcast(roomKey, EncodedMessage.of(FrameCodec.TYPE_SYSTEM, roomId, clientUsername + " has left " + gcName + "!"), member -> !member.getClientUsername().equals(clientUsername));
+            } else {
+                GCServer.closeEmptyRoom(gcKey);
             }
+        });
+    }
+
+    // Called from a drain or a broadcasting thread; the reader notices and cleans up
+    private void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
     }
 
-    public void closeEverything(Socket socket, BufferedReader br, BufferedWriter bw) {
+    public void closeEverything(Socket socket, MessageReader reader, BufferedWriter bw) {
         removeClientHandler();
+        if (idleWatch != null) {
+            idleWatch.stop();
+        }
+        if (sessionToken != null) {
+            SessionRegistry.detach(sessionToken);
+        }
 
         try {
-            if (br != null) {
-                br.close();
+            if (reader != null) {
+                reader.close();
             }
 
-            if (bw != null) {
+            // The queue closes bw, after its last write if one is in progress
+            if (outbound != null) {
+                outbound.close();
+            } else if (bw != null) {
                 bw.close();
             }
 
@@ -105,6 +144,22 @@ public class GCClientHandler implements Runnable {
         }
     }
 
+    @Override
+    public void deliver(EncodedMessage message) {
+        outbound.offer(message);
+    }
+
+    @Override
+    public void deliverAll(List<EncodedMessage> messages) {
+        outbound.offerAll(messages);
+    }
+
+    @Override
+    public void disconnect() {
+        closeSocket();
+    }
+
+    @Override
     public String getClientUsername() {
         return clientUsername;
     }
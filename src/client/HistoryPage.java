@@ -0,0 +1,52 @@
+package client;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One page of a room's logged history, oldest message first, with the cursors that continue
+ * past either end of it. getOlderCursor() is null once the start of the history is reached.
+ */
+public class HistoryPage {
+    private final List<SearchHit> messages;
+    private final String olderCursor;
+    private final String newerCursor;
+
+    public HistoryPage(List<SearchHit> messages, String olderCursor, String newerCursor) {
+        this.messages = messages;
+        this.olderCursor = olderCursor;
+        this.newerCursor = newerCursor;
+    }
+
+    // The reply lines of a FETCH request; a page without cursors if it was refused
+    public static HistoryPage parse(List<String> lines) {
+        List<SearchHit> messages = new ArrayList<>();
+        String olderCursor = null;
+        String newerCursor = null;
+        for (String line : lines) {
+            SearchHit hit = SearchHit.parse(line);
+            if (hit != null) {
+                messages.add(hit);
+            } else if (line.startsWith("END ")) {
+                String[] parts = line.split(" ");
+                if (parts.length == 3) {
+                    olderCursor = parts[1].equals("-") ? null : parts[1];
+                    newerCursor = parts[2];
+                }
+            }
+        }
+        return new HistoryPage(messages, olderCursor, newerCursor);
+    }
+
+    public List<SearchHit> getMessages() {
+        return messages;
+    }
+
+    public String getOlderCursor() {
+        return olderCursor;
+    }
+
+    public String getNewerCursor() {
+        return newerCursor;
+    }
+}
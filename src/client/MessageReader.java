@@ -0,0 +1,76 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads client messages in whichever protocol the connection negotiated:
+ * newline-terminated lines, or FrameCodec frames.
+ */
+public class MessageReader {
+    private final BufferedReader bufferedReader;
+    private final DataInputStream frameInput;
+    private final int maxFrameSize;
+    private final StreamCompressor compressor;
+    private volatile long lastReadNanos = System.nanoTime();
+
+    public MessageReader(BufferedReader bufferedReader) {
+        this.bufferedReader = bufferedReader;
+        this.frameInput = null;
+        this.maxFrameSize = 0;
+        this.compressor = null;
+    }
+
+    // Only safe once the peer is waiting on the negotiation reply, so the line reader holds no frame bytes
+    public MessageReader(InputStream inputStream, int maxFrameSize, StreamCompressor compressor) {
+        this.bufferedReader = null;
+        this.compressor = compressor;
+        this.frameInput = new DataInputStream(new BufferedInputStream(compressor == null ? inputStream : compressor.inflating(inputStream)));
+        this.maxFrameSize = maxFrameSize;
+    }
+
+    public boolean isFramed() {
+        return frameInput != null;
+    }
+
+    // Negotiated deflate state, shared with the connection's writer; null when uncompressed
+    public StreamCompressor getCompressor() {
+        return compressor;
+    }
+
+    // Next message, or null at end of stream; heartbeat frames only count as activity
+    public String readMessage() throws IOException {
+        if (frameInput == null) {
+            String line = bufferedReader.readLine();
+            lastReadNanos = System.nanoTime();
+            return line;
+        }
+
+        while (true) {
+            FrameCodec.Frame frame = FrameCodec.read(frameInput, maxFrameSize);
+            lastReadNanos = System.nanoTime();
+            if (frame == null || !FrameCodec.isHeartbeat(frame)) {
+                return frame == null ? null : frame.payload;
+            }
+        }
+    }
+
+    // System.nanoTime() of the last message or heartbeat, for IdleWatch
+    public long getLastReadNanos() {
+        return lastReadNanos;
+    }
+
+    public void close() throws IOException {
+        if (compressor != null) {
+            compressor.close();
+        }
+        if (frameInput != null) {
+            frameInput.close();
+        } else {
+            bufferedReader.close();
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package client;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import server.ServerConfig;
+import server.ServerExecutors;
+import server.ServerStats;
+
+/**
+ * Bounded outbound queue for one connection. Broadcasting threads only enqueue; the first message
+ * into an empty queue starts a drain on a virtual thread from ServerExecutors, which writes until
+ * the queue is empty again and then ends. At most one drain runs per connection, so a client with
+ * a full TCP window stalls its own drain and nobody else, concurrent senders never interleave
+ * writes, and an idle connection costs its reader thread only. Messages are shared EncodedMessage
+ * instances written with a gathering write on the socket's channel.
+ *
+ * When the queue is full the oldest message is dropped. With tong.outbound.policy=disconnect
+ * a consumer that stays above the high-water mark for tong.outbound.disconnectAfterMs is evicted.
+ *
+ * Writes are coalesced adaptively: an idle connection is written as soon as a message arrives,
+ * while a busy one gathers everything queued within tong.outbound.coalesceMicros (up to
+ * tong.outbound.coalesceBytes) into a single write.
+ */
+public class OutboundQueue {
+    public enum SlowConsumerPolicy {
+        DROP_OLDEST,
+        DISCONNECT
+    }
+
+    private final Socket socket;
+    private final BufferedWriter bufferedWriter;
+    private final boolean framed;
+    private final StreamCompressor compressor;
+    private final Runnable onSlowConsumer;
+    private final Runnable onWriteFailure;
+    private final ArrayDeque<EncodedMessage> queue;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final int capacity = ServerConfig.getOutboundCapacity();
+    private final int highWaterMark = ServerConfig.getOutboundHighWaterMark();
+    private final long disconnectAfterMillis = ServerConfig.getSlowConsumerDisconnectMillis();
+    private final SlowConsumerPolicy policy = currentPolicy();
+    private final long coalesceBytes = ServerConfig.getCoalesceBytes();
+    private final long coalesceWindowNanos = ServerConfig.getCoalesceWindowMicros() * 1000L;
+    private long overHighWaterSince = 0;
+    private int previousBatchSize = 1;
+    private boolean draining = false;
+    private boolean closed = false;
+    private boolean evicted = false;
+
+    public OutboundQueue(Socket socket, BufferedWriter bufferedWriter, boolean framed, StreamCompressor compressor,
+            Runnable onSlowConsumer, Runnable onWriteFailure) {
+        this.socket = socket;
+        this.bufferedWriter = bufferedWriter;
+        this.framed = framed;
+        this.compressor = compressor;
+        this.onSlowConsumer = onSlowConsumer;
+        this.onWriteFailure = onWriteFailure;
+        this.queue = new ArrayDeque<>(Math.min(capacity, 64));
+    }
+
+    public static SlowConsumerPolicy currentPolicy() {
+        return "disconnect".equals(ServerConfig.getSlowConsumerPolicy()) ? SlowConsumerPolicy.DISCONNECT : SlowConsumerPolicy.DROP_OLDEST;
+    }
+
+    // Never blocks on the network; the queue takes its own reference to the message
+    public boolean offer(EncodedMessage message) {
+        boolean evict;
+        boolean startDrain;
+
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            evict = enqueue(message);
+            startDrain = wakeDrain();
+        } finally {
+            lock.unlock();
+        }
+
+        if (startDrain) {
+            ServerExecutors.executeWrite(this::drain);
+        }
+        if (evict) {
+            evictSlowConsumer();
+        }
+        return true;
+    }
+
+    // Queues the messages under one lock and wakes the drain once, so they leave in the same batch
+    public boolean offerAll(List<EncodedMessage> messages) {
+        boolean evict = false;
+        boolean startDrain;
+
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            for (EncodedMessage message : messages) {
+                evict |= enqueue(message);
+            }
+            startDrain = wakeDrain();
+        } finally {
+            lock.unlock();
+        }
+
+        if (startDrain) {
+            ServerExecutors.executeWrite(this::drain);
+        }
+        if (evict) {
+            evictSlowConsumer();
+        }
+        return true;
+    }
+
+    // Called with the lock held after enqueueing; true when the caller has to start a drain
+    private boolean wakeDrain() {
+        if (draining) {
+            notEmpty.signal();
+            return false;
+        }
+        draining = true;
+        return true;
+    }
+
+    // Called with the lock held; true when this message made the consumer due for eviction
+    private boolean enqueue(EncodedMessage message) {
+        if (queue.size() >= capacity) {
+            queue.pollFirst().release();
+            ServerStats.messageDropped();
+        }
+        queue.addLast(message.retain());
+        ServerStats.messageEnqueued(queue.size());
+
+        if (policy == SlowConsumerPolicy.DISCONNECT && !evicted) {
+            if (queue.size() > highWaterMark) {
+                long now = System.currentTimeMillis();
+                if (overHighWaterSince == 0) {
+                    overHighWaterSince = now;
+                } else if (now - overHighWaterSince >= disconnectAfterMillis) {
+                    evicted = true;
+                    return true;
+                }
+            } else {
+                overHighWaterSince = 0;
+            }
+        }
+        return false;
+    }
+
+    private void evictSlowConsumer() {
+        ServerStats.slowConsumerEvicted();
+        onSlowConsumer.run();
+    }
+
+    public void ping() {
+        EncodedMessage ping = EncodedMessage.of(FrameCodec.TYPE_CONTROL, FrameCodec.FORUM_ROOM_ID, FrameCodec.HEARTBEAT_PING);
+        offer(ping);
+        ping.release();
+    }
+
+    public int depth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Closes bw straight away, or leaves it to a drain that is still writing
+    public void close() {
+        boolean closeWriter;
+
+        lock.lock();
+        try {
+            if (!closed) {
+                closed = true;
+                ServerStats.messagesDequeued(queue.size());
+                for (EncodedMessage message : queue) {
+                    message.release();
+                }
+                queue.clear();
+            }
+            closeWriter = !draining;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        if (closeWriter) {
+            closeWriter();
+        }
+    }
+
+    // Runs until the queue is empty or closed; wakeDrain makes sure only one runs at a time
+    private void drain() {
+        SocketChannel channel = socket.getChannel();
+        ArrayList<EncodedMessage> batch = new ArrayList<>();
+        boolean closeWriter = false;
+
+        try {
+            while (true) {
+                lock.lock();
+                try {
+                    if (closed || queue.isEmpty()) {
+                        draining = false;
+                        closeWriter = closed;
+                        return;
+                    }
+
+                    long batchBytes = takeBatch(batch, 0);
+                    // An idle connection is written at once; a busy one waits briefly so the burst shares one write
+                    if (batch.size() > 1 || previousBatchSize > 1) {
+                        long nanos = coalesceWindowNanos;
+                        while (queue.isEmpty() && batchBytes < coalesceBytes && nanos > 0 && !closed) {
+                            nanos = notEmpty.awaitNanos(nanos);
+                            batchBytes = takeBatch(batch, batchBytes);
+                        }
+                    }
+                    if (queue.size() <= highWaterMark) {
+                        overHighWaterSince = 0;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                try {
+                    write(channel, batch);
+                } finally {
+                    previousBatchSize = batch.size();
+                    for (EncodedMessage message : batch) {
+                        message.release();
+                    }
+                    batch.clear();
+                }
+            }
+        } catch (IOException e) {
+            closeWriter = true;
+            close();
+            onWriteFailure.run();
+        } catch (InterruptedException e) {
+            closeWriter = true;
+            close();
+            Thread.currentThread().interrupt();
+        } finally {
+            for (EncodedMessage message : batch) {
+                message.release();
+            }
+            if (closeWriter) {
+                closeWriter();
+            }
+        }
+    }
+
+    private void closeWriter() {
+        try {
+            bufferedWriter.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    // Moves queued messages into the batch until the byte budget is used; called with the lock held
+    private long takeBatch(ArrayList<EncodedMessage> batch, long batchBytes) {
+        int taken = 0;
+        while (!queue.isEmpty() && (batch.isEmpty() || batchBytes + queue.peekFirst().length(framed) <= coalesceBytes)) {
+            EncodedMessage message = queue.pollFirst();
+            batch.add(message);
+            batchBytes += message.length(framed);
+            taken++;
+        }
+        ServerStats.messagesDequeued(taken);
+        return batchBytes;
+    }
+
+    private void write(SocketChannel channel, ArrayList<EncodedMessage> batch) throws IOException {
+        long batchBytes = 0;
+        ArrayList<ByteBuffer> buffers = new ArrayList<>(batch.size() * 2);
+        for (EncodedMessage message : batch) {
+            Collections.addAll(buffers, message.buffers(framed));
+            batchBytes += message.length(framed);
+        }
+
+        ByteBuffer[] gathered = buffers.toArray(new ByteBuffer[0]);
+        long remaining = batchBytes;
+        if (compressor != null) {
+            gathered = new ByteBuffer[] { compressor.deflate(gathered) };
+            remaining = gathered[0].remaining();
+        }
+
+        if (channel != null) {
+            while (remaining > 0) {
+                remaining -= channel.write(gathered);
+            }
+        } else {
+            // Sockets that were not opened through a channel fall back to the plain stream
+            OutputStream outputStream = socket.getOutputStream();
+            for (ByteBuffer buffer : gathered) {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                outputStream.write(bytes);
+            }
+            outputStream.flush();
+        }
+
+        for (EncodedMessage message : batch) {
+            ServerStats.messageDelivered(message.length(framed));
+        }
+        ServerStats.batchFlushed(batch.size());
+    }
+}
@@ -0,0 +1,83 @@
+package client;
+
+/**
+ * One room as served by the room directory. Travels as a single space-separated line:
+ * ROOM <type> <key> <host> <port> <memberCount> <lastActivityMillis> <name...>
+ */
+public class RoomInfo {
+    public static final String TYPE_DM = "DM";
+    public static final String TYPE_GC = "GC";
+
+    private final String type;
+    private final String key;
+    private final String host;
+    private final int port;
+    private final int memberCount;
+    private final long lastActivity;
+    private final String name;
+
+    public RoomInfo(String type, String key, String host, int port, int memberCount, long lastActivity, String name) {
+        this.type = type;
+        this.key = key;
+        this.host = host;
+        this.port = port;
+        this.memberCount = memberCount;
+        this.lastActivity = lastActivity;
+        this.name = name;
+    }
+
+    public String toLine() {
+        return "ROOM " + type + " " + key + " " + host + " " + port + " " + memberCount + " " + lastActivity + " " + name;
+    }
+
+    public static RoomInfo parse(String line) {
+        if (line == null || !line.startsWith("ROOM ")) {
+            return null;
+        }
+
+        String[] parts = line.split(" ", 8);
+        if (parts.length < 8) {
+            return null;
+        }
+
+        try {
+            return new RoomInfo(parts[1], parts[2], parts[3], Integer.parseInt(parts[4]),
+                    Integer.parseInt(parts[5]), Long.parseLong(parts[6]), parts[7]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getMemberCount() {
+        return memberCount;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + memberCount + " online)";
+    }
+}
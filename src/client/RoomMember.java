@@ -0,0 +1,20 @@
+package client;
+
+import java.util.List;
+
+/**
+ * A connection that can sit in a room on a RoomShard: the forum, DM and GC handlers and the
+ * NIO server's connections. Its methods are called on the room's shard thread and must not block.
+ */
+public interface RoomMember {
+    String getClientUsername();
+
+    // Hands the message to the member's outbound queue
+    void deliver(EncodedMessage message);
+
+    // Hands over a backfill or replay in order, as one write where the connection allows it
+    void deliverAll(List<EncodedMessage> messages);
+
+    // Starts closing the connection; its own thread notices and leaves the room
+    void disconnect();
+}
@@ -0,0 +1,63 @@
+package client;
+
+/**
+ * One search result or history entry: a logged chat message and the room it was posted in. Travels as a single
+ * space-separated line, with any line breaks in the message turned into spaces:
+ * HIT <roomKey> <offset> <timestampMillis> <text...>
+ */
+public class SearchHit {
+    private final String roomKey;
+    private final long offset;
+    private final long timestamp;
+    private final String text;
+
+    public SearchHit(String roomKey, long offset, long timestamp, String text) {
+        this.roomKey = roomKey;
+        this.offset = offset;
+        this.timestamp = timestamp;
+        this.text = text;
+    }
+
+    public String toLine() {
+        return "HIT " + roomKey + " " + offset + " " + timestamp + " " + text.replaceAll("[\\r\\n]+", " ");
+    }
+
+    public static SearchHit parse(String line) {
+        if (line == null || !line.startsWith("HIT ")) {
+            return null;
+        }
+
+        String[] parts = line.split(" ", 5);
+        if (parts.length < 5) {
+            return null;
+        }
+
+        try {
+            return new SearchHit(parts[1], Long.parseLong(parts[2]), Long.parseLong(parts[3]), parts[4]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // "forum", "dm:<dmKey>" or "gc:<gcKey>"
+    public String getRoomKey() {
+        return roomKey;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,193 @@
+package client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import server.ServerStats;
+
+/**
+ * Deflate state for one connection that negotiated "PROTO 1 DEFLATE". Each direction is a single
+ * zlib stream, so the sliding window is shared by every message on the connection and repeated
+ * names and join/leave notices compress well. Every write batch ends with a sync flush, so the
+ * peer can decode it immediately. Byte counts and time spent are reported through ServerStats.
+ */
+public final class StreamCompressor {
+    private static final int CHUNK_SIZE = 8192;
+
+    private final String name;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final Inflater inflater = new Inflater();
+    private volatile long deflateNanos;
+    private volatile long inflateNanos;
+    private boolean closed;
+    // A blocking read is inside the inflater, which close() must then leave for the reader to end
+    private boolean reading;
+
+    public StreamCompressor(String name) {
+        this.name = name;
+        ServerStats.compressionStarted(this);
+    }
+
+    // Compresses the buffers as one sync-flushed block ready to write
+    public synchronized ByteBuffer deflate(ByteBuffer[] buffers) throws IOException {
+        if (closed) {
+            throw new IOException("Compressor closed");
+        }
+
+        long start = System.nanoTime();
+        ByteBuffer output = ByteBuffer.allocate(CHUNK_SIZE);
+        for (ByteBuffer buffer : buffers) {
+            deflater.setInput(buffer);
+            while (!deflater.needsInput()) {
+                output = ensureSpace(output);
+                deflater.deflate(output, Deflater.NO_FLUSH);
+            }
+        }
+        do {
+            output = ensureSpace(output);
+            deflater.deflate(output, Deflater.SYNC_FLUSH);
+        } while (!output.hasRemaining());
+
+        deflateNanos += System.nanoTime() - start;
+        return output.flip();
+    }
+
+    // Inflates everything remaining in input, for event-loop reads
+    public synchronized byte[] inflate(ByteBuffer input) throws IOException {
+        if (closed) {
+            throw new IOException("Compressor closed");
+        }
+
+        long start = System.nanoTime();
+        ByteBuffer output = ByteBuffer.allocate(Math.max(CHUNK_SIZE, input.remaining() * 4));
+        inflater.setInput(input);
+        try {
+            while (true) {
+                output = ensureSpace(output);
+                if (inflater.inflate(output) == 0 && (inflater.needsInput() || inflater.finished() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed data", e);
+        }
+
+        inflateNanos += System.nanoTime() - start;
+        byte[] plain = new byte[output.position()];
+        output.flip().get(plain);
+        return plain;
+    }
+
+    // Blocking-side reader over the compressed socket stream
+    public InputStream inflating(InputStream in) {
+        return new InflaterInputStream(in, inflater, CHUNK_SIZE) {
+            private long waitNanos;
+
+            // Time blocked on the socket is not inflate cost
+            @Override
+            protected void fill() throws IOException {
+                long start = System.nanoTime();
+                try {
+                    super.fill();
+                } finally {
+                    waitNanos += System.nanoTime() - start;
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                startRead();
+                long start = System.nanoTime();
+                long waitedBefore = waitNanos;
+                try {
+                    return super.read(b, off, len);
+                } finally {
+                    inflateNanos += System.nanoTime() - start - (waitNanos - waitedBefore);
+                    endRead();
+                }
+            }
+
+            // Only hand out what is already decoded, so a read never waits for a frame that is still in flight
+            @Override
+            public int available() throws IOException {
+                return 0;
+            }
+        };
+    }
+
+    private synchronized void startRead() throws IOException {
+        if (closed) {
+            throw new IOException("Compressor closed");
+        }
+        reading = true;
+    }
+
+    private synchronized void endRead() {
+        reading = false;
+        if (closed) {
+            inflater.end();
+        }
+    }
+
+    // Frees both zlib streams; a reader blocked on the socket ends the inflater once it returns
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            deflater.end();
+            if (!reading) {
+                inflater.end();
+            }
+            ServerStats.compressionEnded(this);
+        }
+    }
+
+    public String describe() {
+        long plainOut;
+        long compressedOut;
+        long plainIn;
+        long compressedIn;
+        synchronized (this) {
+            plainOut = closed ? 0 : deflater.getBytesRead();
+            compressedOut = closed ? 0 : deflater.getBytesWritten();
+            plainIn = closed ? 0 : inflater.getBytesWritten();
+            compressedIn = closed ? 0 : inflater.getBytesRead();
+        }
+
+        return name + ": out " + plainOut + "B->" + compressedOut + "B (" + ratio(plainOut, compressedOut) + "x, "
+                + deflateNanos / 1_000_000 + "ms), in " + compressedIn + "B->" + plainIn + "B ("
+                + ratio(plainIn, compressedIn) + "x, " + inflateNanos / 1_000_000 + "ms)";
+    }
+
+    public long getPlainBytesOut() {
+        synchronized (this) {
+            return closed ? 0 : deflater.getBytesRead();
+        }
+    }
+
+    public long getCompressedBytesOut() {
+        synchronized (this) {
+            return closed ? 0 : deflater.getBytesWritten();
+        }
+    }
+
+    public long getCpuNanos() {
+        return deflateNanos + inflateNanos;
+    }
+
+    private static String ratio(long plain, long compressed) {
+        return compressed == 0 ? "-" : String.format("%.2f", (double) plain / compressed);
+    }
+
+    private static ByteBuffer ensureSpace(ByteBuffer output) {
+        if (output.hasRemaining()) {
+            return output;
+        }
+        ByteBuffer larger = ByteBuffer.allocate(output.capacity() * 2);
+        return larger.put(output.flip());
+    }
+}
@@ -17,7 +17,8 @@ import javafx.scene.layout.VBox;
 import javafx.scene.text.Text;
 import javafx.scene.text.TextFlow;
 import models.User;
-import server.DMServer;
+import server.ConnectionRouter;
+import server.Server;
 
 public class DMController implements Initializable {
     @FXML private Button button_send;
@@ -31,7 +32,6 @@ public class DMController implements Initializable {
     private ForumClient forumClient;
     private boolean isConnectedToServer = false;
     private String currentDMKey;
-    private DMServer currentDMServer;
 
     @Override
     public void initialize(URL location, ResourceBundle resources) {
@@ -43,20 +43,18 @@ public class DMController implements Initializable {
         this.currentUser = user;
     }
 
-    public void setDMInfo(User target, String dmKey, DMServer dmServer) {
+    public void setDMInfo(User target, String dmKey) {
         this.targetUser = target;
         this.currentDMKey = dmKey;
-        this.currentDMServer = dmServer;
 
-        connectToDMServer();
+        connectToDMServer(Server.DEFAULT_HOST, Server.DEFAULT_PORT);
     }
 
     public void setDMInfoForJoining(User target, String dmKey, String ip, int port) {
         this.targetUser = target;
         this.currentDMKey = dmKey;
-        this.currentDMServer = null;
 
-        connectToExistingDMServer(ip, port);
+        connectToDMServer(ip, port);
     }
 
     @FXML
@@ -77,65 +75,10 @@ public class DMController implements Initializable {
         }
     }
 
-    private void connectToDMServer() {
-        if (currentDMServer == null) return;
-
-        try {
-            Thread.sleep(500);
-
-            Socket socket = new Socket("localhost", currentDMServer.getPort());
-            java.io.BufferedWriter bw = new java.io.BufferedWriter(
-                new java.io.OutputStreamWriter(socket.getOutputStream()));
-            bw.write(currentUser.displayName);
-            bw.newLine();
-            bw.flush();
-
-            forumClient = new ForumClient(socket, currentUser.displayName);
-            forumClient.setMessageListener(new ForumClient.ForumMessageListener() {
-                @Override
-                public void onMessageReceived(String message) {
-                    Platform.runLater(() -> displayReceivedMessage(message));
-                }
-
-                @Override
-                public void onConnectionStatusChanged(boolean connected) {
-                    isConnectedToServer = connected;
-                    if (!connected) {
-                        Platform.runLater(() -> {
-                            Alert alert = new Alert(Alert.AlertType.WARNING);
-                            alert.setTitle("DM Connection Lost");
-                            alert.setHeaderText("Direct Message Connection Lost");
-                            alert.setContentText("Connection to the DM has been lost.");
-                            alert.showAndWait();
-                        });
-                    }
-                }
-            });
-
-            forumClient.listenForMessage();
-            isConnectedToServer = true;
-
-        } catch (Exception e) {
-            Platform.runLater(() -> {
-                Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-                errorAlert.setTitle("Connection Failed");
-                errorAlert.setHeaderText("Cannot Connect to DM");
-                errorAlert.setContentText("Failed to connect to DM server: " + e.getMessage());
-                errorAlert.showAndWait();
-            });
-        }
-    }
-
-    private void connectToExistingDMServer(String ip, int port) {
+    private void connectToDMServer(String ip, int port) {
         try {
             Socket socket = new Socket(ip, port);
-            java.io.BufferedWriter bw = new java.io.BufferedWriter(
-                new java.io.OutputStreamWriter(socket.getOutputStream()));
-            bw.write(currentUser.displayName);
-            bw.newLine();
-            bw.flush();
-
-            forumClient = new ForumClient(socket, currentUser.displayName);
+            forumClient = new ForumClient(socket, currentUser.displayName, ConnectionRouter.JOIN_DM + currentDMKey);
             forumClient.setMessageListener(new ForumClient.ForumMessageListener() {
                 @Override
                 public void onMessageReceived(String message) {
@@ -17,7 +17,8 @@ import javafx.scene.layout.VBox;
 import javafx.scene.text.Text;
 import javafx.scene.text.TextFlow;
 import models.User;
-import server.GCServer;
+import server.ConnectionRouter;
+import server.Server;
 
 public class GCController implements Initializable {
     @FXML private Button button_send;
@@ -31,7 +32,6 @@ public class GCController implements Initializable {
     private boolean isConnectedToServer = false;
     private String currentGCKey;
     private String currentGCName;
-    private GCServer currentGCServer;
 
     @Override
     public void initialize(URL location, ResourceBundle resources) {
@@ -43,20 +43,18 @@ public class GCController implements Initializable {
         this.currentUser = user;
     }
 
-    public void setGCInfo(String gcName, String gcKey, GCServer gcServer) {
+    public void setGCInfo(String gcName, String gcKey) {
         this.currentGCName = gcName;
         this.currentGCKey = gcKey;
-        this.currentGCServer = gcServer;
 
-        connectToGCServer();
+        connectToGCServer(Server.DEFAULT_HOST, Server.DEFAULT_PORT);
     }
 
     public void setGCInfoForJoining(String gcName, String gcKey, String ip, int port) {
         this.currentGCName = gcName;
         this.currentGCKey = gcKey;
-        this.currentGCServer = null;
 
-        connectToExistingGCServer(ip, port);
+        connectToGCServer(ip, port);
     }
 
     @FXML
@@ -77,65 +75,10 @@ public class GCController implements Initializable {
         }
     }
 
-    private void connectToGCServer() {
-        if (currentGCServer == null) return;
-
-        try {
-            Thread.sleep(1000);
-
-            Socket socket = new Socket("localhost", currentGCServer.getPort());
-            java.io.BufferedWriter bw = new java.io.BufferedWriter(
-                new java.io.OutputStreamWriter(socket.getOutputStream()));
-            bw.write(currentUser.displayName);
-            bw.newLine();
-            bw.flush();
-
-            forumClient = new ForumClient(socket, currentUser.displayName);
-            forumClient.setMessageListener(new ForumClient.ForumMessageListener() {
-                @Override
-                public void onMessageReceived(String message) {
-                    Platform.runLater(() -> displayReceivedMessage(message));
-                }
-
-                @Override
-                public void onConnectionStatusChanged(boolean connected) {
-                    isConnectedToServer = connected;
-                    if (!connected) {
-                        Platform.runLater(() -> {
-                            Alert alert = new Alert(Alert.AlertType.WARNING);
-                            alert.setTitle("GC Connection Lost");
-                            alert.setHeaderText("Group Chat Connection Lost");
-                            alert.setContentText("Connection to the Group Chat has been lost.");
-                            alert.showAndWait();
-                        });
-                    }
-                }
-            });
-
-            forumClient.listenForMessage();
-            isConnectedToServer = true;
-
-        } catch (Exception e) {
-            Platform.runLater(() -> {
-                Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-                errorAlert.setTitle("Connection Failed");
-                errorAlert.setHeaderText("Cannot Connect to GC");
-                errorAlert.setContentText("Failed to connect to Group Chat server: " + e.getMessage());
-                errorAlert.showAndWait();
-            });
-        }
-    }
-
-    private void connectToExistingGCServer(String ip, int port) {
+    private void connectToGCServer(String ip, int port) {
         try {
             Socket socket = new Socket(ip, port);
-            java.io.BufferedWriter bw = new java.io.BufferedWriter(
-                new java.io.OutputStreamWriter(socket.getOutputStream()));
-            bw.write(currentUser.displayName);
-            bw.newLine();
-            bw.flush();
-
-            forumClient = new ForumClient(socket, currentUser.displayName);
+            forumClient = new ForumClient(socket, currentUser.displayName, ConnectionRouter.JOIN_GC + currentGCKey + " " + currentGCName);
             forumClient.setMessageListener(new ForumClient.ForumMessageListener() {
                 @Override
                 public void onMessageReceived(String message) {
@@ -5,7 +5,8 @@ import java.util.Optional;
 import java.util.ResourceBundle;
 
 import at.favre.lib.crypto.bcrypt.BCrypt;
-import database.UserDAO;
+import database.AsyncUserDAO;
+import javafx.application.Platform;
 import javafx.fxml.FXML;
 import javafx.fxml.Initializable;
 import javafx.scene.control.Button;
@@ -48,10 +49,27 @@ public class LoginController implements Initializable {
     }
 
     public void checkLogin() {
+        if (signInBtn.isDisabled()) {
+            return;
+        }
         String mail = txtf_mail.getText(), password = pwf_password.getText();
-        User found = UserDAO.getUserByEmail(mail);
+        signInBtn.setDisable(true);
+
+        // The lookup and the bcrypt check both run off the FX thread
+        AsyncUserDAO.getUserByEmail(mail)
+                .thenApply(found -> found != null && BCrypt.verifyer().verify(password.toCharArray(), found.password).verified ? found : null)
+                .whenComplete((found, error) -> Platform.runLater(() -> {
+                    signInBtn.setDisable(false);
+                    if (error != null) {
+                        System.out.println("LoginController : checkLogin");
+                        error.printStackTrace();
+                    }
+                    openRoom(found);
+                }));
+    }
 
-        if (found != null && BCrypt.verifyer().verify(password.toCharArray(), found.password).verified) {
+    private void openRoom(User found) {
+        if (found != null) {
             try {
                 signInBtn.getScene().getWindow().hide();
                 javafx.fxml.FXMLLoader loader = new javafx.fxml.FXMLLoader(getClass().getResource("/views/room.fxml"));
@@ -124,12 +142,22 @@ public class LoginController implements Initializable {
             return;
         }
 
-        User user = UserDAO.getUserByEmail(email);
-        if (user == null) {
-            showAlert("Email Not Found", "No account found with this email address.");
-            return;
-        }
+        // The full account, as signing in loads it: the room updates it by its email address
+        AsyncUserDAO.getUserByEmail(email).whenComplete((user, error) -> Platform.runLater(() -> {
+            if (error != null) {
+                System.out.println("LoginController : handleForgetPassword");
+                error.printStackTrace();
+                showAlert("Error", "Could not look up your account. Please try again later.");
+            } else if (user == null) {
+                showAlert("Email Not Found", "No account found with this email address.");
+            } else {
+                resetPassword(email, user);
+            }
+        }));
+    }
 
+    // Runs once the account is found: PIN, new password, then the update off the FX thread
+    private void resetPassword(String email, User user) {
         try {
             EmailService.sendConfirmationPin(email, user.displayName);
 
@@ -217,13 +245,20 @@ public class LoginController implements Initializable {
 
             String hashedPassword = BCrypt.withDefaults().hashToString(12, newPassword.toCharArray());
 
-            if (UserDAO.updateUserPassword(email, hashedPassword)) {
-                showAlert("Success", "Your password has been reset successfully! You will now be logged in.");
+            AsyncUserDAO.updateUserPassword(email, hashedPassword).whenComplete((updated, error) -> Platform.runLater(() -> {
+                if (error == null && updated) {
+                    showAlert("Success", "Your password has been reset successfully! You will now be logged in.");
 
-                loginUser(user);
-            } else {
-                showAlert("Error", "Failed to update password. Please try again later.");
-            }
+                    user.password = hashedPassword;
+                    loginUser(user);
+                } else {
+                    if (error != null) {
+                        System.out.println("LoginController : resetPassword");
+                        error.printStackTrace();
+                    }
+                    showAlert("Error", "Failed to update password. Please try again later.");
+                }
+            }));
 
         } catch (Exception e) {
             showAlert("Error", "Failed to send verification email. Please try again later.");
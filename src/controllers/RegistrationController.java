@@ -4,7 +4,7 @@ import java.net.URL;
 import java.util.Optional;
 import java.util.ResourceBundle;
 
-import database.UserDAO;
+import database.AsyncUserDAO;
 import javafx.application.Platform;
 import javafx.event.ActionEvent;
 import javafx.fxml.FXML;
@@ -85,23 +85,36 @@ public class RegistrationController implements Initializable {
             wrongLabel.setVisible(true);
             return;
         }
-        if (UserDAO.getUserByEmail(email) != null) {
-            wrongLabel.setText("Email is already registered");
-            wrongLabel.setVisible(true);
-            return;
-        }
         if (password.isEmpty() || password.length() < 6) {
             wrongLabel.setText("Password must be at least 6 characters");
             wrongLabel.setVisible(true);
             return;
         }
 
-        ID = Integer.parseInt(studentIDText);
+        // Whether the address is taken is the last check, made off the FX thread
+        registerBtn.setDisable(true);
+        AsyncUserDAO.getProfileByEmail(email).whenComplete((existing, error) -> Platform.runLater(() -> {
+            registerBtn.setDisable(false);
+            if (error != null) {
+                System.out.println("RegControl : handleRegister");
+                error.printStackTrace();
+                wrongLabel.setText("Could not check your email address. Please try again.");
+                wrongLabel.setVisible(true);
+                return;
+            }
+            if (existing != null) {
+                wrongLabel.setText("Email is already registered");
+                wrongLabel.setVisible(true);
+                return;
+            }
 
-        wrongLabel.setVisible(false);
-        fullname = fullName;
+            ID = Integer.parseInt(studentIDText);
+
+            wrongLabel.setVisible(false);
+            fullname = fullName;
 
-        sendVerificationEmail(email, displayName, password);
+            sendVerificationEmail(email, displayName, password);
+        }));
     }
 
     private void sendVerificationEmail(String email, String displayName, String password) {
@@ -210,22 +223,36 @@ public class RegistrationController implements Initializable {
     }
 
     private void completeRegistration(String displayName, String email, String password) {
-        try {
-            String hashedPassword = at.favre.lib.crypto.bcrypt.BCrypt.withDefaults()
-                .hashToString(12, password.toCharArray());
-
-            String randomIdentifier = generateUniqueRandomIdentifier();
-
-            User newUser = new User();
-            newUser.id = ID;
-            newUser.fullName = fullname;
-            newUser.displayName = displayName;
-            newUser.emailAddress = email;
-            newUser.password = hashedPassword;
-            newUser.randomIdentifier = randomIdentifier;
-
-            UserDAO.insertUser(newUser);
+        String hashedPassword = at.favre.lib.crypto.bcrypt.BCrypt.withDefaults()
+            .hashToString(12, password.toCharArray());
+
+        User newUser = new User();
+        newUser.id = ID;
+        newUser.fullName = fullname;
+        newUser.displayName = displayName;
+        newUser.emailAddress = email;
+        newUser.password = hashedPassword;
+
+        // randomIdentifier stays null, so insertUser draws a free one
+        registerBtn.setDisable(true);
+        AsyncUserDAO.insertUser(newUser).whenComplete((stored, error) -> Platform.runLater(() -> {
+            registerBtn.setDisable(false);
+            if (error != null || !stored) {
+                wrongLabel.setStyle("-fx-text-fill: red;");
+                wrongLabel.setText("Registration failed. Please try again.");
+                wrongLabel.setVisible(true);
+                if (error != null) {
+                    error.printStackTrace();
+                }
+                System.out.println("RegControl : completeReg");
+                return;
+            }
+            showRoom();
+        }));
+    }
 
+    private void showRoom() {
+        try {
             javafx.scene.control.Alert alert = new javafx.scene.control.Alert(javafx.scene.control.Alert.AlertType.INFORMATION);
             alert.setTitle("Registration Successful");
             alert.setHeaderText("Welcome to Tong!");
@@ -245,27 +272,10 @@ public class RegistrationController implements Initializable {
             wrongLabel.setText("Registration failed. Please try again.");
             wrongLabel.setVisible(true);
             e.printStackTrace();
-            System.out.println("RegControl : completeReg");
+            System.out.println("RegControl : showRoom");
         }
     }
 
-    private String generateUniqueRandomIdentifier() {
-        String characters = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
-        java.util.Random random = new java.util.Random();
-        String randomIdentifier;
-
-        do {
-            StringBuilder sb = new StringBuilder(10);
-            for (int i = 0; i < 10; i++) {
-                int index = random.nextInt(characters.length());
-                sb.append(characters.charAt(index));
-            }
-            randomIdentifier = sb.toString();
-        } while (UserDAO.getUserByRandomID(randomIdentifier) != null);
-
-        return randomIdentifier;
-    }
-
     @FXML
     void loadLogin(ActionEvent event) {
         try {
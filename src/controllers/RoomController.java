@@ -3,7 +3,10 @@ package controllers;
 import java.io.IOException;
 import java.net.Socket;
 
+import client.DirectoryClient;
 import client.ForumClient;
+import client.RoomInfo;
+import database.AsyncUserDAO;
 import database.UserDAO;
 import javafx.application.Platform;
 import javafx.fxml.FXML;
@@ -70,7 +73,6 @@ public class RoomController {
     private static java.util.Map<String, RoomController> activeControllers = new java.util.HashMap<>();
 
     private java.util.Map<String, String> savedDMConnections = new java.util.HashMap<>();
-    private java.util.Map<String, String> savedGCConnections = new java.util.HashMap<>();
 
     private java.util.Map<String, java.util.List<javafx.scene.Node>> chatHistories = new java.util.HashMap<>();
     private String currentChatKey = "forum";
@@ -117,21 +119,26 @@ public class RoomController {
         });
     }
 
+    // A chat that already shows its earlier messages asks the server not to send them again
+    private int historyToRequest() {
+        return vbox_messages.getChildren().isEmpty() ? -1 : 0;
+    }
+
     private void connectToServer() {
         try {
-            Socket socket = new Socket("localhost", 1234);
-            java.io.BufferedWriter bw = new java.io.BufferedWriter(new java.io.OutputStreamWriter(socket.getOutputStream()));
-            bw.write(currentUser.displayName);
-            bw.newLine();
-            bw.flush();
-
-            forumClient = new ForumClient(socket, currentUser.displayName);
+            Socket socket = new Socket(server.Server.DEFAULT_HOST, server.Server.DEFAULT_PORT);
+            forumClient = new ForumClient(socket, currentUser.displayName, null, historyToRequest());
             forumClient.setMessageListener(new ForumClient.ForumMessageListener() {
                 @Override
                 public void onMessageReceived(String message) {
                     Platform.runLater(() -> displayReceivedMessage(message));
                 }
 
+                @Override
+                public void onSystemMessage(String message) {
+                    // Join and leave notices are not shown in the room view
+                }
+
                 @Override
                 public void onConnectionStatusChanged(boolean connected) {
                     isConnectedToServer = connected;
@@ -163,10 +170,6 @@ public class RoomController {
     }
 
     private void displayReceivedMessage(String message) {
-        if (message.startsWith("SERVER:")) {
-            return;
-        }
-
         javafx.scene.Node messageNode = null;
 
         if (message.contains(":")) {
@@ -219,26 +222,24 @@ public class RoomController {
                 messageNode = label;
             }
         } else {
-            if (!message.startsWith("SERVER:")) {
-                Label label = new Label(message);
-                label.setStyle("-fx-text-fill: #757575; -fx-font-style: italic;");
-                label.setWrapText(true);
-                label.setPrefWidth(280);
-                label.setMaxWidth(280);
+            Label label = new Label(message);
+            label.setStyle("-fx-text-fill: #757575; -fx-font-style: italic;");
+            label.setWrapText(true);
+            label.setPrefWidth(280);
+            label.setMaxWidth(280);
 
-                javafx.scene.control.ContextMenu contextMenu = new javafx.scene.control.ContextMenu();
-                javafx.scene.control.MenuItem copyItem = new javafx.scene.control.MenuItem("Copy Message");
-                copyItem.setOnAction(e -> {
-                    javafx.scene.input.Clipboard clipboard = javafx.scene.input.Clipboard.getSystemClipboard();
-                    javafx.scene.input.ClipboardContent clipboardContent = new javafx.scene.input.ClipboardContent();
-                    clipboardContent.putString(message);
-                    clipboard.setContent(clipboardContent);
-                });
-                contextMenu.getItems().add(copyItem);
-                label.setOnContextMenuRequested(e -> contextMenu.show(label, e.getScreenX(), e.getScreenY()));
+            javafx.scene.control.ContextMenu contextMenu = new javafx.scene.control.ContextMenu();
+            javafx.scene.control.MenuItem copyItem = new javafx.scene.control.MenuItem("Copy Message");
+            copyItem.setOnAction(e -> {
+                javafx.scene.input.Clipboard clipboard = javafx.scene.input.Clipboard.getSystemClipboard();
+                javafx.scene.input.ClipboardContent clipboardContent = new javafx.scene.input.ClipboardContent();
+                clipboardContent.putString(message);
+                clipboard.setContent(clipboardContent);
+            });
+            contextMenu.getItems().add(copyItem);
+            label.setOnContextMenuRequested(e -> contextMenu.show(label, e.getScreenX(), e.getScreenY()));
 
-                messageNode = label;
-            }
+            messageNode = label;
         }
 
         if (messageNode != null) {
@@ -287,35 +288,13 @@ public class RoomController {
 
     public void setRandID() {
         if (currentUser != null) {
-            String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
-            StringBuilder sb = new StringBuilder(10);
-            for (int i = 0; i < 10; i++) {
-                int idx = (int) (Math.random() * chars.length());
-                sb.append(chars.charAt(idx));
-            }
-            currentUser.randomIdentifier = sb.toString();
-            UserDAO.updateUserRandomID(currentUser.emailAddress, currentUser.randomIdentifier);
-
-            javafx.scene.control.TextField idField = new javafx.scene.control.TextField(currentUser.randomIdentifier);
-            idField.setEditable(false);
-            idField.setPrefWidth(300);
-
-            Button copyBtn = new Button("Copy");
-            copyBtn.setOnAction(e -> {
-                javafx.scene.input.Clipboard clipboard = javafx.scene.input.Clipboard.getSystemClipboard();
-                javafx.scene.input.ClipboardContent content = new javafx.scene.input.ClipboardContent();
-                content.putString(currentUser.randomIdentifier);
-                clipboard.setContent(content);
-            });
-
-            VBox vbox = new VBox(10, idField, copyBtn);
-            vbox.setPrefWidth(320);
-
-            Alert alert = new Alert(Alert.AlertType.INFORMATION);
-            alert.setTitle("Random ID Set");
-            alert.setHeaderText("Random Identifier Updated");
-            alert.getDialogPane().setContent(vbox);
-            alert.showAndWait();
+            AsyncUserDAO.rotateRandomID(currentUser.emailAddress).whenComplete((newRandomID, error) -> Platform.runLater(() -> {
+                if (error != null) {
+                    System.out.println("RoomController : setRandID");
+                    error.printStackTrace();
+                }
+                showNewRandID(newRandomID);
+            }));
         } else {
             Alert alert = new Alert(Alert.AlertType.ERROR);
             alert.setTitle("Error");
@@ -325,6 +304,39 @@ public class RoomController {
         }
     }
 
+    private void showNewRandID(String newRandomID) {
+        if (newRandomID == null) {
+            Alert alert = new Alert(Alert.AlertType.ERROR);
+            alert.setTitle("Error");
+            alert.setHeaderText("Random ID Not Changed");
+            alert.setContentText("Could not save a new random identifier. Please try again.");
+            alert.showAndWait();
+            return;
+        }
+        currentUser.randomIdentifier = newRandomID;
+
+        javafx.scene.control.TextField idField = new javafx.scene.control.TextField(currentUser.randomIdentifier);
+        idField.setEditable(false);
+        idField.setPrefWidth(300);
+
+        Button copyBtn = new Button("Copy");
+        copyBtn.setOnAction(e -> {
+            javafx.scene.input.Clipboard clipboard = javafx.scene.input.Clipboard.getSystemClipboard();
+            javafx.scene.input.ClipboardContent content = new javafx.scene.input.ClipboardContent();
+            content.putString(currentUser.randomIdentifier);
+            clipboard.setContent(content);
+        });
+
+        VBox vbox = new VBox(10, idField, copyBtn);
+        vbox.setPrefWidth(320);
+
+        Alert alert = new Alert(Alert.AlertType.INFORMATION);
+        alert.setTitle("Random ID Set");
+        alert.setHeaderText("Random Identifier Updated");
+        alert.getDialogPane().setContent(vbox);
+        alert.showAndWait();
+    }
+
     public void editDisplayName() {
         TextField nameField = new TextField();
         nameField.setPromptText("Enter new display name");
@@ -337,14 +349,23 @@ public class RoomController {
         alert.showAndWait().ifPresent(response -> {
             String newName = nameField.getText().trim();
             if (!newName.isEmpty() && currentUser != null) {
-                currentUser.displayName = newName;
-                UserDAO.updateUserDisplayName(currentUser.emailAddress, newName);
-
-                Alert success = new Alert(Alert.AlertType.INFORMATION);
-                success.setTitle("Display Name Updated");
-                success.setHeaderText(null);
-                success.setContentText("Your display name has been updated to: " + newName);
-                success.showAndWait();
+                AsyncUserDAO.updateUserDisplayName(currentUser.emailAddress, newName).whenComplete((updated, error) -> Platform.runLater(() -> {
+                    if (error != null || !Boolean.TRUE.equals(updated)) {
+                        Alert failure = new Alert(Alert.AlertType.ERROR);
+                        failure.setTitle("Error");
+                        failure.setHeaderText("Display Name Not Changed");
+                        failure.setContentText("Could not save your new display name. Please try again.");
+                        failure.showAndWait();
+                        return;
+                    }
+                    currentUser.displayName = newName;
+
+                    Alert success = new Alert(Alert.AlertType.INFORMATION);
+                    success.setTitle("Display Name Updated");
+                    success.setHeaderText(null);
+                    success.setContentText("Your display name has been updated to: " + newName);
+                    success.showAndWait();
+                }));
             } else {
                 Alert error = new Alert(Alert.AlertType.ERROR);
                 error.setTitle("Error");
@@ -532,20 +553,29 @@ public class RoomController {
         gcNameField.setPromptText("Enter Group Chat Name");
         gcNameField.setText("My Group Chat");
 
-        TextField ipField = new TextField();
-        ipField.setPromptText("Enter IP Address (for joining existing GC)");
-        ipField.setText("localhost");
+        // Live group chats come from the server's room directory, first page only
+        javafx.scene.control.ListView<RoomInfo> liveGCList = new javafx.scene.control.ListView<>();
+        liveGCList.setPrefHeight(150);
+        liveGCList.setPlaceholder(new Label("Loading live group chats..."));
+        DirectoryClient.listGroupChatsAsync(server.Server.DEFAULT_HOST, server.Server.DEFAULT_PORT, 0, 20)
+                .whenComplete((rooms, error) -> Platform.runLater(() -> {
+                    if (error != null) {
+                        liveGCList.setPlaceholder(new Label("Room directory unavailable"));
+                    } else {
+                        liveGCList.setPlaceholder(new Label("No live group chats"));
+                        liveGCList.getItems().addAll(rooms);
+                    }
+                }));
 
-        TextField portField = new TextField();
-        portField.setPromptText("Enter Port (for joining existing GC)");
-        portField.setText("3000");
+        TextField gcKeyField = new TextField();
+        gcKeyField.setPromptText("Or enter a Group Chat Key");
 
         grid.add(new Label("GC Name:"), 0, 0);
         grid.add(gcNameField, 1, 0);
-        grid.add(new Label("IP Address (join only):"), 0, 1);
-        grid.add(ipField, 1, 1);
-        grid.add(new Label("Port (join only):"), 0, 2);
-        grid.add(portField, 1, 2);
+        grid.add(new Label("Live GCs (join only):"), 0, 1);
+        grid.add(liveGCList, 1, 1);
+        grid.add(new Label("GC Key (join only):"), 0, 2);
+        grid.add(gcKeyField, 1, 2);
 
         gcDialog.getDialogPane().setContent(grid);
 
@@ -561,40 +591,42 @@ public class RoomController {
 
         if (result.isPresent()) {
             String gcName = gcNameField.getText().trim();
-            String ip = ipField.getText().trim();
-            String portText = portField.getText().trim();
-
-            if (gcName.isEmpty()) {
-                Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-                errorAlert.setTitle("Invalid Input");
-                errorAlert.setHeaderText("Missing Information");
-                errorAlert.setContentText("Please enter a Group Chat name.");
-                errorAlert.showAndWait();
-                return;
-            }
+            RoomInfo selectedGC = liveGCList.getSelectionModel().getSelectedItem();
+            String gcKey = selectedGC != null ? selectedGC.getKey() : gcKeyField.getText().trim();
 
             if (result.get() == createButtonType) {
-                createNewGroupChat(gcName);
-            } else if (result.get() == joinButtonType) {
-                if (ip.isEmpty() || portText.isEmpty()) {
+                if (gcName.isEmpty()) {
                     Alert errorAlert = new Alert(Alert.AlertType.ERROR);
                     errorAlert.setTitle("Invalid Input");
                     errorAlert.setHeaderText("Missing Information");
-                    errorAlert.setContentText("Please enter both IP address and port number to join an existing Group Chat.");
+                    errorAlert.setContentText("Please enter a Group Chat name.");
                     errorAlert.showAndWait();
                     return;
                 }
 
-                try {
-                    int port = Integer.parseInt(portText);
-                    joinExistingGroupChat(gcName, ip, port);
-                } catch (NumberFormatException e) {
+                createNewGroupChat(gcName);
+            } else if (result.get() == joinButtonType) {
+                if (gcKey.isEmpty()) {
                     Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-                    errorAlert.setTitle("Invalid Port");
-                    errorAlert.setHeaderText("Invalid Port Number");
-                    errorAlert.setContentText("Please enter a valid port number.");
+                    errorAlert.setTitle("Invalid Input");
+                    errorAlert.setHeaderText("Missing Information");
+                    errorAlert.setContentText("Please pick a live Group Chat or enter its key.");
                     errorAlert.showAndWait();
+                    return;
                 }
+
+                lookupRoom(gcKey, gcInfo -> {
+                    if (gcInfo == null) {
+                        Alert errorAlert = new Alert(Alert.AlertType.ERROR);
+                        errorAlert.setTitle("Group Chat Not Found");
+                        errorAlert.setHeaderText("Unknown Group Chat");
+                        errorAlert.setContentText("No live Group Chat found with key: " + gcKey);
+                        errorAlert.showAndWait();
+                        return;
+                    }
+
+                    joinExistingGroupChat(gcInfo);
+                });
             }
         }
     }
@@ -604,17 +636,6 @@ public class RoomController {
             // Create unique key for this group chat
             String gcKey = "gc_" + gcName.replaceAll("\\s+", "_") + "_" + System.currentTimeMillis();
 
-            // Create GC server
-            server.GCServer gcServer = server.GCServer.createGCServer(gcKey, gcName);
-            if (gcServer == null) {
-                Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-                errorAlert.setTitle("Server Creation Failed");
-                errorAlert.setHeaderText("Cannot Create GC Server");
-                errorAlert.setContentText("Failed to create Group Chat server.");
-                errorAlert.showAndWait();
-                return;
-            }
-
             // Load the GC FXML
             javafx.fxml.FXMLLoader loader = new javafx.fxml.FXMLLoader(getClass().getResource("/views/gc.fxml"));
             javafx.scene.Parent root = loader.load();
@@ -622,7 +643,7 @@ public class RoomController {
             // Get the controller and set the information
             controllers.GCController gcController = loader.getController();
             gcController.setCurrentUser(currentUser);
-            gcController.setGCInfo(gcName, gcKey, gcServer);
+            gcController.setGCInfo(gcName, gcKey);
 
             // Create new stage
             javafx.stage.Stage gcStage = new javafx.stage.Stage();
@@ -635,11 +656,11 @@ public class RoomController {
 
             Alert successAlert = new Alert(Alert.AlertType.INFORMATION);
             successAlert.setTitle("Group Chat Created");
-            successAlert.setHeaderText("Server Started");
+            successAlert.setHeaderText("Group Chat Ready");
             successAlert.setContentText(
                 "Group Chat '" + gcName + "' created successfully!\n" +
-                "Port: " + gcServer.getPort() + "\n\n" +
-                "Share this port with others to join your Group Chat."
+                "Key: " + gcKey + "\n\n" +
+                "Share this key with others to join your Group Chat."
             );
             successAlert.showAndWait();
 
@@ -653,11 +674,21 @@ public class RoomController {
         }
     }
 
-    private void joinExistingGroupChat(String gcName, String ip, int port) {
-        try {
-            // Create a unique key for joining
-            String gcKey = "gc_join_" + gcName.replaceAll("\\s+", "_") + "_" + ip.replaceAll("\\.", "_") + "_" + port;
+    // Looks the room up off the FX thread and hands the result, null if unknown or unreachable, back on it
+    private void lookupRoom(String roomKey, java.util.function.Consumer<RoomInfo> onFound) {
+        DirectoryClient.lookupAsync(server.Server.DEFAULT_HOST, server.Server.DEFAULT_PORT, roomKey)
+                .whenComplete((info, error) -> Platform.runLater(() -> {
+                    if (error != null) {
+                        System.out.println("RoomController : lookupRoom");
+                        error.printStackTrace();
+                    }
+                    onFound.accept(error != null ? null : info);
+                }));
+    }
 
+    private void joinExistingGroupChat(RoomInfo gcInfo) {
+        String gcName = gcInfo.getName();
+        try {
             // Load the GC FXML
             javafx.fxml.FXMLLoader loader = new javafx.fxml.FXMLLoader(getClass().getResource("/views/gc.fxml"));
             javafx.scene.Parent root = loader.load();
@@ -665,11 +696,11 @@ public class RoomController {
             // Get the controller and set the information
             controllers.GCController gcController = loader.getController();
             gcController.setCurrentUser(currentUser);
-            gcController.setGCInfoForJoining(gcName, gcKey, ip, port);
+            gcController.setGCInfoForJoining(gcName, gcInfo.getKey(), gcInfo.getHost(), gcInfo.getPort());
 
             // Create new stage
             javafx.stage.Stage gcStage = new javafx.stage.Stage();
-            gcStage.setTitle("Tong - Group Chat: " + gcName + " (" + ip + ":" + port + ")");
+            gcStage.setTitle("Tong - Group Chat: " + gcName);
             gcStage.setScene(new javafx.scene.Scene(root));
             gcStage.setResizable(false);
 
@@ -686,145 +717,6 @@ public class RoomController {
         }
     }
 
-    private void joinGroupChat(String gcName, String ip, int port) {
-        try {
-            // Create unique key for this group chat
-            String gcKey = "gc_" + ip + "_" + port + "_" + gcName.replaceAll("\\s+", "_");
-
-            // Initialize chat history for this GC if it doesn't exist
-            if (!chatHistories.containsKey(gcKey)) {
-                chatHistories.put(gcKey, new java.util.ArrayList<>());
-            }
-
-            // Restore chat history for this group chat
-            restoreChatHistory(gcKey);
-
-            // Disconnect from current server if connected
-            if (forumClient != null) {
-                forumClient.closeEverything(null, null, null);
-            }
-
-            // Try to connect to existing GC server or create one
-            server.GCServer gcServer = server.GCServer.getGCServer(gcKey);
-            if (gcServer == null) {
-                // Server doesn't exist, try to create one at the specified port
-                try {
-                    gcServer = server.GCServer.createGCServer(gcKey, gcName);
-                    if (gcServer == null) {
-                        throw new IOException("Failed to create GC server");
-                    }
-                    // Wait for server to start
-                    Thread.sleep(1000);
-                } catch (Exception e) {
-                    // If we can't create server, try to connect to existing one
-                }
-            }
-
-            // Connect to the GC server
-            int connectPort = (gcServer != null) ? gcServer.getPort() : port;
-            Socket socket = new Socket(ip, connectPort);
-            java.io.BufferedWriter bw = new java.io.BufferedWriter(new java.io.OutputStreamWriter(socket.getOutputStream()));
-            bw.write(currentUser.displayName);
-            bw.newLine();
-            bw.flush();
-
-            // Create new ForumClient for group chat
-            forumClient = new ForumClient(socket, currentUser.displayName);
-            forumClient.setMessageListener(new ForumClient.ForumMessageListener() {
-                @Override
-                public void onMessageReceived(String message) {
-                    Platform.runLater(() -> displayReceivedMessage(message));
-                }
-
-                @Override
-                public void onConnectionStatusChanged(boolean connected) {
-                    isConnectedToServer = connected;
-                    if (!connected) {
-                        Platform.runLater(() -> {
-                            Alert alert = new Alert(Alert.AlertType.WARNING);
-                            alert.setTitle("GC Connection Lost");
-                            alert.setHeaderText("Group Chat Connection Lost");
-                            alert.setContentText("Connection to the group chat has been lost.");
-                            alert.showAndWait();
-                        });
-                    }
-                }
-            });
-
-            forumClient.listenForMessage();
-            isConnectedToServer = true;
-
-            // Update UI with GC name
-            headLabel.setText("Group Chat");
-            detailsLabel.setText(gcName);
-            detailsLabel.setVisible(true);
-
-            // Save this GC connection
-            savedGCConnections.put(ip + ":" + connectPort, gcName);
-
-            Alert successAlert = new Alert(Alert.AlertType.INFORMATION);
-            successAlert.setTitle("Connected");
-            successAlert.setHeaderText("Group Chat Joined");
-            successAlert.setContentText("Successfully connected to " + gcName + " at " + ip + ":" + connectPort);
-            successAlert.showAndWait();
-
-        } catch (IOException e) {
-            Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-            errorAlert.setTitle("Connection Failed");
-            errorAlert.setHeaderText("Cannot Join Group Chat");
-            errorAlert.setContentText("Failed to connect to " + gcName + " at " + ip + ":" + port +
-                                    "\nPlease check the IP address and port, and ensure the server is running.");
-            errorAlert.showAndWait();
-            isConnectedToServer = false;
-        } catch (Exception e) {
-            if (e instanceof InterruptedException) {
-                Thread.currentThread().interrupt();
-            }
-            Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-            errorAlert.setTitle("Connection Failed");
-            errorAlert.setHeaderText("Cannot Join Group Chat");
-            errorAlert.setContentText("Failed to connect to " + gcName + ": " + e.getMessage());
-            errorAlert.showAndWait();
-            isConnectedToServer = false;
-        }
-    }    private void createGroupChat(String gcName, String ip, int port) {
-        try {
-            // Create unique key for this group chat
-            String gcKey = "gc_" + ip + "_" + port + "_" + gcName.replaceAll("\\s+", "_");
-
-            // Create GC server
-            server.GCServer gcServer = server.GCServer.createGCServer(gcKey, gcName);
-            if (gcServer == null) {
-                Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-                errorAlert.setTitle("Server Creation Failed");
-                errorAlert.setHeaderText("Cannot Create Group Chat Server");
-                errorAlert.setContentText("Failed to create group chat server.");
-                errorAlert.showAndWait();
-                return;
-            }
-
-            // Wait a moment for server to start, then connect to it
-            Thread.sleep(1000);
-
-            // Connect to the newly created server
-            joinGroupChat(gcName, "localhost", gcServer.getPort());
-
-            Alert successAlert = new Alert(Alert.AlertType.INFORMATION);
-            successAlert.setTitle("Group Chat Created");
-            successAlert.setHeaderText("Server Started");
-            successAlert.setContentText("Group chat '" + gcName + "' created on port " + gcServer.getPort() +
-                                      "\nShare 'localhost:" + gcServer.getPort() + "' with others to join your group chat!");
-            successAlert.showAndWait();
-
-        } catch (Exception e) {
-            Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-            errorAlert.setTitle("Server Error");
-            errorAlert.setHeaderText("Group Chat Creation Failed");
-            errorAlert.setContentText("Failed to create group chat server: " + e.getMessage());
-            errorAlert.showAndWait();
-        }
-    }
-
     public void enterDM() {
         // Create custom dialog for DM options
         Alert dmDialog = new Alert(Alert.AlertType.NONE);
@@ -840,20 +732,8 @@ public class RoomController {
         TextField targetUserField = new TextField();
         targetUserField.setPromptText("Enter target user's Random ID");
 
-        TextField ipField = new TextField();
-        ipField.setPromptText("Enter IP Address (for joining existing DM)");
-        ipField.setText("localhost");
-
-        TextField portField = new TextField();
-        portField.setPromptText("Enter Port (for joining existing DM)");
-        portField.setText("2000");
-
         grid.add(new Label("Target User ID:"), 0, 0);
         grid.add(targetUserField, 1, 0);
-        grid.add(new Label("IP Address (join only):"), 0, 1);
-        grid.add(ipField, 1, 1);
-        grid.add(new Label("Port (join only):"), 0, 2);
-        grid.add(portField, 1, 2);
 
         dmDialog.getDialogPane().setContent(grid);
 
@@ -867,80 +747,83 @@ public class RoomController {
         // Handle button clicks
         java.util.Optional<javafx.scene.control.ButtonType> result = dmDialog.showAndWait();
 
-        if (result.isPresent()) {
+        if (result.isPresent() && (result.get() == createButtonType || result.get() == joinButtonType)) {
             String targetUserID = targetUserField.getText().trim();
-            String ip = ipField.getText().trim();
-            String portText = portField.getText().trim();
+            boolean create = result.get() == createButtonType;
 
-            if (result.get() == createButtonType) {
-                if (targetUserID.isEmpty()) {
-                    Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-                    errorAlert.setTitle("Invalid Input");
-                    errorAlert.setHeaderText("Missing Information");
-                    errorAlert.setContentText("Please enter the target user's Random ID.");
-                    errorAlert.showAndWait();
-                    return;
-                }
-
-                // Check if the random ID exists in database
-                User targetUser = UserDAO.getUserByRandomID(targetUserID);
+            if (targetUserID.isEmpty()) {
+                Alert errorAlert = new Alert(Alert.AlertType.ERROR);
+                errorAlert.setTitle("Invalid Input");
+                errorAlert.setHeaderText("Missing Information");
+                errorAlert.setContentText("Please enter the target user's Random ID.");
+                errorAlert.showAndWait();
+                return;
+            }
 
-                if (targetUser == null) {
+            // Check if the random ID exists in database, off the FX thread
+            AsyncUserDAO.getProfileByRandomID(targetUserID).whenComplete((targetUser, error) -> Platform.runLater(() -> {
+                if (error != null) {
+                    System.out.println("RoomController : enterDM");
+                    error.printStackTrace();
                     Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-                    errorAlert.setTitle("User Not Found");
-                    errorAlert.setHeaderText("Invalid Random ID");
-                    errorAlert.setContentText("No user found with the Random ID: " + targetUserID);
+                    errorAlert.setTitle("Lookup Failed");
+                    errorAlert.setHeaderText("Database Unavailable");
+                    errorAlert.setContentText("Could not look up the Random ID. Please try again.");
                     errorAlert.showAndWait();
-                    return;
+                } else if (create) {
+                    createDMWith(targetUserID, targetUser);
+                } else {
+                    joinDMWith(targetUserID, targetUser);
                 }
+            }));
+        }
+    }
 
-                if (targetUser.randomIdentifier.equals(currentUser.randomIdentifier)) {
-                    Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-                    errorAlert.setTitle("Invalid Target");
-                    errorAlert.setHeaderText("Cannot DM Yourself");
-                    errorAlert.setContentText("You cannot start a DM with yourself.");
-                    errorAlert.showAndWait();
-                    return;
-                }
+    private void createDMWith(String targetUserID, User targetUser) {
+        if (targetUser == null) {
+            Alert errorAlert = new Alert(Alert.AlertType.ERROR);
+            errorAlert.setTitle("User Not Found");
+            errorAlert.setHeaderText("Invalid Random ID");
+            errorAlert.setContentText("No user found with the Random ID: " + targetUserID);
+            errorAlert.showAndWait();
+            return;
+        }
 
-                createDirectMessage(targetUser);
-            } else if (result.get() == joinButtonType) {
-                if (targetUserID.isEmpty() || portText.isEmpty()) {
-                    Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-                    errorAlert.setTitle("Invalid Input");
-                    errorAlert.setHeaderText("Missing Information");
-                    errorAlert.setContentText("Please enter both target user ID and port number.");
-                    errorAlert.showAndWait();
-                    return;
-                }
+        if (targetUser.randomIdentifier.equals(currentUser.randomIdentifier)) {
+            Alert errorAlert = new Alert(Alert.AlertType.ERROR);
+            errorAlert.setTitle("Invalid Target");
+            errorAlert.setHeaderText("Cannot DM Yourself");
+            errorAlert.setContentText("You cannot start a DM with yourself.");
+            errorAlert.showAndWait();
+            return;
+        }
 
-                try {
-                    int port = Integer.parseInt(portText);
-                    User targetUser = UserDAO.getUserByRandomID(targetUserID);
-                    if (targetUser == null) {
-                        Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-                        errorAlert.setTitle("User Not Found");
-                        errorAlert.setHeaderText("Invalid Random ID");
-                        errorAlert.setContentText("No user found with the Random ID: " + targetUserID);
-                        errorAlert.showAndWait();
-                        return;
-                    }
+        createDirectMessage(targetUser);
+    }
 
-                    // Use localhost if IP is empty
-                    if (ip.isEmpty()) {
-                        ip = "localhost";
-                    }
+    private void joinDMWith(String targetUserID, User targetUser) {
+        if (targetUser == null) {
+            Alert errorAlert = new Alert(Alert.AlertType.ERROR);
+            errorAlert.setTitle("User Not Found");
+            errorAlert.setHeaderText("Invalid Random ID");
+            errorAlert.setContentText("No user found with the Random ID: " + targetUserID);
+            errorAlert.showAndWait();
+            return;
+        }
 
-                    joinExistingDirectMessage(targetUser, ip, port);
-                } catch (NumberFormatException e) {
-                    Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-                    errorAlert.setTitle("Invalid Port");
-                    errorAlert.setHeaderText("Invalid Port Number");
-                    errorAlert.setContentText("Please enter a valid port number.");
-                    errorAlert.showAndWait();
-                }
+        // The DM key is derived from both IDs, so one directory lookup finds the room
+        lookupRoom(createDMKey(currentUser.randomIdentifier, targetUser.randomIdentifier), dmInfo -> {
+            if (dmInfo == null) {
+                Alert errorAlert = new Alert(Alert.AlertType.ERROR);
+                errorAlert.setTitle("DM Not Found");
+                errorAlert.setHeaderText("No Open DM");
+                errorAlert.setContentText(targetUser.displayName + " has not opened a DM with you yet. Ask them to create it first.");
+                errorAlert.showAndWait();
+                return;
             }
-        }
+
+            joinExistingDirectMessage(targetUser, dmInfo);
+        });
     }
 
     private void createDirectMessage(User targetUser) {
@@ -948,17 +831,6 @@ public class RoomController {
             // Create unique DM key
             String dmKey = createDMKey(currentUser.randomIdentifier, targetUser.randomIdentifier);
 
-            // Create DM server
-            server.DMServer dmServer = server.DMServer.createDMServer(dmKey);
-            if (dmServer == null) {
-                Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-                errorAlert.setTitle("Server Creation Failed");
-                errorAlert.setHeaderText("Cannot Create DM Server");
-                errorAlert.setContentText("Failed to create Direct Message server.");
-                errorAlert.showAndWait();
-                return;
-            }
-
             // Load the DM FXML
             javafx.fxml.FXMLLoader loader = new javafx.fxml.FXMLLoader(getClass().getResource("/views/dm.fxml"));
             javafx.scene.Parent root = loader.load();
@@ -966,7 +838,7 @@ public class RoomController {
             // Get the controller and set the information
             controllers.DMController dmController = loader.getController();
             dmController.setCurrentUser(currentUser);
-            dmController.setDMInfo(targetUser, dmKey, dmServer);
+            dmController.setDMInfo(targetUser, dmKey);
 
             // Create new stage
             javafx.stage.Stage dmStage = new javafx.stage.Stage();
@@ -979,13 +851,11 @@ public class RoomController {
 
             Alert successAlert = new Alert(Alert.AlertType.INFORMATION);
             successAlert.setTitle("Direct Message Created");
-            successAlert.setHeaderText("DM Server Started");
+            successAlert.setHeaderText("DM Ready");
             successAlert.setContentText(
-                "Direct Message with " + targetUser.displayName + " created successfully!\n" +
-                "Port: " + dmServer.getPort() + "\n\n" +
-                "Share this port with " + targetUser.displayName + " to connect:\n" +
-                "They should use 'Join Existing DM' with port " + dmServer.getPort() +
-                " and your Random ID: " + currentUser.randomIdentifier
+                "Direct Message with " + targetUser.displayName + " created successfully!\n\n" +
+                "Ask " + targetUser.displayName + " to connect:\n" +
+                "They should use 'Join Existing DM' with your Random ID: " + currentUser.randomIdentifier
             );
             successAlert.showAndWait();
 
@@ -999,11 +869,8 @@ public class RoomController {
         }
     }
 
-    private void joinExistingDirectMessage(User targetUser, String ip, int port) {
+    private void joinExistingDirectMessage(User targetUser, RoomInfo dmInfo) {
         try {
-            // Create unique DM key
-            String dmKey = createDMKey(currentUser.randomIdentifier, targetUser.randomIdentifier);
-
             // Load the DM FXML
             javafx.fxml.FXMLLoader loader = new javafx.fxml.FXMLLoader(getClass().getResource("/views/dm.fxml"));
             javafx.scene.Parent root = loader.load();
@@ -1011,7 +878,7 @@ public class RoomController {
             // Get the controller and set the information
             controllers.DMController dmController = loader.getController();
             dmController.setCurrentUser(currentUser);
-            dmController.setDMInfoForJoining(targetUser, dmKey, ip, port);
+            dmController.setDMInfoForJoining(targetUser, dmInfo.getKey(), dmInfo.getHost(), dmInfo.getPort());
 
             // Create new stage
             javafx.stage.Stage dmStage = new javafx.stage.Stage();
@@ -1200,47 +1067,29 @@ public class RoomController {
         // Set chat type
         ct = chatType.DM;
 
-        // Create or get DM server
-        server.DMServer dmServer = server.DMServer.getDMServer(dmKey);
-        if (dmServer == null) {
-            dmServer = server.DMServer.createDMServer(dmKey);
-            if (dmServer == null) {
-                Platform.runLater(() -> {
-                    Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-                    errorAlert.setTitle("DM Server Error");
-                    errorAlert.setHeaderText("Cannot Create DM Server");
-                    errorAlert.setContentText("Failed to create DM server for this conversation.");
-                    errorAlert.showAndWait();
-                });
-                return;
-            }
-        }
-
         // Connect to DM server
         try {
-            // Wait a moment for server to be ready
-            Thread.sleep(500);
-
             // Disconnect from current server if connected
             if (forumClient != null) {
                 forumClient.closeEverything(null, null, null);
             }
 
             // Connect to DM server
-            Socket socket = new Socket("localhost", dmServer.getPort());
-            java.io.BufferedWriter bw = new java.io.BufferedWriter(new java.io.OutputStreamWriter(socket.getOutputStream()));
-            bw.write(currentUser.displayName);
-            bw.newLine();
-            bw.flush();
+            Socket socket = new Socket(server.Server.DEFAULT_HOST, server.Server.DEFAULT_PORT);
 
             // Create new ForumClient for DM
-            forumClient = new ForumClient(socket, currentUser.displayName);
+            forumClient = new ForumClient(socket, currentUser.displayName, server.ConnectionRouter.JOIN_DM + dmKey, historyToRequest());
             forumClient.setMessageListener(new ForumClient.ForumMessageListener() {
                 @Override
                 public void onMessageReceived(String message) {
                     Platform.runLater(() -> displayReceivedMessage(message));
                 }
 
+                @Override
+                public void onSystemMessage(String message) {
+                    // Join and leave notices are not shown in the room view
+                }
+
                 @Override
                 public void onConnectionStatusChanged(boolean connected) {
                     isConnectedToServer = connected;
@@ -1285,6 +1134,7 @@ public class RoomController {
         if (forumClient != null) {
             forumClient.closeEverything(null, null, null);
         }
+        System.out.println("Closing room: " + UserDAO.describeCache() + "; " + AsyncUserDAO.describe());
     }
     private javafx.scene.layout.HBox createActiveDMRow(String dmKey) {
         javafx.scene.layout.HBox row = new javafx.scene.layout.HBox(10);
@@ -1305,7 +1155,7 @@ public class RoomController {
 
         if (otherUserID != null) {
             final String finalOtherUserID = otherUserID; // Make effectively final
-            User otherUser = UserDAO.getUserByRandomID(finalOtherUserID);
+            User otherUser = UserDAO.getProfileByRandomID(finalOtherUserID);
             String displayName = otherUser != null ? otherUser.displayName : "Unknown User";
 
             Label infoLabel = new Label("DM with " + displayName + " (" + finalOtherUserID + ")");
@@ -1340,6 +1190,8 @@ public class RoomController {
     }
 
     private void connectToSavedDM(String randomID) {
+        User targetUser = UserDAO.getProfileByRandomID(randomID);
+
         // First check if we already have this DM in our chat history
         String dmKey = null;
         for (String key : chatHistories.keySet()) {
@@ -1351,7 +1203,6 @@ public class RoomController {
 
         if (dmKey != null) {
             // We have an existing DM history, switch to it directly
-            User targetUser = UserDAO.getUserByRandomID(randomID);
             if (targetUser != null) {
                 this.currentDMUser = targetUser;
                 this.currentDMKey = dmKey;
@@ -1368,7 +1219,6 @@ public class RoomController {
         }
 
         // No existing DM, create new request
-        User targetUser = UserDAO.getUserByRandomID(randomID);
         if (targetUser == null) {
             Alert errorAlert = new Alert(Alert.AlertType.ERROR);
             errorAlert.setTitle("User Not Found");
@@ -1390,28 +1240,4 @@ public class RoomController {
         // Send DM request
         sendDMRequest(targetUser);
     }
-
-    private void connectToSavedGC(String ipPort, String gcName) {
-        String[] parts = ipPort.split(":");
-        if (parts.length != 2) {
-            Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-            errorAlert.setTitle("Invalid Address");
-            errorAlert.setHeaderText("Invalid IP:Port Format");
-            errorAlert.setContentText("Please use format IP:Port (e.g., localhost:5000)");
-            errorAlert.showAndWait();
-            return;
-        }
-
-        String ip = parts[0].trim();
-        try {
-            int port = Integer.parseInt(parts[1].trim());
-            joinGroupChat(gcName, ip, port);
-        } catch (NumberFormatException e) {
-            Alert errorAlert = new Alert(Alert.AlertType.ERROR);
-            errorAlert.setTitle("Invalid Port");
-            errorAlert.setHeaderText("Invalid Port Number");
-            errorAlert.setContentText("Please enter a valid port number.");
-            errorAlert.showAndWait();
-        }
-    }
 }
@@ -0,0 +1,152 @@
+package database;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import models.User;
+
+/**
+ * UserDAO for the JavaFX thread: every operation runs on a small pool of database threads and
+ * completes a CompletableFuture, which controllers finish with one Platform.runLater. The pool
+ * has as many threads as the connection pool has connections and a bounded queue; past that,
+ * futures fail straight away rather than piling up work behind a slow database. Operations call
+ * UserDAO's Checked methods, so an SQLException fails the future, wrapped in a
+ * CompletionException, where UserDAO itself would have printed it and returned null or false. Each operation records how long it took, queue wait
+ * included, and how often it failed, so describe() shows which calls hurt.
+ */
+public class AsyncUserDAO {
+    private static final int QUEUE_CAPACITY = 256;
+
+    private static final ThreadPoolExecutor executor = newExecutor();
+    private static final Map<String, Latency> latencies = new ConcurrentHashMap<>();
+
+    // A UserDAO Checked method
+    @FunctionalInterface
+    private interface SqlCall<T> {
+        T call() throws SQLException;
+    }
+
+    private static final class Latency {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+    }
+
+    private static ThreadPoolExecutor newExecutor() {
+        int threads = Math.max(1, Integer.getInteger("tong.db.pool.size", 10));
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(QUEUE_CAPACITY), runnable -> {
+            Thread thread = new Thread(runnable, "tong-db-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    public static CompletableFuture<Boolean> insertUser(User user) {
+        return run("insertUser", () -> UserDAO.insertUserChecked(user));
+    }
+
+    public static CompletableFuture<User> getUserById(int id) {
+        return run("getUserById", () -> UserDAO.getUserByIdChecked(id));
+    }
+
+    public static CompletableFuture<User> getUserByEmail(String address) {
+        return run("getUserByEmail", () -> UserDAO.getUserByEmailChecked(address));
+    }
+
+    public static CompletableFuture<User> getUserByRandomID(String randID) {
+        return run("getUserByRandomID", () -> UserDAO.getUserByRandomIDChecked(randID));
+    }
+
+    public static CompletableFuture<Boolean> updateUserPassword(String email, String newHashedPassword) {
+        return run("updateUserPassword", () -> UserDAO.updateUserPasswordChecked(email, newHashedPassword));
+    }
+
+    public static CompletableFuture<String> rotateRandomID(String email) {
+        return run("rotateRandomID", () -> UserDAO.rotateRandomIDChecked(email));
+    }
+
+    public static CompletableFuture<Boolean> updateUserRandomID(String email, String newRandomID) {
+        return run("updateUserRandomID", () -> UserDAO.updateUserRandomIDChecked(email, newRandomID));
+    }
+
+    public static CompletableFuture<Boolean> updateUserDisplayName(String email, String newDisplayName) {
+        return run("updateUserDisplayName", () -> UserDAO.updateUserDisplayNameChecked(email, newDisplayName));
+    }
+
+    public static CompletableFuture<User> getProfileByRandomID(String randID) {
+        return run("getProfileByRandomID", () -> UserDAO.getProfileByRandomIDChecked(randID));
+    }
+
+    public static CompletableFuture<User> getProfileByEmail(String address) {
+        return run("getProfileByEmail", () -> UserDAO.getProfileByEmailChecked(address));
+    }
+
+    public static CompletableFuture<Map<String, User>> getProfilesByRandomIDs(Collection<String> randIDs) {
+        return run("getProfilesByRandomIDs", () -> UserDAO.getProfilesByRandomIDsChecked(randIDs));
+    }
+
+    public static CompletableFuture<Map<Integer, User>> getProfilesByIds(Collection<Integer> ids) {
+        return run("getProfilesByIds", () -> UserDAO.getProfilesByIdsChecked(ids));
+    }
+
+    // Completes exceptionally with RejectedExecutionException when the queue is full, and with the
+    // SQLException of a call that hit one
+    private static <T> CompletableFuture<T> run(String operation, SqlCall<T> call) {
+        Latency latency = latencies.computeIfAbsent(operation, _ -> new Latency());
+        long queued = System.nanoTime();
+        try {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return call.call();
+                } catch (SQLException e) {
+                    latency.failures.increment();
+                    throw new CompletionException(e);
+                } catch (RuntimeException e) {
+                    latency.failures.increment();
+                    throw e;
+                } finally {
+                    long elapsed = System.nanoTime() - queued;
+                    latency.calls.increment();
+                    latency.nanos.add(elapsed);
+                    latency.maxNanos.accumulate(elapsed);
+                }
+            }, executor);
+        } catch (RejectedExecutionException e) {
+            latency.failures.increment();
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    // One entry per operation used so far: calls, average and max milliseconds, failures
+    public static String describe() {
+        StringBuilder sb = new StringBuilder("db calls queued=").append(executor.getQueue().size());
+        latencies.entrySet().stream().sorted(Map.Entry.comparingByKey()).forEach(entry -> {
+            Latency latency = entry.getValue();
+            long calls = latency.calls.sum();
+            double averageMillis = calls == 0 ? 0 : latency.nanos.sum() / 1e6 / calls;
+            sb.append(", ").append(entry.getKey()).append('=').append(calls)
+                    .append(" (avg ").append(String.format("%.1f", averageMillis))
+                    .append("ms, max ").append(String.format("%.1f", latency.maxNanos.get() / 1e6)).append("ms");
+            if (latency.failures.sum() > 0) {
+                sb.append(", ").append(latency.failures.sum()).append(" failed");
+            }
+            sb.append(')');
+        });
+        return sb.toString();
+    }
+}
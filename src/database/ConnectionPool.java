@@ -0,0 +1,242 @@
+package database;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of JDBC connections. Callers get a wrapper whose close() hands the connection
+ * back instead of closing it, so code written against DriverManager keeps working unchanged.
+ * A fair semaphore bounds how many are out at once and serves waiting callers in arrival order.
+ * Idle connections are reused newest first, checked with isValid() if they sat idle for a while,
+ * and replaced once they are older than the max lifetime; a daemon thread closes the ones left
+ * idle too long.
+ */
+class ConnectionPool {
+    private static final long VALIDATE_AFTER_IDLE_MILLIS = 1000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final long waitTimeoutMillis;
+    private final long maxLifetimeMillis;
+    private final long idleTimeoutMillis;
+
+    private final Semaphore permits;
+    // Newest at the head; guarded by itself
+    private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>();
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder retired = new LongAdder();
+
+    ConnectionPool(String url, String user, String password, int maxSize, long waitTimeoutMillis, long maxLifetimeMillis, long idleTimeoutMillis) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.waitTimeoutMillis = waitTimeoutMillis;
+        this.maxLifetimeMillis = maxLifetimeMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.permits = new Semaphore(maxSize, true);
+
+        Thread evictor = new Thread(this::evictLoop, "tong-db-pool-evictor");
+        evictor.setDaemon(true);
+        evictor.start();
+    }
+
+    Connection borrow() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(waitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.increment();
+                throw new SQLException("No database connection free after " + waitTimeoutMillis + "ms (" + describe() + ")");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        long waited = System.nanoTime() - start;
+        waitNanos.add(waited);
+        maxWaitNanos.accumulate(waited);
+        borrows.increment();
+
+        try {
+            PooledConnection pooled = takeUsable();
+            if (pooled == null) {
+                pooled = new PooledConnection(DriverManager.getConnection(url, user, password));
+                created.increment();
+            }
+            active.incrementAndGet();
+            return pooled.lend();
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    // The newest idle connection still worth using; stale ones found on the way are closed
+    private PooledConnection takeUsable() {
+        while (true) {
+            PooledConnection pooled;
+            synchronized (idle) {
+                pooled = idle.pollFirst();
+            }
+            if (pooled == null) {
+                return null;
+            }
+
+            long now = System.currentTimeMillis();
+            if (now - pooled.createdMillis < maxLifetimeMillis
+                    && (now - pooled.idleSinceMillis < VALIDATE_AFTER_IDLE_MILLIS || isValid(pooled.connection))) {
+                return pooled;
+            }
+            retire(pooled);
+        }
+    }
+
+    private void release(PooledConnection pooled) {
+        active.decrementAndGet();
+        try {
+            boolean reusable = !pooled.connection.isClosed() && System.currentTimeMillis() - pooled.createdMillis < maxLifetimeMillis;
+            if (reusable && !pooled.connection.getAutoCommit()) {
+                // Whatever the borrower left uncommitted must not leak into the next one
+                pooled.connection.rollback();
+                pooled.connection.setAutoCommit(true);
+            }
+            if (reusable) {
+                pooled.idleSinceMillis = System.currentTimeMillis();
+                synchronized (idle) {
+                    idle.addFirst(pooled);
+                }
+            } else {
+                retire(pooled);
+            }
+        } catch (SQLException e) {
+            retire(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void evictLoop() {
+        while (true) {
+            try {
+                Thread.sleep(Math.max(1000, Math.min(idleTimeoutMillis, maxLifetimeMillis) / 2));
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            ArrayDeque<PooledConnection> expired = new ArrayDeque<>();
+            synchronized (idle) {
+                Iterator<PooledConnection> iterator = idle.iterator();
+                while (iterator.hasNext()) {
+                    PooledConnection pooled = iterator.next();
+                    if (now - pooled.idleSinceMillis >= idleTimeoutMillis || now - pooled.createdMillis >= maxLifetimeMillis) {
+                        iterator.remove();
+                        expired.add(pooled);
+                    }
+                }
+            }
+            expired.forEach(this::retire);
+        }
+    }
+
+    private static boolean isValid(Connection connection) {
+        try {
+            return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private void retire(PooledConnection pooled) {
+        retired.increment();
+        try {
+            pooled.connection.close();
+        } catch (SQLException e) {
+            System.out.println("ConnectionPool : retire");
+        }
+    }
+
+    String describe() {
+        int idleCount;
+        synchronized (idle) {
+            idleCount = idle.size();
+        }
+        long borrowCount = borrows.sum();
+        double averageMillis = borrowCount == 0 ? 0 : waitNanos.sum() / 1e6 / borrowCount;
+        return "pool active=" + active.get()
+                + ", idle=" + idleCount
+                + ", waiting=" + permits.getQueueLength()
+                + ", borrows=" + borrowCount
+                + ", wait avg " + String.format("%.2f", averageMillis) + "ms max " + String.format("%.2f", maxWaitNanos.get() / 1e6) + "ms"
+                + ", timeouts=" + timeouts.sum()
+                + ", created=" + created.sum()
+                + ", retired=" + retired.sum();
+    }
+
+    private final class PooledConnection {
+        private final Connection connection;
+        private final long createdMillis = System.currentTimeMillis();
+        private volatile long idleSinceMillis = createdMillis;
+
+        PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        // A fresh wrapper per borrow, so a caller closing twice cannot return someone else's loan
+        Connection lend() {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, new Loan());
+        }
+
+        private final class Loan implements InvocationHandler {
+            private boolean returned;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                switch (method.getName()) {
+                    case "close":
+                        if (!returned) {
+                            returned = true;
+                            release(PooledConnection.this);
+                        }
+                        return null;
+                    case "isClosed":
+                        return returned || connection.isClosed();
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return "pooled " + connection;
+                    default:
+                        if (returned) {
+                            throw new SQLException("Connection was returned to the pool");
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                }
+            }
+        }
+    }
+}
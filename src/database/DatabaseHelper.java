@@ -1,22 +1,49 @@
 package database;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
 
 public class DatabaseHelper {
     private static final String URL = "jdbc:mysql://localhost:3306/tongchat";
     private static final String USER = "your_username";
     private static final String PASSWORD = "your_password";
 
+    private static volatile ConnectionPool pool;
+
+    // Borrowed from the pool; closing it hands it back
     public static Connection getConnection() throws SQLException {
-        try {
-            Class.forName("com.mysql.cj.jdbc.Driver");
-        } catch (ClassNotFoundException e) {
-            System.out.println("Database Helper : getConnection");
-            e.printStackTrace();
+        return getPool().borrow();
+    }
+
+    // Sizes are read once, e.g. -Dtong.db.pool.size=20
+    private static ConnectionPool getPool() {
+        ConnectionPool current = pool;
+        if (current != null) {
+            return current;
         }
 
-        return DriverManager.getConnection(URL, USER, PASSWORD);
+        synchronized (DatabaseHelper.class) {
+            if (pool == null) {
+                try {
+                    Class.forName("com.mysql.cj.jdbc.Driver");
+                } catch (ClassNotFoundException e) {
+                    System.out.println("Database Helper : getConnection");
+                    e.printStackTrace();
+                }
+                pool = new ConnectionPool(URL, USER, PASSWORD,
+                        Math.max(1, Integer.getInteger("tong.db.pool.size", 10)),
+                        Math.max(0, Integer.getInteger("tong.db.pool.waitMs", 5000)),
+                        TimeUnit.MINUTES.toMillis(Math.max(1, Integer.getInteger("tong.db.pool.maxLifetimeMin", 30))),
+                        TimeUnit.MINUTES.toMillis(Math.max(1, Integer.getInteger("tong.db.pool.idleMin", 10))));
+            }
+            return pool;
+        }
+    }
+
+    // Active, idle and waiting connections, plus how long borrowers waited
+    public static String describePool() {
+        ConnectionPool current = pool;
+        return current == null ? "pool unused" : current.describe();
     }
 }
@@ -0,0 +1,256 @@
+package database;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copies chat messages into the messages table behind the broadcast path. Rooms queue each
+ * message and move on; one writer thread turns what has queued up into multi-row INSERTs of up
+ * to batchSize rows, committed together, and never lets the oldest queued message wait longer
+ * than maxLatencyMillis for its batch to start. The writer keeps one pooled connection and the
+ * full-size INSERT prepared on it while messages keep coming, and hands the connection back
+ * once the queue has been empty for a while or a write fails. A room never waits for the
+ * database: when the queue is full, messages are dropped from the table (they are still in the
+ * MessageLog) until the writer has worked the queue down to half full again. The table comes
+ * from sql/schema.sql; without it the server runs without the database.
+ */
+public class MessageDAO {
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long RETRY_MILLIS = 1000;
+
+    private static final long IDLE_RELEASE_SECONDS = 30;
+
+    private static final String CHECK_TABLE = "SELECT 1 FROM messages WHERE 1 = 0";
+    private static final String INSERT = "INSERT INTO messages (room_key, sender_name, message_content, sent_at) VALUES ";
+    private static final String ROW = "(?, ?, ?, ?)";
+
+    private static LinkedBlockingQueue<Row> queue;
+    private static int batchSize;
+    private static long maxLatencyNanos;
+    private static volatile Thread writer;
+    private static volatile boolean shedding;
+
+    // Only touched by the writer thread
+    private static Connection connection;
+    private static PreparedStatement fullBatch;
+
+    private static final LongAdder queuedRows = new LongAdder();
+    private static final LongAdder insertedRows = new LongAdder();
+    private static final LongAdder batches = new LongAdder();
+    private static final LongAdder commitNanos = new LongAdder();
+    private static final LongAccumulator maxCommitNanos = new LongAccumulator(Math::max, 0);
+    private static final LongAdder droppedRows = new LongAdder();
+    private static final LongAdder failedRows = new LongAdder();
+
+    private record Row(String roomKey, String sender, String text, long timestampMillis, long queuedNanos) {
+    }
+
+    // Starts the writer once the messages table is there; stays off if it or the database is not
+    public static synchronized void start(int batchSize, int maxLatencyMillis, int queueCapacity) {
+        if (writer != null || batchSize <= 0) {
+            return;
+        }
+
+        try (Connection conn = DatabaseHelper.getConnection(); Statement stmt = conn.createStatement()) {
+            stmt.execute(CHECK_TABLE);
+        } catch (SQLException e) {
+            System.out.println("MessageDAO : start: messages are not stored in the database; run sql/schema.sql (" + e.getMessage() + ")");
+            return;
+        }
+
+        MessageDAO.batchSize = batchSize;
+        MessageDAO.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+        queue = new LinkedBlockingQueue<>(queueCapacity);
+        writer = new Thread(MessageDAO::writeLoop, "tong-db-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(MessageDAO::stop, "tong-db-shutdown"));
+    }
+
+    public static boolean isEnabled() {
+        return writer != null;
+    }
+
+    // Called on the room's shard; never waits, a full queue drops the message from the table instead
+    public static void insertMessage(String roomKey, String sender, String text, long timestampMillis) {
+        if (writer == null) {
+            return;
+        }
+
+        if (shedding || !queue.offer(new Row(roomKey, sender, text, timestampMillis, System.nanoTime()))) {
+            shedding = true;
+            droppedRows.increment();
+            return;
+        }
+        queuedRows.increment();
+    }
+
+    private static void writeLoop() {
+        List<Row> batch = new ArrayList<>(batchSize);
+
+        while (true) {
+            try {
+                Row first = queue.poll(IDLE_RELEASE_SECONDS, TimeUnit.SECONDS);
+                if (first == null) {
+                    // Quiet: let the pool retire or check the connection before it is used again
+                    closeConnection();
+                    first = queue.take();
+                }
+                batch.add(first);
+                // Fill the batch until it is full or its oldest row has waited long enough
+                long deadline = batch.get(0).queuedNanos() + maxLatencyNanos;
+                while (batch.size() < batchSize) {
+                    if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                        continue;
+                    }
+                    long wait = deadline - System.nanoTime();
+                    Row next = wait > 0 ? queue.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                // Shutting down: store whatever is still queued
+                queue.drainTo(batch);
+                for (int from = 0; from < batch.size(); from += batchSize) {
+                    List<Row> rows = batch.subList(from, Math.min(batch.size(), from + batchSize));
+                    try {
+                        insert(rows);
+                    } catch (SQLException ex) {
+                        failedRows.add(batch.size() - from);
+                        break;
+                    }
+                }
+                closeConnection();
+                return;
+            }
+
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    insert(batch);
+                    break;
+                } catch (SQLException e) {
+                    System.out.println("MessageDAO : writeLoop (attempt " + attempt + "): " + e.getMessage());
+                    closeConnection();
+                    if (attempt == MAX_ATTEMPTS) {
+                        failedRows.add(batch.size());
+                        break;
+                    }
+                    try {
+                        // Rooms keep queueing meanwhile; once the queue is full they drop rows instead of waiting
+                        Thread.sleep(RETRY_MILLIS * attempt);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            batch.clear();
+            if (shedding && queue.remainingCapacity() >= queue.size()) {
+                shedding = false;
+            }
+        }
+    }
+
+    // One multi-row INSERT, committed on its own; a full batch reuses the statement prepared on the writer's connection
+    private static void insert(List<Row> rows) throws SQLException {
+        long start = System.nanoTime();
+        if (connection == null) {
+            connection = DatabaseHelper.getConnection();
+            connection.setAutoCommit(false);
+            fullBatch = connection.prepareStatement(insertSql(batchSize));
+        }
+
+        boolean full = rows.size() == batchSize;
+        PreparedStatement stmt = full ? fullBatch : connection.prepareStatement(insertSql(rows.size()));
+        try {
+            int i = 1;
+            for (Row row : rows) {
+                stmt.setString(i++, row.roomKey());
+                stmt.setString(i++, row.sender());
+                stmt.setString(i++, row.text());
+                stmt.setTimestamp(i++, new Timestamp(row.timestampMillis()));
+            }
+            stmt.executeUpdate();
+            connection.commit();
+        } finally {
+            if (!full) {
+                stmt.close();
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        insertedRows.add(rows.size());
+        batches.increment();
+        commitNanos.add(elapsed);
+        maxCommitNanos.accumulate(elapsed);
+    }
+
+    // Hands the writer's connection back to the pool, which rolls back anything left uncommitted
+    private static void closeConnection() {
+        if (connection == null) {
+            return;
+        }
+        // The statement first, and the connection even if that fails
+        if (fullBatch != null) {
+            try {
+                fullBatch.close();
+            } catch (SQLException e) {
+                System.out.println("MessageDAO : closeConnection: " + e.getMessage());
+            }
+        }
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            System.out.println("MessageDAO : closeConnection: " + e.getMessage());
+        }
+        connection = null;
+        fullBatch = null;
+    }
+
+    private static String insertSql(int rows) {
+        StringBuilder sql = new StringBuilder(INSERT.length() + rows * (ROW.length() + 2)).append(INSERT);
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "" : ", ").append(ROW);
+        }
+        return sql.toString();
+    }
+
+    private static void stop() {
+        Thread thread = writer;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static String describe() {
+        if (writer == null) {
+            return "db off";
+        }
+
+        long batchCount = batches.sum();
+        double averageRows = batchCount == 0 ? 0 : (double) insertedRows.sum() / batchCount;
+        double averageMillis = batchCount == 0 ? 0 : commitNanos.sum() / 1e6 / batchCount;
+        return "db queued=" + queue.size()
+                + ", inserted=" + insertedRows.sum() + " of " + queuedRows.sum()
+                + ", batches=" + batchCount + " (avg " + String.format("%.1f", averageRows) + " rows, "
+                + String.format("%.2f", averageMillis) + "ms, max " + String.format("%.2f", maxCommitNanos.get() / 1e6) + "ms)"
+                + ", dropped=" + droppedRows.sum() + (shedding ? " (shedding)" : "")
+                + ", failed=" + failedRows.sum();
+    }
+}
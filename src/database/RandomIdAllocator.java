@@ -0,0 +1,196 @@
+package database;
+
+import java.security.SecureRandom;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hands out random identifiers nobody has, without a query per candidate. The identifiers in
+ * the users table are read once into a Bloom filter, and every identifier this client writes is
+ * added to it, so a candidate the filter has never seen is almost certainly free. What the filter
+ * cannot know, such as an identifier another client took a moment ago, is caught by the unique
+ * index on users.random_identifier; the write fails with a duplicate key and is retried with a
+ * new candidate. A false positive costs nothing but skipping one free identifier.
+ *
+ * The index comes from sql/schema.sql. Without it two clients could hand out the same identifier,
+ * so loading the filter checks the index is there and refuses to allocate anything if it is not.
+ */
+class RandomIdAllocator {
+    static final int MAX_ATTEMPTS = 5;
+
+    private static final String CHARACTERS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+    private static final int LENGTH = 10;
+    private static final String UNIQUE_INDEX = "uk_users_random_identifier";
+    private static final int MIN_CAPACITY = 10000;
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    private static long[] bits;
+    private static int bitCount;
+    private static int hashCount;
+    private static int capacity;
+    private static int added;
+    private static boolean indexChecked;
+
+    // A fresh identifier that is not in the filter; loads the filter on first use. Throws
+    // IllegalStateException until users.random_identifier is known to have a unique index.
+    static synchronized String next() {
+        if (!indexChecked) {
+            checkUniqueIndex();
+        }
+        if (bits == null || added > capacity) {
+            load();
+        }
+        while (true) {
+            StringBuilder sb = new StringBuilder(LENGTH);
+            for (int i = 0; i < LENGTH; i++) {
+                sb.append(CHARACTERS.charAt(random.nextInt(CHARACTERS.length())));
+            }
+            String candidate = sb.toString();
+            if (!mightContain(candidate)) {
+                return candidate;
+            }
+        }
+    }
+
+    // After the identifier was written, by this client or found taken by another
+    static synchronized void record(String randomIdentifier) {
+        if (bits != null && randomIdentifier != null) {
+            add(randomIdentifier);
+        }
+    }
+
+    // A duplicate key on the random identifier, as opposed to on the id or email address
+    static boolean isCollision(SQLException e) {
+        return e instanceof SQLIntegrityConstraintViolationException && e.getMessage() != null
+                && (e.getMessage().contains(UNIQUE_INDEX) || e.getMessage().contains("random_identifier"));
+    }
+
+    // Sized for twice the identifiers there are now, so the filter is rebuilt only after that many more
+    private static void load() {
+        try (Connection conn = DatabaseHelper.getConnection(); Statement stmt = conn.createStatement()) {
+
+            int existing = 0;
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM users")) {
+                if (rs.next()) {
+                    existing = rs.getInt(1);
+                }
+            }
+            allocate(Math.max(MIN_CAPACITY, existing * 2));
+
+            // Streamed row by row rather than buffered, however many users there are
+            stmt.setFetchSize(Integer.MIN_VALUE);
+            try (ResultSet rs = stmt.executeQuery("SELECT random_identifier FROM users")) {
+                while (rs.next()) {
+                    String randomIdentifier = rs.getString(1);
+                    if (randomIdentifier != null) {
+                        add(randomIdentifier);
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            // Without the filter every candidate looks free; the unique index still catches collisions
+            System.out.println("RandomIdAllocator : load");
+            e.printStackTrace();
+            if (bits == null) {
+                allocate(MIN_CAPACITY);
+            }
+        }
+    }
+
+    // Checked again on every allocation until it passes, so creating the index needs no restart
+    private static void checkUniqueIndex() {
+        try (Connection conn = DatabaseHelper.getConnection()) {
+            indexChecked = hasUniqueIndex(conn);
+        } catch (SQLException e) {
+            throw new IllegalStateException("Cannot check the unique index on users.random_identifier", e);
+        }
+        if (!indexChecked) {
+            System.out.println("RandomIdAllocator : checkUniqueIndex: " + UNIQUE_INDEX + " is missing");
+            throw new IllegalStateException("users.random_identifier has no unique index; run sql/schema.sql");
+        }
+    }
+
+    // Any unique index over random_identifier alone will do, whatever it is called
+    private static boolean hasUniqueIndex(Connection conn) throws SQLException {
+        DatabaseMetaData metaData = conn.getMetaData();
+        Map<String, Integer> columns = new HashMap<>();
+        Set<String> onIdentifier = new HashSet<>();
+        try (ResultSet rs = metaData.getIndexInfo(conn.getCatalog(), null, "users", true, false)) {
+            while (rs.next()) {
+                String index = rs.getString("INDEX_NAME");
+                String column = rs.getString("COLUMN_NAME");
+                if (index == null || column == null) {
+                    continue;
+                }
+                columns.merge(index, 1, Integer::sum);
+                if (column.equalsIgnoreCase("random_identifier")) {
+                    onIdentifier.add(index);
+                }
+            }
+        }
+        for (String index : onIdentifier) {
+            if (columns.get(index) == 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void allocate(int expected) {
+        capacity = expected;
+        added = 0;
+        double ln2 = Math.log(2);
+        bitCount = (int) Math.min(Integer.MAX_VALUE - 63, Math.ceil(-expected * Math.log(FALSE_POSITIVE_RATE) / (ln2 * ln2)));
+        hashCount = Math.max(1, (int) Math.round((double) bitCount / expected * ln2));
+        bits = new long[(bitCount + 63) / 64];
+    }
+
+    private static void add(String value) {
+        long hash = hash64(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = Math.floorMod(h1 + i * h2, bitCount);
+            bits[bit >>> 6] |= 1L << bit;
+        }
+        added++;
+    }
+
+    private static boolean mightContain(String value) {
+        long hash = hash64(value);
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            int bit = Math.floorMod(h1 + i * h2, bitCount);
+            if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // FNV-1a over the characters, then a 64-bit finalizer so both halves are well mixed
+    private static long hash64(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,177 @@
+package database;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import models.User;
+
+/**
+ * Public profiles UserDAO has read recently, findable by id, email address or random ID. At most
+ * maxEntries are kept, least recently used first out, and none is served once it is older than
+ * the TTL, which bounds how long another client's change can go unseen. Changes made through
+ * UserDAO drop the entry straight away, and a profile read before such a change is not put back
+ * afterwards: callers take generation() before their query and pass it to put. Password hashes are never stored, and callers always get
+ * a copy, so changing a returned User cannot change the cached one.
+ */
+class UserCache {
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    // By user id, least recently used first; the other two maps point into it
+    private final LinkedHashMap<Integer, Entry> byId = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> idByEmail = new HashMap<>();
+    private final Map<String, Integer> idByRandomID = new HashMap<>();
+
+    // Bumped by every invalidate; emails changed since a reader's generation reject its put.
+    // Past maxEntries the map is cleared and every older generation counts as stale instead
+    private long generation;
+    private final Map<String, Long> invalidatedAt = new HashMap<>();
+    private long forgottenBefore;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long expirations;
+    private long invalidations;
+    private long stalePuts;
+
+    private record Entry(User profile, String email, long loadedMillis) {
+    }
+
+    UserCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    static UserCache fromSystemProperties() {
+        return new UserCache(Math.max(0, Integer.getInteger("tong.users.cacheSize", 1000)),
+                TimeUnit.SECONDS.toMillis(Math.max(0, Integer.getInteger("tong.users.cacheTtlSec", 300))));
+    }
+
+    synchronized User getById(int id) {
+        return hit(byId.get(id));
+    }
+
+    synchronized User getByEmail(String email) {
+        Integer id = idByEmail.get(email);
+        return hit(id == null ? null : byId.get(id));
+    }
+
+    synchronized User getByRandomID(String randomID) {
+        Integer id = idByRandomID.get(randomID);
+        return hit(id == null ? null : byId.get(id));
+    }
+
+    // To be taken before the query whose rows are put with it
+    synchronized long generation() {
+        return generation;
+    }
+
+    synchronized void put(User profile, String email, long readGeneration) {
+        if (maxEntries == 0) {
+            return;
+        }
+        if (isStale(email, readGeneration)) {
+            stalePuts++;
+            return;
+        }
+
+        Entry previous = byId.get(profile.id);
+        if (previous != null) {
+            unlink(profile.id, previous);
+        }
+        byId.put(profile.id, new Entry(copyOf(profile), email, System.currentTimeMillis()));
+        if (email != null) {
+            idByEmail.put(email, profile.id);
+        }
+        if (profile.randomIdentifier != null) {
+            idByRandomID.put(profile.randomIdentifier, profile.id);
+        }
+
+        Iterator<Map.Entry<Integer, Entry>> eldest = byId.entrySet().iterator();
+        while (byId.size() > maxEntries) {
+            Map.Entry<Integer, Entry> entry = eldest.next();
+            eldest.remove();
+            unlink(entry.getKey(), entry.getValue());
+            evictions++;
+        }
+    }
+
+    // After any change to the user's row, which UserDAO always finds by email address
+    synchronized void invalidate(String email) {
+        generation++;
+        invalidatedAt.put(email, generation);
+        if (invalidatedAt.size() > maxEntries) {
+            invalidatedAt.clear();
+            forgottenBefore = generation;
+        }
+
+        Integer id = idByEmail.get(email);
+        if (id != null) {
+            Entry entry = byId.remove(id);
+            if (entry != null) {
+                unlink(id, entry);
+                invalidations++;
+            }
+        }
+    }
+
+    synchronized String describe() {
+        long lookups = hits + misses;
+        double hitRate = lookups == 0 ? 0 : 100.0 * hits / lookups;
+        return "users cached=" + byId.size() + "/" + maxEntries
+                + ", hits=" + hits + ", misses=" + misses + " (" + String.format("%.1f", hitRate) + "% hit)"
+                + ", evictions=" + evictions
+                + ", expired=" + expirations
+                + ", invalidated=" + invalidations
+                + ", stale=" + stalePuts;
+    }
+
+    // Whether the email's row may have changed since readGeneration
+    private boolean isStale(String email, long readGeneration) {
+        if (readGeneration < forgottenBefore) {
+            return true;
+        }
+        Long changed = email == null ? null : invalidatedAt.get(email);
+        return changed != null && changed > readGeneration;
+    }
+
+    private User hit(Entry entry) {
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.loadedMillis() >= ttlMillis) {
+            byId.remove(entry.profile().id);
+            unlink(entry.profile().id, entry);
+            expirations++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return copyOf(entry.profile());
+    }
+
+    // Only removes secondary keys that still point at this id
+    private void unlink(int id, Entry entry) {
+        if (entry.email() != null) {
+            idByEmail.remove(entry.email(), id);
+        }
+        if (entry.profile().randomIdentifier != null) {
+            idByRandomID.remove(entry.profile().randomIdentifier, id);
+        }
+    }
+
+    private static User copyOf(User user) {
+        User copy = new User();
+        copy.id = user.id;
+        copy.fullName = user.fullName;
+        copy.displayName = user.displayName;
+        copy.randomIdentifier = user.randomIdentifier;
+        copy.colorHex = user.colorHex;
+        return copy;
+    }
+}
@@ -4,140 +4,400 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 
 import models.User;
 
 public class UserDAO {
-    public static void insertUser(User user) {
-        String sql = "INSERT INTO users (id, full_name, display_name, email_address, password, random_identifier) VALUES (?, ?, ?, ?, ?, ?)";
+    // What other users may see, plus the email address the cache files profiles under; never the password hash
+    private static final String PROFILE_COLUMNS = "id, full_name, display_name, random_identifier, email_address";
+    // Everything signing in and account changes need
+    private static final String AUTH_COLUMNS = "id, full_name, display_name, email_address, password, random_identifier";
+    // Keeps each IN (...) list well inside MySQL's packet and placeholder limits
+    private static final int MAX_BATCH_KEYS = 500;
 
-        try (Connection conn = DatabaseHelper.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, user.id);
-            stmt.setString(2, user.fullName);
-            stmt.setString(3, user.displayName);
-            stmt.setString(4, user.emailAddress);
-            stmt.setString(5, user.password);
-            stmt.setString(6, user.randomIdentifier);
-
-            stmt.execute();
+    private static final UserCache profiles = UserCache.fromSystemProperties();
+
+    // Each public method prints the SQLException its ...Checked version throws and returns null,
+    // false or an empty map instead; AsyncUserDAO calls the Checked versions so its futures fail
+
+    // A user without a random identifier gets a fresh one; false if the user could not be stored
+    public static boolean insertUser(User user) {
+        try {
+            return insertUserChecked(user);
         } catch (SQLException e) {
-            e.printStackTrace();
-            System.out.println("UserDAO : insertUser");
+            failed("insertUser", e);
+            return false;
         }
     }
 
     public static User getUserById(int id) {
-        String sql = "SELECT * FROM users WHERE id = ?";
+        try {
+            return getUserByIdChecked(id);
+        } catch (SQLException e) {
+            failed("getUserById", e);
+            return null;
+        }
+    }
+
+    public static User getUserByEmail(String address) {
+        try {
+            return getUserByEmailChecked(address);
+        } catch (SQLException e) {
+            failed("getUserByEmail", e);
+            return null;
+        }
+    }
+
+    public static boolean updateUserPassword(String email, String newHashedPassword) {
+        try {
+            return updateUserPasswordChecked(email, newHashedPassword);
+        } catch (SQLException e) {
+            failed("updateUserPassword", e);
+            return false;
+        }
+    }
+
+    public static User getUserByRandomID(String randID) {
+        try {
+            return getUserByRandomIDChecked(randID);
+        } catch (SQLException e) {
+            failed("getUserByRandomID", e);
+            return null;
+        }
+    }
+
+    // Gives the user a fresh random identifier; null if it could not be stored
+    public static String rotateRandomID(String email) {
+        try {
+            return rotateRandomIDChecked(email);
+        } catch (SQLException e) {
+            failed("rotateRandomID", e);
+            return null;
+        }
+    }
+
+    public static boolean updateUserRandomID(String email, String newRandomID) {
+        try {
+            return updateUserRandomIDChecked(email, newRandomID);
+        } catch (SQLException e) {
+            failed("updateUserRandomID", e);
+            return false;
+        }
+    }
+
+    public static boolean updateUserDisplayName(String email, String newDisplayName) {
+        try {
+            return updateUserDisplayNameChecked(email, newDisplayName);
+        } catch (SQLException e) {
+            failed("updateUserDisplayName", e);
+            return false;
+        }
+    }
+
+    // The public profile of one user, for DM targets and name lookups; null if there is none
+    public static User getProfileByRandomID(String randID) {
+        try {
+            return getProfileByRandomIDChecked(randID);
+        } catch (SQLException e) {
+            failed("getProfileByRandomID", e);
+            return null;
+        }
+    }
+
+    public static User getProfileByEmail(String address) {
+        try {
+            return getProfileByEmailChecked(address);
+        } catch (SQLException e) {
+            failed("getProfileByEmail", e);
+            return null;
+        }
+    }
+
+    // Public profiles for many random IDs; IDs nobody has are left out
+    public static Map<String, User> getProfilesByRandomIDs(Collection<String> randIDs) {
+        try {
+            return getProfilesByRandomIDsChecked(randIDs);
+        } catch (SQLException e) {
+            failed("getProfilesByRandomIDs", e);
+            return new HashMap<>();
+        }
+    }
+
+    public static Map<Integer, User> getProfilesByIds(Collection<Integer> ids) {
+        try {
+            return getProfilesByIdsChecked(ids);
+        } catch (SQLException e) {
+            failed("getProfilesByIds", e);
+            return new HashMap<>();
+        }
+    }
+
+    // Hit rates of the profile cache, e.g. for the log when the window closes
+    public static String describeCache() {
+        return profiles.describe();
+    }
+
+    // A random identifier another client took first is drawn again
+    static boolean insertUserChecked(User user) throws SQLException {
+        String sql = "INSERT INTO users (id, full_name, display_name, email_address, password, random_identifier) VALUES (?, ?, ?, ?, ?, ?)";
+        boolean allocated = user.randomIdentifier == null;
+
+        for (int attempt = 1; ; attempt++) {
+            if (allocated) {
+                user.randomIdentifier = RandomIdAllocator.next();
+            }
+            try (Connection conn = DatabaseHelper.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setInt(1, user.id);
+                stmt.setString(2, user.fullName);
+                stmt.setString(3, user.displayName);
+                stmt.setString(4, user.emailAddress);
+                stmt.setString(5, user.password);
+                stmt.setString(6, user.randomIdentifier);
+
+                stmt.execute();
+                RandomIdAllocator.record(user.randomIdentifier);
+                return true;
+            } catch (SQLException e) {
+                if (allocated && attempt < RandomIdAllocator.MAX_ATTEMPTS && RandomIdAllocator.isCollision(e)) {
+                    RandomIdAllocator.record(user.randomIdentifier);
+                    continue;
+                }
+                throw e;
+            }
+        }
+    }
+
+    static User getUserByIdChecked(int id) throws SQLException {
+        String sql = "SELECT " + AUTH_COLUMNS + " FROM users WHERE id = ?";
         try (Connection conn = DatabaseHelper.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setInt(1, id);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
-                    User user = new User();
-                    user.id = rs.getInt("id");
-                    user.fullName = rs.getString("full_name");
-                    user.displayName = rs.getString("display_name");
-                    user.emailAddress = rs.getString("email_address");
-                    user.password = rs.getString("password");
-                    user.randomIdentifier = rs.getString("random_identifier");
-                    return user;
+                    return readUser(rs, true);
                 }
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
 
         return null;
     }
 
-    public static User getUserByEmail(String address) {
-        String sql = "SELECT * FROM users WHERE email_address = ?";
+    static User getUserByEmailChecked(String address) throws SQLException {
+        String sql = "SELECT " + AUTH_COLUMNS + " FROM users WHERE email_address = ?";
         try (Connection conn = DatabaseHelper.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setString(1, address);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
-                    User user = new User();
-                    user.id = rs.getInt("id");
-                    user.fullName = rs.getString("full_name");
-                    user.displayName = rs.getString("display_name");
-                    user.emailAddress = rs.getString("email_address");
-                    user.password = rs.getString("password");
-                    user.randomIdentifier = rs.getString("random_identifier");
-
-                    return user;
+                    return readUser(rs, true);
                 }
             }
-        } catch (SQLException e) {
-            System.out.println("No user found");
-            return null;
         }
         return null;
     }
 
-    public static boolean updateUserPassword(String email, String newHashedPassword) {
+    static boolean updateUserPasswordChecked(String email, String newHashedPassword) throws SQLException {
         String sql = "UPDATE users SET password = ? WHERE email_address = ?";
         try (Connection conn = DatabaseHelper.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setString(1, newHashedPassword);
             stmt.setString(2, email);
 
             int rowsAffected = stmt.executeUpdate();
+            profiles.invalidate(email);
             return rowsAffected > 0;
-        } catch (SQLException e) {
-            e.printStackTrace();
-            System.out.println("UserDAO : updateUserPassword");
         }
-        return false;
     }
 
-    public static User getUserByRandomID(String randID) {
-        String sql = "SELECT * FROM users WHERE random_identifier = ?";
+    static User getUserByRandomIDChecked(String randID) throws SQLException {
+        String sql = "SELECT " + AUTH_COLUMNS + " FROM users WHERE random_identifier = ?";
         try (Connection conn = DatabaseHelper.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setString(1, randID);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
-                    User user = new User();
-                    user.id = rs.getInt("id");
-                    user.fullName = rs.getString("full_name");
-                    user.displayName = rs.getString("display_name");
-                    user.emailAddress = rs.getString("email_address");
-                    user.password = rs.getString("password");
-                    user.randomIdentifier = rs.getString("random_identifier");
-                    return user;
+                    return readUser(rs, true);
                 }
             }
-        } catch (SQLException e) {
-            e.printStackTrace();
         }
 
         return null;
     }
 
-    public static boolean updateUserRandomID(String email, String newRandomID) {
+    // Null if the user is gone or every identifier drawn was taken
+    static String rotateRandomIDChecked(String email) throws SQLException {
+        String sql = "UPDATE users SET random_identifier = ? WHERE email_address = ?";
+        for (int attempt = 1; attempt <= RandomIdAllocator.MAX_ATTEMPTS; attempt++) {
+            String newRandomID = RandomIdAllocator.next();
+            try (Connection conn = DatabaseHelper.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+                stmt.setString(1, newRandomID);
+                stmt.setString(2, email);
+
+                int rowsAffected = stmt.executeUpdate();
+                RandomIdAllocator.record(newRandomID);
+                profiles.invalidate(email);
+                return rowsAffected > 0 ? newRandomID : null;
+            } catch (SQLIntegrityConstraintViolationException e) {
+                // Only the random identifier changes, so a duplicate key means another client has it
+                RandomIdAllocator.record(newRandomID);
+            }
+        }
+        return null;
+    }
+
+    static boolean updateUserRandomIDChecked(String email, String newRandomID) throws SQLException {
         String sql = "UPDATE users SET random_identifier = ? WHERE email_address = ?";
         try (Connection conn = DatabaseHelper.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setString(1, newRandomID);
             stmt.setString(2, email);
 
             int rowsAffected = stmt.executeUpdate();
+            RandomIdAllocator.record(newRandomID);
+            profiles.invalidate(email);
             return rowsAffected > 0;
-        } catch (SQLException e) {
-            e.printStackTrace();
-            System.out.println("UserDAO : updateUserRandomID");
         }
-        return false;
     }
 
-    public static boolean updateUserDisplayName(String email, String newDisplayName) {
+    static boolean updateUserDisplayNameChecked(String email, String newDisplayName) throws SQLException {
         String sql = "UPDATE users SET display_name = ? WHERE email_address = ?";
         try (Connection conn = DatabaseHelper.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
             stmt.setString(1, newDisplayName);
             stmt.setString(2, email);
 
             int rowsAffected = stmt.executeUpdate();
+            profiles.invalidate(email);
             return rowsAffected > 0;
-        } catch (SQLException e) {
-            e.printStackTrace();
-            System.out.println("UserDAO : updateUserDisplayName");
         }
-        return false;
+    }
+
+    static User getProfileByRandomIDChecked(String randID) throws SQLException {
+        return getProfilesByRandomIDsChecked(List.of(randID)).get(randID);
+    }
+
+    static User getProfileByEmailChecked(String address) throws SQLException {
+        User cached = profiles.getByEmail(address);
+        if (cached != null) {
+            return cached;
+        }
+
+        String sql = "SELECT " + PROFILE_COLUMNS + " FROM users WHERE email_address = ?";
+        long generation = profiles.generation();
+        try (Connection conn = DatabaseHelper.getConnection(); PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setString(1, address);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    return readProfile(rs, generation);
+                }
+            }
+        }
+        return null;
+    }
+
+    // The random IDs not cached are queried MAX_BATCH_KEYS at a time
+    static Map<String, User> getProfilesByRandomIDsChecked(Collection<String> randIDs) throws SQLException {
+        Map<String, User> users = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String randID : randIDs) {
+            User cached = randID == null ? null : profiles.getByRandomID(randID);
+            if (cached != null) {
+                users.put(randID, cached);
+            } else {
+                missing.add(randID);
+            }
+        }
+
+        for (List<String> chunk : chunks(missing)) {
+            long generation = profiles.generation();
+            try (Connection conn = DatabaseHelper.getConnection(); PreparedStatement stmt = conn.prepareStatement(selectIn(PROFILE_COLUMNS, "random_identifier", chunk.size()))) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    stmt.setString(i + 1, chunk.get(i));
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        User user = readProfile(rs, generation);
+                        users.put(user.randomIdentifier, user);
+                    }
+                }
+            }
+        }
+        return users;
+    }
+
+    static Map<Integer, User> getProfilesByIdsChecked(Collection<Integer> ids) throws SQLException {
+        Map<Integer, User> users = new HashMap<>();
+        List<Integer> missing = new ArrayList<>();
+        for (Integer id : ids) {
+            User cached = id == null ? null : profiles.getById(id);
+            if (cached != null) {
+                users.put(id, cached);
+            } else {
+                missing.add(id);
+            }
+        }
+
+        for (List<Integer> chunk : chunks(missing)) {
+            long generation = profiles.generation();
+            try (Connection conn = DatabaseHelper.getConnection(); PreparedStatement stmt = conn.prepareStatement(selectIn(PROFILE_COLUMNS, "id", chunk.size()))) {
+                for (int i = 0; i < chunk.size(); i++) {
+                    stmt.setInt(i + 1, chunk.get(i));
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        User user = readProfile(rs, generation);
+                        users.put(user.id, user);
+                    }
+                }
+            }
+        }
+        return users;
+    }
+
+    private static void failed(String operation, SQLException e) {
+        e.printStackTrace();
+        System.out.println("UserDAO : " + operation);
+    }
+
+    private static String selectIn(String columns, String keyColumn, int keys) {
+        StringBuilder sql = new StringBuilder("SELECT ").append(columns).append(" FROM users WHERE ").append(keyColumn).append(" IN (");
+        for (int i = 0; i < keys; i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        return sql.append(')').toString();
+    }
+
+    // Distinct non-null keys, MAX_BATCH_KEYS at a time
+    private static <K> List<List<K>> chunks(Collection<K> keys) {
+        List<K> distinct = new ArrayList<>(new LinkedHashSet<>(keys));
+        distinct.remove(null);
+        List<List<K>> chunks = new ArrayList<>();
+        for (int from = 0; from < distinct.size(); from += MAX_BATCH_KEYS) {
+            chunks.add(distinct.subList(from, Math.min(distinct.size(), from + MAX_BATCH_KEYS)));
+        }
+        return chunks;
+    }
+
+    // A row of PROFILE_COLUMNS, which goes into the cache unless the user changed since generation;
+    // the email address is left off the User
+    private static User readProfile(ResultSet rs, long generation) throws SQLException {
+        User user = readUser(rs, false);
+        profiles.put(user, rs.getString("email_address"), generation);
+        return user;
+    }
+
+    // withAuth reads the AUTH_COLUMNS, otherwise only the PROFILE_COLUMNS were selected
+    private static User readUser(ResultSet rs, boolean withAuth) throws SQLException {
+        User user = new User();
+        user.id = rs.getInt("id");
+        user.fullName = rs.getString("full_name");
+        user.displayName = rs.getString("display_name");
+        user.randomIdentifier = rs.getString("random_identifier");
+        if (withAuth) {
+            user.emailAddress = rs.getString("email_address");
+            user.password = rs.getString("password");
+        }
+        return user;
     }
 }
@@ -0,0 +1,180 @@
+package server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import client.SearchHit;
+
+/**
+ * Paged reads of one room's MessageLog, so a client can show the last screen of a room at once
+ * and fetch older pages only as the user scrolls back:
+ *
+ *   FETCH <session> <limit> <BEFORE|AFTER> <cursor|-> [SINCE <millis>] [UNTIL <millis>] [FROM <sender...>]
+ *       -> HIT ... lines, oldest first, then END <olderCursor|-> <newerCursor>
+ *
+ * session is the SESSION token of the caller's connection to the room; the server resolves it to
+ * the room through the SessionRegistry, so only a current member can page through a room's
+ * history, and a token that is unknown or belongs to a closed connection gets ERROR not a member.
+ * "-" starts at the newest message going BEFORE and at the oldest going AFTER; the cursors in
+ * END continue from either edge of the page, and an older cursor of "-" means nothing older is
+ * left. SINCE and UNTIL become an offset range through the log's sparse time index, and FROM
+ * walks the sender's posting list in the SearchIndex, so every page costs a few index probes
+ * plus the reads of the messages it returns, however far back it is.
+ *
+ * Cursors are opaque: an offset signed with an HMAC over the room and the offset, under a key
+ * drawn when the server starts. A cursor only continues the room it was issued for, never
+ * selects one, and one that was altered, issued for another room or by an earlier run of the
+ * server gets ERROR bad cursor; the client starts again from "-".
+ */
+public class ChatHistory {
+    public static final String FETCH_REQUEST = "FETCH ";
+    public static final int MAX_PAGE_SIZE = 200;
+
+    private static final String NO_CURSOR = "-";
+    private static final String HMAC = "HmacSHA256";
+    private static final int CURSOR_MAC_BYTES = 8;
+    private static final SecretKeySpec cursorKey = newCursorKey();
+
+    private static SecretKeySpec newCursorKey() {
+        byte[] key = new byte[32];
+        new SecureRandom().nextBytes(key);
+        return new SecretKeySpec(key, HMAC);
+    }
+
+    public static List<String> handleRequest(String line) {
+        List<String> response = new ArrayList<>();
+        String[] parts = line.substring(FETCH_REQUEST.length()).trim().split("\\s+");
+        if (parts.length < 4 || !(parts[2].equals("BEFORE") || parts[2].equals("AFTER"))) {
+            response.add("ERROR usage: FETCH <session> <limit> <BEFORE|AFTER> <cursor|-> [SINCE <millis>] [UNTIL <millis>] [FROM <sender>]");
+            return response;
+        }
+        if (!MessageLog.isEnabled()) {
+            response.add("ERROR history needs the message log");
+            return response;
+        }
+
+        SessionRegistry.Membership membership = SessionRegistry.membership(parts[0]);
+        if (membership == null) {
+            response.add("ERROR not a member");
+            return response;
+        }
+        String roomKey = membership.roomKey();
+        long cursor;
+        if (parts[3].equals(NO_CURSOR)) {
+            cursor = -1;
+        } else {
+            cursor = decodeCursor(roomKey, parts[3]);
+            if (cursor < 0) {
+                response.add("ERROR bad cursor");
+                return response;
+            }
+        }
+
+        boolean before = parts[2].equals("BEFORE");
+        long low = MessageLog.getFirstOffset(roomKey);
+        long high = MessageLog.getNextOffset(roomKey);
+        String sender = null;
+        int limit;
+        if (cursor < 0) {
+            cursor = before ? high : low;
+        }
+        try {
+            limit = Math.max(1, Math.min(Integer.parseInt(parts[1]), MAX_PAGE_SIZE));
+            for (int i = 4; i < parts.length; i++) {
+                if (parts[i].equals("FROM") && i + 1 < parts.length) {
+                    sender = String.join(" ", List.of(parts).subList(i + 1, parts.length));
+                    break;
+                } else if (parts[i].equals("SINCE") && i + 1 < parts.length) {
+                    low = Math.max(low, MessageLog.offsetAt(roomKey, Long.parseLong(parts[++i])));
+                } else if (parts[i].equals("UNTIL") && i + 1 < parts.length) {
+                    high = Math.min(high, MessageLog.offsetAt(roomKey, Long.parseLong(parts[++i]) + 1));
+                } else {
+                    response.add("ERROR unknown filter " + parts[i]);
+                    return response;
+                }
+            }
+        } catch (NumberFormatException e) {
+            response.add("ERROR bad limit or time");
+            return response;
+        }
+
+        // The page is taken from [from, to), next to the cursor on the requested side
+        long from = before ? low : Math.max(low, cursor);
+        long to = before ? Math.min(high, cursor) : high;
+        List<LoggedMessage> page;
+        if (sender == null) {
+            page = from >= to ? List.of()
+                    : before ? MessageLog.read(roomKey, Math.max(from, to - limit), (int) Math.min(limit, to - from))
+                    : MessageLog.read(roomKey, from, (int) Math.min(limit, to - from));
+        } else {
+            long[] offsets = SearchIndex.senderOffsets(roomKey, sender, from, to, limit, before);
+            if (offsets == null) {
+                response.add("ERROR sender filter needs the search index");
+                return response;
+            }
+            page = readOffsets(roomKey, offsets);
+        }
+
+        for (LoggedMessage message : page) {
+            response.add(new SearchHit(roomKey, message.offset(), message.timestampMillis(), message.text()).toLine());
+        }
+        long oldest = page.isEmpty() ? (before ? from : Math.min(cursor, to)) : page.getFirst().offset();
+        long newer = page.isEmpty() ? (before ? to : Math.max(cursor, from)) : page.getLast().offset() + 1;
+        response.add("END " + (oldest > low ? encodeCursor(roomKey, oldest) : NO_CURSOR) + " " + encodeCursor(roomKey, newer));
+        return response;
+    }
+
+    // Consecutive offsets are read as one run
+    private static List<LoggedMessage> readOffsets(String roomKey, long[] offsets) {
+        List<LoggedMessage> messages = new ArrayList<>(offsets.length);
+        int start = 0;
+        for (int i = 1; i <= offsets.length; i++) {
+            if (i == offsets.length || offsets[i] != offsets[i - 1] + 1) {
+                messages.addAll(MessageLog.read(roomKey, offsets[start], i - start));
+                start = i;
+            }
+        }
+        return messages;
+    }
+
+    private static String encodeCursor(String roomKey, long offset) {
+        return Long.toString(offset, 36) + "." + HexFormat.of().formatHex(cursorMac(roomKey, offset));
+    }
+
+    // The offset of a cursor this server issued for the room, or -1 for any other string
+    private static long decodeCursor(String roomKey, String cursor) {
+        int dot = cursor.indexOf('.');
+        if (dot < 0) {
+            return -1;
+        }
+        try {
+            long offset = Long.parseLong(cursor.substring(0, dot), 36);
+            byte[] mac = HexFormat.of().parseHex(cursor.substring(dot + 1));
+            return offset >= 0 && MessageDigest.isEqual(mac, cursorMac(roomKey, offset)) ? offset : -1;
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private static byte[] cursorMac(String roomKey, long offset) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(cursorKey);
+            mac.update(roomKey.getBytes(StandardCharsets.UTF_8));
+            mac.update((byte) 0);
+            mac.update(Long.toString(offset).getBytes(StandardCharsets.UTF_8));
+            return Arrays.copyOf(mac.doFinal(), CURSOR_MAC_BYTES);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Cannot sign history cursor", e);
+        }
+    }
+}
@@ -0,0 +1,546 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import client.EncodedMessage;
+import client.FrameCodec;
+
+/**
+ * Relays forum broadcasts between Server processes so a cluster behaves like one forum.
+ * Every node keeps one outbound peer link per tong.cluster.peers entry and sends only the
+ * messages it originated, each stamped with its origin and a sequence number. Links batch
+ * whatever queued up while the previous batch was in flight, and the receiver acknowledges
+ * each batch once it is on the forum shard. On connecting, the receiver tells the sender the
+ * last sequence it delivered, so an unacknowledged batch is resent after a reconnect and
+ * nothing is delivered twice. While a peer is down its messages move from memory to a spool
+ * file and are sent from there, oldest first, once it is back. A message that fits in neither
+ * leaves a gap in the sequence, which the receiver counts and announces to its forum clients
+ * instead of hiding. Relayed messages go into the receiver's message log but not into the
+ * messages table, which the origin node has already written them to.
+ *
+ * Links are authenticated both ways with tong.cluster.secret: each side sends a random nonce
+ * and must answer the other's with an HMAC-SHA256 over it under the shared secret, so neither a
+ * stranger sending HELLO nor a stranger listening on a peer's address joins the forum. Without
+ * a secret the node does not cluster at all.
+ */
+public class ClusterBus {
+    private static final String HELLO = "TONG-CLUSTER 3";
+    private static final String FORUM_ROOM = "forum";
+    private static final int QUEUE_CAPACITY = 16384;
+    private static final int RECONNECT_MILLIS = 1000;
+    private static final int ACK_TIMEOUT_MILLIS = 30000;
+    private static final int HANDSHAKE_TIMEOUT_MILLIS = 10000;
+    private static final int NONCE_BYTES = 16;
+    private static final String HMAC = "HmacSHA256";
+
+    // The start time keeps sequence numbers from a restarted node apart from its previous run
+    private static volatile String origin;
+    // Only the forum's shard publishes, so the sequence needs no lock and follows the local order
+    private static long nextSequence = 0;
+    private static volatile PeerLink[] peers = new PeerLink[0];
+    private static SecretKeySpec secret;
+    private static final SecureRandom random = new SecureRandom();
+    private static final Map<String, Long> lastDelivered = new HashMap<>();
+
+    private static final LongAdder relayedMessages = new LongAdder();
+    private static final LongAdder relayedBatches = new LongAdder();
+    private static final LongAdder receivedMessages = new LongAdder();
+    private static final LongAdder duplicateMessages = new LongAdder();
+    private static final LongAdder droppedMessages = new LongAdder();
+    private static final LongAdder lostMessages = new LongAdder();
+
+    public static synchronized void start(int serverPort) {
+        int clusterPort = ServerConfig.getClusterPort();
+        List<String> peerAddresses = ServerConfig.getClusterPeers();
+        if (origin != null || (clusterPort <= 0 && peerAddresses.isEmpty())) {
+            return;
+        }
+        String sharedSecret = ServerConfig.getClusterSecret();
+        if (sharedSecret.isEmpty()) {
+            System.out.println("ClusterBus.java : start: tong.cluster.secret is not set, clustering stays off");
+            return;
+        }
+
+        secret = new SecretKeySpec(sharedSecret.getBytes(StandardCharsets.UTF_8), HMAC);
+        origin = ServerConfig.getClusterNodeId(serverPort) + "/" + System.currentTimeMillis();
+        if (clusterPort > 0) {
+            try {
+                ServerSocket listener = new ServerSocket(clusterPort);
+                startThread("tong-cluster-listener", () -> acceptPeers(listener));
+            } catch (IOException e) {
+                System.out.println("ClusterBus.java : start");
+                e.printStackTrace();
+            }
+        }
+
+        PeerLink[] links = new PeerLink[peerAddresses.size()];
+        for (int i = 0; i < links.length; i++) {
+            links[i] = new PeerLink(peerAddresses.get(i));
+            startThread("tong-cluster-peer-" + links[i].address, links[i]);
+        }
+        peers = links;
+        System.out.println("Cluster node " + origin + " listening on " + clusterPort + ", peers " + peerAddresses);
+    }
+
+    // Called on the forum's shard for every local forum broadcast; relayed messages are never relayed again
+    public static void publish(byte type, String text) {
+        PeerLink[] links = peers;
+        if (links.length == 0) {
+            return;
+        }
+
+        Relayed message = new Relayed(++nextSequence, type, text.getBytes(StandardCharsets.UTF_8));
+        for (PeerLink link : links) {
+            link.offer(message);
+        }
+    }
+
+    private static void acceptPeers(ServerSocket listener) {
+        while (!listener.isClosed()) {
+            try {
+                Socket socket = listener.accept();
+                startThread("tong-cluster-in-" + socket.getRemoteSocketAddress(), () -> receive(socket));
+            } catch (IOException e) {
+                System.out.println("ClusterBus.java : acceptPeers");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void receive(Socket socket) {
+        int maxPayload = ServerConfig.getMaxFrameBytes();
+        RoomShard shard = RoomShard.forRoom(FORUM_ROOM);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()))) {
+            socket.setSoTimeout(HANDSHAKE_TIMEOUT_MILLIS);
+            if (!HELLO.equals(in.readUTF())) {
+                System.out.println("ClusterBus.java : rejecting peer " + socket.getRemoteSocketAddress());
+                return;
+            }
+            String peerOrigin = in.readUTF();
+            byte[] peerNonce = in.readNBytes(NONCE_BYTES);
+            byte[] nonce = newNonce();
+            out.write(nonce);
+            out.write(proof("listener", peerNonce, peerOrigin));
+            out.flush();
+            if (!MessageDigest.isEqual(proof("peer", nonce, peerOrigin), in.readNBytes(32))) {
+                System.out.println("ClusterBus.java : rejecting peer " + socket.getRemoteSocketAddress() + ": wrong cluster secret");
+                return;
+            }
+            socket.setSoTimeout(0);
+
+            // Where the peer should resume: anything at or below this was delivered already
+            out.writeLong(lastDeliveredFrom(peerOrigin));
+            out.flush();
+            System.out.println("Cluster peer connected: " + peerOrigin);
+
+            while (true) {
+                int count = in.readInt();
+                if (count <= 0) {
+                    throw new IOException("Bad batch size " + count + " from " + peerOrigin);
+                }
+                List<EncodedMessage> batch = new ArrayList<>();
+                long lastSequence = 0;
+                for (int i = 0; i < count; i++) {
+                    long sequence = in.readLong();
+                    byte type = in.readByte();
+                    int length = in.readInt();
+                    if (length < 0 || length > maxPayload) {
+                        throw new IOException("Relayed message of " + length + " bytes from " + peerOrigin);
+                    }
+                    byte[] payload = in.readNBytes(length);
+                    if (payload.length < length) {
+                        throw new IOException("Peer link closed mid-batch");
+                    }
+                    lastSequence = sequence;
+
+                    receivedMessages.increment();
+                    long skipped = markDelivered(peerOrigin, sequence);
+                    if (skipped < 0) {
+                        duplicateMessages.increment();
+                        continue;
+                    }
+                    if (skipped > 0) {
+                        lostMessages.add(skipped);
+                        batch.add(EncodedMessage.of(FrameCodec.TYPE_SYSTEM, FrameCodec.FORUM_ROOM_ID, lostNotice(peerOrigin, skipped)));
+                    }
+                    batch.add(EncodedMessage.of(type, FrameCodec.FORUM_ROOM_ID, new String(payload, StandardCharsets.UTF_8)));
+                }
+
+                // One task per batch keeps the origin's order on the forum shard
+                if (!batch.isEmpty()) {
+                    shard.execute(FORUM_ROOM, () -> {
+                        for (EncodedMessage message : batch) {
+                            shard.broadcastRelayed(FORUM_ROOM, message, _ -> true);
+                        }
+                    });
+                }
+                out.writeLong(lastSequence);
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Cluster peer link closed: " + socket.getRemoteSocketAddress());
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static byte[] newNonce() {
+        byte[] nonce = new byte[NONCE_BYTES];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    // HMAC over who is answering, the other side's nonce and the sending node, so no answer can be replayed or reflected
+    private static byte[] proof(String role, byte[] nonce, String peerOrigin) throws IOException {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(secret);
+            mac.update(role.getBytes(StandardCharsets.UTF_8));
+            mac.update(nonce);
+            mac.update(peerOrigin.getBytes(StandardCharsets.UTF_8));
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Cannot compute cluster handshake", e);
+        }
+    }
+
+    private static long lastDeliveredFrom(String peerOrigin) {
+        synchronized (lastDelivered) {
+            return lastDelivered.getOrDefault(peerOrigin, 0L);
+        }
+    }
+
+    // -1 for a sequence this node already delivered, otherwise how many the origin sent in between that never arrived
+    private static long markDelivered(String peerOrigin, long sequence) {
+        synchronized (lastDelivered) {
+            Long last = lastDelivered.get(peerOrigin);
+            if (last != null && sequence <= last) {
+                return -1;
+            }
+            lastDelivered.put(peerOrigin, sequence);
+            return last == null ? 0 : sequence - last - 1;
+        }
+    }
+
+    private static String lostNotice(String peerOrigin, long skipped) {
+        String node = peerOrigin.substring(0, Math.max(0, peerOrigin.lastIndexOf('/')));
+        return skipped + (skipped == 1 ? " forum message" : " forum messages") + " from " + node + " were lost between servers";
+    }
+
+    private static void startThread(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static String describe() {
+        PeerLink[] links = peers;
+        if (origin == null) {
+            return "cluster off";
+        }
+
+        StringBuilder sb = new StringBuilder("cluster node=" + origin
+                + " relayed=" + relayedMessages.sum()
+                + " batches=" + relayedBatches.sum()
+                + " received=" + receivedMessages.sum()
+                + " duplicates=" + duplicateMessages.sum()
+                + " dropped=" + droppedMessages.sum()
+                + " lost=" + lostMessages.sum());
+        for (PeerLink link : links) {
+            sb.append(" [").append(link.address).append(link.connected ? " up" : " down")
+                    .append(" queued=").append(link.queue.size());
+            if (link.spool != null) {
+                sb.append(" spooled=").append(link.spool.size() / 1024).append("KB");
+            }
+            sb.append(']');
+        }
+        return sb.toString();
+    }
+
+    private record Relayed(long sequence, byte type, byte[] payload) {
+    }
+
+    private static class PeerLink implements Runnable {
+        private final String address;
+        private final LinkedBlockingQueue<Relayed> queue = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        private final int batchSize = ServerConfig.getClusterBatchSize();
+        private final Spool spool;
+        private volatile boolean connected;
+        // Reported once, not on every reconnect attempt
+        private boolean refused;
+
+        PeerLink(String address) {
+            this.address = address;
+            this.spool = Spool.open(address);
+        }
+
+        // Never blocks the forum's shard; a message the queue has no room for becomes a gap the peer reports
+        void offer(Relayed message) {
+            if (!queue.offer(message)) {
+                droppedMessages.increment();
+            }
+        }
+
+        @Override
+        public void run() {
+            // Sent but not yet acknowledged; resent first after a reconnect
+            List<Relayed> unacked = new ArrayList<>(batchSize);
+            while (true) {
+                try (Socket socket = connect()) {
+                    socket.setSoTimeout(ACK_TIMEOUT_MILLIS);
+                    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    byte[] nonce = newNonce();
+                    out.writeUTF(HELLO);
+                    out.writeUTF(origin);
+                    out.write(nonce);
+                    out.flush();
+                    byte[] peerNonce = in.readNBytes(NONCE_BYTES);
+                    if (peerNonce.length < NONCE_BYTES || !MessageDigest.isEqual(proof("listener", nonce, origin), in.readNBytes(32))) {
+                        if (!refused) {
+                            System.out.println("ClusterBus.java : peer " + address + " does not know the cluster secret");
+                            refused = true;
+                        }
+                        throw new IOException("Peer failed the cluster handshake");
+                    }
+                    refused = false;
+                    out.write(proof("peer", peerNonce, origin));
+                    out.flush();
+                    long resumeAfter = in.readLong();
+                    unacked.removeIf(message -> message.sequence() <= resumeAfter);
+                    connected = true;
+                    System.out.println("Cluster peer link up: " + address);
+
+                    while (true) {
+                        if (unacked.isEmpty()) {
+                            nextBatch(unacked);
+                        }
+                        out.writeInt(unacked.size());
+                        for (Relayed message : unacked) {
+                            out.writeLong(message.sequence());
+                            out.writeByte(message.type());
+                            out.writeInt(message.payload().length);
+                            out.write(message.payload());
+                        }
+                        out.flush();
+
+                        long expected = unacked.get(unacked.size() - 1).sequence();
+                        long acked = in.readLong();
+                        if (acked != expected) {
+                            throw new IOException("Peer acknowledged " + acked + ", expected " + expected);
+                        }
+                        relayedMessages.add(unacked.size());
+                        relayedBatches.increment();
+                        unacked.clear();
+                    }
+                } catch (IOException e) {
+                    if (connected) {
+                        System.out.println("Cluster peer link down: " + address);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                }
+
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                spill();
+            }
+        }
+
+        // From the spool while it holds anything, so newer messages never overtake older ones
+        private void nextBatch(List<Relayed> batch) throws InterruptedException {
+            if (spool != null && !spool.isEmpty()) {
+                spill();
+                try {
+                    spool.read(batch, batchSize);
+                } catch (IOException e) {
+                    // What cannot be read back is gone; the peer sees the gap
+                    System.out.println("ClusterBus.java : nextBatch");
+                    e.printStackTrace();
+                    spool.clear();
+                }
+                if (!batch.isEmpty()) {
+                    return;
+                }
+            }
+            batch.add(queue.take());
+            queue.drainTo(batch, batchSize - 1);
+        }
+
+        // Moves everything queued in memory to the end of the spool
+        private void spill() {
+            if (spool == null || queue.isEmpty()) {
+                return;
+            }
+            List<Relayed> messages = new ArrayList<>(queue.size());
+            queue.drainTo(messages);
+            try {
+                droppedMessages.add(spool.append(messages));
+            } catch (IOException e) {
+                System.out.println("ClusterBus.java : spill");
+                e.printStackTrace();
+                droppedMessages.add(messages.size());
+            }
+        }
+
+        private Socket connect() throws IOException {
+            int colon = address.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IOException("Cluster peer needs host:port: " + address);
+            }
+            int port;
+            try {
+                port = Integer.parseInt(address.substring(colon + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Cluster peer needs host:port: " + address);
+            }
+            Socket socket = new Socket();
+            socket.connect(new InetSocketAddress(address.substring(0, colon), port), 5000);
+            socket.setTcpNoDelay(true);
+            return socket;
+        }
+    }
+
+    // One peer's backlog on disk, oldest first, as sequence, type, length and payload; only its link's thread reads or writes it
+    private static final class Spool {
+        private static final int HEADER_BYTES = Long.BYTES + 1 + Integer.BYTES;
+
+        private final FileChannel channel;
+        private final long maxBytes = ServerConfig.getClusterSpoolMaxBytes();
+        private volatile long readPosition;
+        private volatile long writePosition;
+
+        private Spool(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        // A previous run's spool belongs to an origin nobody will ask for again, so it starts empty
+        static Spool open(String address) {
+            try {
+                Path directory = Paths.get(ServerConfig.getClusterSpoolDirectory());
+                Files.createDirectories(directory);
+                Path path = directory.resolve(address.replaceAll("[^A-Za-z0-9.-]", "_") + ".spool");
+                return new Spool(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+            } catch (IOException e) {
+                System.out.println("ClusterBus.java : Spool.open");
+                e.printStackTrace();
+                return null;
+            }
+        }
+
+        boolean isEmpty() {
+            return readPosition == writePosition;
+        }
+
+        long size() {
+            return writePosition - readPosition;
+        }
+
+        // One write for the whole list; returns how many messages did not fit under the size limit
+        int append(List<Relayed> messages) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            int kept = 0;
+            for (Relayed message : messages) {
+                if (writePosition + bytes.size() + HEADER_BYTES + message.payload().length > maxBytes) {
+                    break;
+                }
+                out.writeLong(message.sequence());
+                out.writeByte(message.type());
+                out.writeInt(message.payload().length);
+                out.write(message.payload());
+                kept++;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+            while (buffer.hasRemaining()) {
+                writePosition += channel.write(buffer, writePosition);
+            }
+            return messages.size() - kept;
+        }
+
+        void read(List<Relayed> batch, int max) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            long position = readPosition;
+            while (batch.size() < max && position < writePosition) {
+                header.clear();
+                readFully(header, position);
+                header.flip();
+                long sequence = header.getLong();
+                byte type = header.get();
+                int length = header.getInt();
+                if (length < 0 || position + HEADER_BYTES + length > writePosition) {
+                    throw new IOException("Corrupt cluster spool record at " + position);
+                }
+                ByteBuffer payload = ByteBuffer.allocate(length);
+                readFully(payload, position + HEADER_BYTES);
+                batch.add(new Relayed(sequence, type, payload.array()));
+                position += HEADER_BYTES + length;
+            }
+            readPosition = position;
+            if (isEmpty()) {
+                clear();
+            }
+        }
+
+        // Drops whatever is left and gives the disk space back
+        void clear() {
+            readPosition = 0;
+            writePosition = 0;
+            try {
+                channel.truncate(0);
+            } catch (IOException e) {
+                System.out.println("ClusterBus.java : Spool.clear");
+                e.printStackTrace();
+            }
+        }
+
+        private void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("Cluster spool ends early");
+                }
+                position += read;
+            }
+        }
+    }
+}
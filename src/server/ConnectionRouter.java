@@ -0,0 +1,203 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import client.ClientHandler;
+import client.EncodedMessage;
+import client.FrameCodec;
+import client.MessageReader;
+import client.StreamCompressor;
+
+/**
+ * Routes a connection accepted on the shared listener to the forum, a DM or a group chat.
+ * Forum clients send their username as the first line, as they always have. DM and GC clients
+ * first send a join line naming the room, then their username:
+ *
+ *   JOIN DM <dmKey>
+ *   JOIN GC <gcKey> <gcName>
+ *
+ * Rooms are created on first join, so creating a room costs no port and no acceptor thread.
+ * A first line starting with "DIRECTORY " is a one-shot RoomDirectory request, and one starting
+ * with "SEARCH " a one-shot SearchIndex query, authorized by the session tokens it names.
+ *
+ * Any of these may be preceded by a "PROTO 1" negotiation line (see FrameCodec); once it is
+ * accepted, everything after it travels as binary frames: optional "RESUME <token> <lastSeq>"
+ * and "HISTORY <n>" requests (see JoinRequest), then the join line, the username and every
+ * later message.
+ *
+ * The whole exchange, username included, runs here on the connection's own thread under a
+ * Handshake deadline; handlers are only created once the username is known.
+ */
+public class ConnectionRouter {
+    public static final String JOIN_DM = "JOIN DM ";
+    public static final String JOIN_GC = "JOIN GC ";
+
+    static boolean isOneShotRequest(String line) {
+        return line.startsWith(RoomDirectory.DIRECTORY_REQUEST) || line.startsWith(SearchIndex.SEARCH_REQUEST) || line.startsWith(ChatHistory.FETCH_REQUEST);
+    }
+
+    // The reply lines of a DIRECTORY, SEARCH or FETCH request, after which the connection is closed
+    static List<String> answerOneShotRequest(String line) {
+        if (line.startsWith(SearchIndex.SEARCH_REQUEST)) {
+            return SearchIndex.handleRequest(line);
+        }
+        return line.startsWith(ChatHistory.FETCH_REQUEST) ? ChatHistory.handleRequest(line) : RoomDirectory.handleRequest(line);
+    }
+
+    public static void route(Socket socket) {
+        MessageReader messageReader = null;
+        BufferedWriter bufferedWriter = null;
+        // Only the socket is closed from the timer; the streams may be locked by a blocked read
+        Handshake handshake = Handshake.start(() -> closeSocket(socket), String.valueOf(socket.getRemoteSocketAddress()));
+
+        try {
+            // Text clients get no heartbeat, so TCP keepalive is what eventually notices a vanished peer
+            socket.setKeepAlive(true);
+            bufferedWriter = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            messageReader = new MessageReader(bufferedReader);
+            String firstLine = bufferedReader.readLine();
+
+            if (firstLine != null && firstLine.startsWith(FrameCodec.NEGOTIATE_PREFIX)) {
+                messageReader = negotiate(socket, messageReader, bufferedWriter, firstLine);
+                firstLine = messageReader.readMessage();
+            }
+            JoinRequest request = JoinRequest.DEFAULT;
+            while (firstLine != null && messageReader.isFramed() && JoinRequest.isPreamble(firstLine)) {
+                request = request.with(firstLine);
+                firstLine = messageReader.readMessage();
+            }
+
+            if (firstLine == null) {
+                handshake.abandon();
+                close(socket, messageReader, bufferedWriter);
+            } else if (isOneShotRequest(firstLine)) {
+                handshake.complete();
+                for (String line : answerOneShotRequest(firstLine)) {
+                    send(socket, messageReader, bufferedWriter, FrameCodec.TYPE_CONTROL, line);
+                }
+                bufferedWriter.flush();
+                close(socket, messageReader, bufferedWriter);
+            } else if (firstLine.startsWith(JOIN_DM)) {
+                String dmKey = firstLine.substring(JOIN_DM.length()).trim();
+                if (dmKey.isEmpty()) {
+                    handshake.abandon();
+                    reject(socket, messageReader, bufferedWriter, "Missing DM key");
+                    return;
+                }
+                String username = readUsername(messageReader, handshake);
+                if (username == null) {
+                    close(socket, messageReader, bufferedWriter);
+                    return;
+                }
+                DMServer.createDMServer(dmKey).accept(socket, messageReader, bufferedWriter, username, request);
+            } else if (firstLine.startsWith(JOIN_GC)) {
+                String[] parts = firstLine.substring(JOIN_GC.length()).trim().split(" ", 2);
+                if (parts[0].isEmpty()) {
+                    handshake.abandon();
+                    reject(socket, messageReader, bufferedWriter, "Missing group chat key");
+                    return;
+                }
+                String username = readUsername(messageReader, handshake);
+                if (username == null) {
+                    close(socket, messageReader, bufferedWriter);
+                    return;
+                }
+                String gcName = parts.length > 1 && !parts[1].isBlank() ? parts[1].trim() : parts[0];
+                GCServer.createGCServer(parts[0], gcName).accept(socket, messageReader, bufferedWriter, username, request);
+            } else if (handshake.complete()) {
+                new ClientHandler(socket, messageReader, bufferedWriter, firstLine, request).run();
+            } else {
+                close(socket, messageReader, bufferedWriter);
+            }
+        } catch (IOException e) {
+            handshake.abandon();
+            close(socket, messageReader, bufferedWriter);
+        }
+    }
+
+    // Null if the client hung up or the deadline passed before the username arrived
+    private static String readUsername(MessageReader messageReader, Handshake handshake) throws IOException {
+        String username = messageReader.readMessage();
+        if (username == null) {
+            handshake.abandon();
+            return null;
+        }
+        return handshake.complete() ? username : null;
+    }
+
+    // The client waits for this reply before sending anything else, so no frame bytes sit in the line reader
+    private static MessageReader negotiate(Socket socket, MessageReader textReader, BufferedWriter bw, String line) throws IOException {
+        boolean framed = FrameCodec.acceptsNegotiation(line);
+        boolean deflate = framed && ServerConfig.isCompressionEnabled() && FrameCodec.hasOption(line, FrameCodec.OPTION_DEFLATE);
+        if (!framed) {
+            bw.write(FrameCodec.NEGOTIATE_DECLINE);
+        } else {
+            bw.write(deflate ? FrameCodec.NEGOTIATE_ACCEPT + " " + FrameCodec.OPTION_DEFLATE : FrameCodec.NEGOTIATE_ACCEPT);
+        }
+        bw.newLine();
+        bw.flush();
+
+        if (!framed) {
+            return textReader;
+        }
+        StreamCompressor compressor = deflate ? new StreamCompressor(String.valueOf(socket.getRemoteSocketAddress())) : null;
+        return new MessageReader(socket.getInputStream(), ServerConfig.getMaxFrameBytes(), compressor);
+    }
+
+    private static void send(Socket socket, MessageReader reader, BufferedWriter bw, byte type, String message) throws IOException {
+        if (reader.isFramed()) {
+            EncodedMessage encoded = EncodedMessage.of(type, FrameCodec.FORUM_ROOM_ID, message);
+            ByteBuffer[] buffers = encoded.buffers(true);
+            if (reader.getCompressor() != null) {
+                buffers = new ByteBuffer[] { reader.getCompressor().deflate(buffers) };
+            }
+            for (ByteBuffer buffer : buffers) {
+                byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                socket.getOutputStream().write(bytes);
+            }
+            encoded.release();
+        } else {
+            bw.write(type == FrameCodec.TYPE_SYSTEM ? FrameCodec.SYSTEM_PREFIX + message : message);
+            bw.newLine();
+        }
+    }
+
+    private static void reject(Socket socket, MessageReader reader, BufferedWriter bw, String reason) throws IOException {
+        send(socket, reader, bw, FrameCodec.TYPE_SYSTEM, reason);
+        bw.flush();
+        close(socket, reader, bw);
+    }
+
+    private static void closeSocket(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void close(Socket socket, MessageReader reader, BufferedWriter bw) {
+        try {
+            if (reader != null) {
+                reader.close();
+            }
+            if (bw != null) {
+                bw.close();
+            }
+            if (socket != null) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,102 +1,63 @@
 package server;
 
-import java.io.IOException;
-import java.net.ServerSocket;
+import java.io.BufferedWriter;
 import java.net.Socket;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import client.DMClientHandler;
+import client.MessageReader;
+import client.RoomInfo;
 
+/**
+ * In-process state for one DM room on the shared listener. Connections are routed here by
+ * ConnectionRouter after a "JOIN DM <dmKey>" handshake, so a DM no longer needs its own port.
+ */
 public class DMServer {
-    private ServerSocket serverSocket;
-    private int port;
     private String dmKey;
-    private static Map<String, DMServer> activeDMServers = new HashMap<>();
+    private final ExecutorService roomExecutor;
+    private static Map<String, DMServer> activeDMServers = new ConcurrentHashMap<>();
 
-    public DMServer(ServerSocket serverSocket, int port, String dmKey) {
-        this.serverSocket = serverSocket;
-        this.port = port;
+    public DMServer(String dmKey) {
         this.dmKey = dmKey;
+        this.roomExecutor = ServerExecutors.newRoomExecutor("dm-" + dmKey);
     }
 
-    public void startServer() {
+    public void accept(Socket socket, MessageReader messageReader, BufferedWriter bufferedWriter, String clientUsername, JoinRequest request) {
+        System.out.println("New DM client connected: " + socket.getInetAddress() + " for DM: " + dmKey + " (" + ServerExecutors.describe() + ")");
         try {
-            System.out.println("DM Server started for " + dmKey + " on port " + port + ". Waiting for connections...");
-            activeDMServers.put(dmKey, this);
-
-            while (!serverSocket.isClosed()) {
-                Socket socket = serverSocket.accept();
-                System.out.println("New DM client connected: " + socket.getInetAddress() + " for DM: " + dmKey);
-                DMClientHandler clientHandler = new DMClientHandler(socket, dmKey);
-
-                Thread thread = new Thread(clientHandler);
-                thread.start();
-            }
-        } catch (IOException e) {
-            System.out.println("DMServer.java : startServer - " + dmKey);
-            e.printStackTrace();
-            closeServerSocket();
-        }
-    }
-
-    public void closeServerSocket() {
-        try {
-            if (serverSocket != null) {
-                serverSocket.close();
-            }
-            activeDMServers.remove(dmKey);
-            System.out.println("DM Server closed for " + dmKey);
-        } catch (IOException e) {
-            System.out.println("DMServer.java : closeServerSocket - " + dmKey);
-            e.printStackTrace();
+            roomExecutor.execute(() -> new DMClientHandler(socket, messageReader, bufferedWriter, clientUsername, dmKey, request).run());
+        } catch (RejectedExecutionException e) {
+            // The room emptied and closed after this client was routed to it
+            createDMServer(dmKey).accept(socket, messageReader, bufferedWriter, clientUsername, request);
         }
     }
 
     public static DMServer createDMServer(String dmKey) {
-        try {
-            int port = findAvailablePort(2000);
-            ServerSocket serverSocket = new ServerSocket(port);
-            DMServer dmServer = new DMServer(serverSocket, port, dmKey);
-
-            Thread serverThread = new Thread(() -> dmServer.startServer());
-            serverThread.setDaemon(true);
-            serverThread.start();
-
-            return dmServer;
-        } catch (IOException e) {
-            System.out.println("Failed to create DM Server for " + dmKey);
-            e.printStackTrace();
-            return null;
-        }
-    }
-
-    public static int findAvailablePort(int startPort) {
-        for (int port = startPort; port < startPort + 1000; port++) {
-            try {
-                ServerSocket testSocket = new ServerSocket(port);
-                testSocket.close();
-                return port;
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        throw new RuntimeException("No available ports found");
+        return activeDMServers.computeIfAbsent(dmKey, key -> {
+            System.out.println("DM Server started for " + key);
+            RoomDirectory.register(RoomInfo.TYPE_DM, key, key);
+            return new DMServer(key);
+        });
     }
 
     public static DMServer getDMServer(String dmKey) {
         return activeDMServers.get(dmKey);
     }
 
-    public static void closeDMServer(String dmKey) {
-        DMServer server = activeDMServers.get(dmKey);
+    // Called on the room's shard once its last member has left, as NioServer closes an emptied
+    // room: the directory entry, the shard's state and the room executor go. A client routed here
+    // meanwhile has its handler started by a fresh DMServer instead.
+    public static void closeEmptyRoom(String dmKey) {
+        DMServer server = activeDMServers.remove(dmKey);
         if (server != null) {
-            server.closeServerSocket();
+            server.roomExecutor.shutdown();
         }
-    }
-
-    public int getPort() {
-        return port;
+        RoomDirectory.unregister(dmKey);
+        RoomShard.forRoom("dm:" + dmKey).forget("dm:" + dmKey);
+        System.out.println("DM Server closed for " + dmKey);
     }
 
     public String getDmKey() {
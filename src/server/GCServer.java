@@ -1,104 +1,65 @@
 package server;
 
-import java.io.IOException;
-import java.net.ServerSocket;
+import java.io.BufferedWriter;
 import java.net.Socket;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import client.GCClientHandler;
+import client.MessageReader;
+import client.RoomInfo;
 
+/**
+ * In-process state for one group chat on the shared listener. Connections are routed here by
+ * ConnectionRouter after a "JOIN GC <gcKey> <gcName>" handshake; the first join creates the room.
+ */
 public class GCServer {
-    private ServerSocket serverSocket;
-    private int port;
     private String gcName;
     private String gcKey;
-    private static Map<String, GCServer> activeGCServers = new HashMap<>();
+    private final ExecutorService roomExecutor;
+    private static Map<String, GCServer> activeGCServers = new ConcurrentHashMap<>();
 
-    public GCServer(ServerSocket serverSocket, int port, String gcKey, String gcName) {
-        this.serverSocket = serverSocket;
-        this.port = port;
+    public GCServer(String gcKey, String gcName) {
         this.gcKey = gcKey;
         this.gcName = gcName;
+        this.roomExecutor = ServerExecutors.newRoomExecutor("gc-" + gcKey);
     }
 
-    public void startServer() {
+    public void accept(Socket socket, MessageReader messageReader, BufferedWriter bufferedWriter, String clientUsername, JoinRequest request) {
+        System.out.println("New GC client connected: " + socket.getInetAddress() + " for GC: " + gcName + " (" + ServerExecutors.describe() + ")");
         try {
-            System.out.println("GC Server started for '" + gcName + "' (" + gcKey + ") on port " + port + ". Waiting for connections...");
-            activeGCServers.put(gcKey, this);
-
-            while (!serverSocket.isClosed()) {
-                Socket socket = serverSocket.accept();
-                System.out.println("New GC client connected: " + socket.getInetAddress() + " for GC: " + gcName);
-                GCClientHandler clientHandler = new GCClientHandler(socket, gcKey, gcName);
-
-                Thread thread = new Thread(clientHandler);
-                thread.start();
-            }
-        } catch (IOException e) {
-            System.out.println("GCServer.java : startServer - " + gcName);
-            e.printStackTrace();
-            closeServerSocket();
-        }
-    }
-
-    public void closeServerSocket() {
-        try {
-            if (serverSocket != null) {
-                serverSocket.close();
-            }
-            activeGCServers.remove(gcKey);
-            System.out.println("GC Server closed for " + gcName);
-        } catch (IOException e) {
-            System.out.println("GCServer.java : closeServerSocket - " + gcName);
-            e.printStackTrace();
+            roomExecutor.execute(() -> new GCClientHandler(socket, messageReader, bufferedWriter, clientUsername, gcKey, gcName, request).run());
+        } catch (RejectedExecutionException e) {
+            // The room emptied and closed after this client was routed to it
+            createGCServer(gcKey, gcName).accept(socket, messageReader, bufferedWriter, clientUsername, request);
         }
     }
 
     public static GCServer createGCServer(String gcKey, String gcName) {
-        try {
-            int port = findAvailablePort(3000);
-            ServerSocket serverSocket = new ServerSocket(port);
-            GCServer gcServer = new GCServer(serverSocket, port, gcKey, gcName);
-
-            Thread serverThread = new Thread(() -> gcServer.startServer());
-            serverThread.setDaemon(true);
-            serverThread.start();
-
-            return gcServer;
-        } catch (IOException e) {
-            System.out.println("Failed to create GC Server for " + gcName);
-            e.printStackTrace();
-            return null;
-        }
-    }
-
-    public static int findAvailablePort(int startPort) {
-        for (int port = startPort; port < startPort + 1000; port++) {
-            try {
-                ServerSocket testSocket = new ServerSocket(port);
-                testSocket.close();
-                return port;
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-        throw new RuntimeException("No available ports found");
+        return activeGCServers.computeIfAbsent(gcKey, key -> {
+            System.out.println("GC Server started for '" + gcName + "' (" + key + ")");
+            RoomDirectory.register(RoomInfo.TYPE_GC, key, gcName);
+            return new GCServer(key, gcName);
+        });
     }
 
     public static GCServer getGCServer(String gcKey) {
         return activeGCServers.get(gcKey);
     }
 
-    public static void closeGCServer(String gcKey) {
-        GCServer server = activeGCServers.get(gcKey);
+    // Called on the room's shard once its last member has left, as NioServer closes an emptied
+    // room: the directory entry, the shard's state and the room executor go. A client routed here
+    // meanwhile has its handler started by a fresh GCServer instead.
+    public static void closeEmptyRoom(String gcKey) {
+        GCServer server = activeGCServers.remove(gcKey);
         if (server != null) {
-            server.closeServerSocket();
+            server.roomExecutor.shutdown();
         }
-    }
-
-    public int getPort() {
-        return port;
+        RoomDirectory.unregister(gcKey);
+        RoomShard.forRoom("gc:" + gcKey).forget("gc:" + gcKey);
+        System.out.println("GC Server closed for " + gcKey);
     }
 
     public String getGcKey() {
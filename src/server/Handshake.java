@@ -0,0 +1,66 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import utils.HashedTimingWheel;
+
+/**
+ * Deadline for the opening exchange of one connection: the optional PROTO line, the optional
+ * JOIN line and the username. It starts at accept time; a client that has not finished within
+ * tong.handshake.timeoutMs is closed from the timing wheel, so a silent client holds nothing
+ * but its own connection thread, and only until the deadline.
+ */
+public class Handshake implements Runnable {
+    private final long startNanos = System.nanoTime();
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private final Runnable onTimeout;
+    private final String remote;
+    private HashedTimingWheel.Timeout timeout;
+
+    private Handshake(Runnable onTimeout, String remote) {
+        this.onTimeout = onTimeout;
+        this.remote = remote;
+    }
+
+    public static Handshake start(Runnable onTimeout, String remote) {
+        Handshake handshake = new Handshake(onTimeout, remote);
+        int timeoutMillis = ServerConfig.getHandshakeTimeoutMillis();
+        if (timeoutMillis > 0) {
+            handshake.timeout = ServerExecutors.getTimer().schedule(handshake, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        return handshake;
+    }
+
+    @Override
+    public void run() {
+        if (finished.compareAndSet(false, true)) {
+            ServerStats.handshakeTimedOut();
+            System.out.println("Handshake timed out: " + remote);
+            onTimeout.run();
+        }
+    }
+
+    // False when the deadline has already closed the connection
+    public boolean complete() {
+        if (!finished.compareAndSet(false, true)) {
+            return false;
+        }
+        cancelTimeout();
+        ServerStats.handshakeCompleted(System.nanoTime() - startNanos);
+        return true;
+    }
+
+    // The client went away before finishing; nothing to record
+    public void abandon() {
+        if (finished.compareAndSet(false, true)) {
+            cancelTimeout();
+        }
+    }
+
+    private void cancelTimeout() {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import utils.HashedTimingWheel;
+
+/**
+ * Heartbeat and idle timeout for one framed connection, checked from the shared timing wheel.
+ * The read path only records when it last saw a message; the watch wakes up when that could
+ * matter, sends one PING once the client has been quiet for tong.idle.pingSec, and closes the
+ * connection when nothing at all has arrived for tong.idle.timeoutSec.
+ */
+public class IdleWatch implements Runnable {
+    private final LongSupplier lastActivity;
+    private final Runnable ping;
+    private final Runnable expire;
+    private final long pingNanos = TimeUnit.SECONDS.toNanos(ServerConfig.getIdlePingSeconds());
+    private final long timeoutNanos = TimeUnit.SECONDS.toNanos(ServerConfig.getIdleTimeoutSeconds());
+    private long pingedAt = -1;
+    private volatile HashedTimingWheel.Timeout timeout;
+    private volatile boolean stopped;
+
+    private IdleWatch(LongSupplier lastActivity, Runnable ping, Runnable expire) {
+        this.lastActivity = lastActivity;
+        this.ping = ping;
+        this.expire = expire;
+    }
+
+    // lastActivity is a System.nanoTime() stamp; the watch does nothing when tong.idle.timeoutSec is 0
+    public static IdleWatch start(LongSupplier lastActivity, Runnable ping, Runnable expire) {
+        IdleWatch watch = new IdleWatch(lastActivity, ping, expire);
+        if (watch.timeoutNanos > 0) {
+            watch.schedule(Math.min(watch.timeoutNanos, watch.pingNanos > 0 ? watch.pingNanos : watch.timeoutNanos));
+        }
+        return watch;
+    }
+
+    @Override
+    public void run() {
+        if (stopped) {
+            return;
+        }
+
+        long last = lastActivity.getAsLong();
+        long idle = System.nanoTime() - last;
+        if (idle >= timeoutNanos) {
+            stopped = true;
+            ServerStats.idleTimedOut();
+            expire.run();
+            return;
+        }
+
+        long next = timeoutNanos - idle;
+        if (pingNanos > 0 && idle >= pingNanos) {
+            // One ping per quiet period; any reply counts as activity
+            if (pingedAt != last) {
+                pingedAt = last;
+                ServerStats.heartbeatSent();
+                ping.run();
+            }
+        } else if (pingNanos > 0) {
+            next = Math.min(next, pingNanos - idle);
+        }
+        schedule(next);
+    }
+
+    public void stop() {
+        stopped = true;
+        HashedTimingWheel.Timeout current = timeout;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    private void schedule(long delayNanos) {
+        timeout = ServerExecutors.getTimer().schedule(this, delayNanos, TimeUnit.NANOSECONDS);
+    }
+}
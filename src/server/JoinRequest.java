@@ -0,0 +1,29 @@
+package server;
+
+import client.FrameCodec;
+
+/**
+ * What a framed client asked for in the optional lines it may send before its join line and
+ * username: "RESUME <token> <lastSeq>" to pick up a dropped session (see SessionRegistry), and
+ * "HISTORY <n>" to be backfilled with at most n recent messages, where "HISTORY 0" asks for none.
+ * Without a HISTORY line a client gets the room's configured backfill.
+ */
+public record JoinRequest(String resumeLine, int historyLimit) {
+    public static final JoinRequest DEFAULT = new JoinRequest(null, -1);
+
+    public static boolean isPreamble(String line) {
+        return line.startsWith(FrameCodec.RESUME_PREFIX) || line.startsWith(FrameCodec.HISTORY_PREFIX);
+    }
+
+    // This request with one more preamble line applied; a malformed HISTORY line is ignored
+    public JoinRequest with(String line) {
+        if (line.startsWith(FrameCodec.RESUME_PREFIX)) {
+            return new JoinRequest(line, historyLimit);
+        }
+        try {
+            return new JoinRequest(resumeLine, Math.max(0, Integer.parseInt(line.substring(FrameCodec.HISTORY_PREFIX.length()).trim())));
+        } catch (NumberFormatException e) {
+            return this;
+        }
+    }
+}
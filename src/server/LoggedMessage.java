@@ -0,0 +1,8 @@
+package server;
+
+/**
+ * One chat message read back from a room's MessageLog. Offsets count the room's logged messages
+ * from 0 and never repeat, so they survive restarts where room sequence numbers do not.
+ */
+public record LoggedMessage(long offset, long timestampMillis, byte type, String text) {
+}
@@ -0,0 +1,302 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Durable chat history: one RoomLog per room under tong.log.dir. Room shards hand every chat
+ * message to a bounded queue and move on; a single writer thread copies whatever has queued up
+ * into the rooms' mapped segments and then forces them to disk together, at most once every
+ * tong.log.flushMs, so one fsync commits a whole batch. If the disk falls that far behind, new
+ * messages are dropped from the log rather than slowing the broadcast. At startup each room's
+ * last segment is scanned to find the end of the log, and the writer deletes whole segments
+ * past tong.log.retentionHours or tong.log.retentionMB. The writer also unmaps the segments of
+ * rooms their shard has let go of, and of rooms nobody has written or read for
+ * tong.log.idleMinutes, so only rooms in use hold address space and page tables.
+ */
+public class MessageLog {
+    private static final long RETENTION_CHECK_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final Map<String, RoomLog> logs = new ConcurrentHashMap<>();
+    private static final LinkedBlockingQueue<Append> queue = new LinkedBlockingQueue<>(ServerConfig.getLogQueueCapacity());
+    private static final ConcurrentLinkedQueue<String> released = new ConcurrentLinkedQueue<>();
+    private static volatile Path root;
+    private static volatile Thread writer;
+
+    private static final LongAdder appendedMessages = new LongAdder();
+    private static final LongAdder droppedMessages = new LongAdder();
+    private static final LongAdder failedMessages = new LongAdder();
+    private static final LongAdder syncs = new LongAdder();
+    private static final LongAdder syncNanos = new LongAdder();
+    private static final LongAdder deletedSegments = new LongAdder();
+    private static final LongAdder unmappedLogs = new LongAdder();
+
+    private record Append(String roomKey, long timestampMillis, byte type, String text) {
+    }
+
+    public static synchronized void start() {
+        String directory = ServerConfig.getLogDirectory();
+        if (root != null || directory.isEmpty()) {
+            return;
+        }
+
+        Path path = Paths.get(directory);
+        long recovered = 0;
+        try {
+            Files.createDirectories(path);
+            try (Stream<Path> rooms = Files.list(path)) {
+                for (Path roomDirectory : (Iterable<Path>) rooms::iterator) {
+                    if (Files.isDirectory(roomDirectory)) {
+                        RoomLog log = RoomLog.open(roomDirectory, ServerConfig.getLogSegmentBytes(), ServerConfig.getLogIndexIntervalBytes());
+                        logs.put(log.getRoomKey(), log);
+                        recovered += log.getNextOffset() - log.getFirstOffset();
+                        // Mapped again when the room is first used
+                        log.unmap();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("MessageLog.java : start");
+            e.printStackTrace();
+            return;
+        }
+
+        root = path;
+        writer = new Thread(MessageLog::writeLoop, "tong-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(MessageLog::stop, "tong-log-shutdown"));
+        System.out.println("Message log in " + path.toAbsolutePath() + ": " + logs.size() + " rooms, " + recovered + " messages retained");
+    }
+
+    public static boolean isEnabled() {
+        return root != null;
+    }
+
+    public static List<String> getRoomKeys() {
+        return new ArrayList<>(logs.keySet());
+    }
+
+    // The offset the room's next logged message will get; 0 for a room with no log
+    public static long getNextOffset(String roomKey) {
+        RoomLog log = logs.get(roomKey);
+        return log == null ? 0 : log.getNextOffset();
+    }
+
+    // The oldest offset retention has not deleted yet
+    public static long getFirstOffset(String roomKey) {
+        RoomLog log = logs.get(roomKey);
+        return log == null ? 0 : log.getFirstOffset();
+    }
+
+    // The first offset of the room logged at or after timestampMillis; getNextOffset() if none was
+    public static long offsetAt(String roomKey, long timestampMillis) {
+        RoomLog log = logs.get(roomKey);
+        return log == null ? 0 : log.offsetAt(timestampMillis);
+    }
+
+    // Called on the room's shard for every chat message; never waits for the disk
+    public static void append(String roomKey, byte type, String text, long timestampMillis) {
+        if (root == null) {
+            return;
+        }
+        if (!queue.offer(new Append(roomKey, timestampMillis, type, text))) {
+            droppedMessages.increment();
+        }
+    }
+
+    // Called on the room's shard once it has forgotten or evicted the room; the writer unmaps its log next time round
+    public static void release(String roomKey) {
+        if (root != null) {
+            released.add(roomKey);
+        }
+    }
+
+    // Up to max logged messages of the room from fromOffset on, oldest first
+    public static List<LoggedMessage> read(String roomKey, long fromOffset, int max) {
+        RoomLog log = logs.get(roomKey);
+        return log == null || max <= 0 ? List.of() : log.read(fromOffset, max);
+    }
+
+    // The room's newest max logged messages, oldest first
+    public static List<LoggedMessage> recent(String roomKey, int max) {
+        RoomLog log = logs.get(roomKey);
+        return log == null || max <= 0 ? List.of() : log.read(log.getNextOffset() - max, max);
+    }
+
+    private static void writeLoop() {
+        long flushNanos = TimeUnit.MILLISECONDS.toNanos(ServerConfig.getLogFlushMillis());
+        List<Append> batch = new ArrayList<>();
+        Set<RoomLog> dirty = new HashSet<>();
+        long lastSync = System.nanoTime();
+        long lastRetention = 0;
+
+        while (true) {
+            try {
+                // With nothing to commit, sleep until the next message; otherwise only until the commit is due
+                long wait = dirty.isEmpty() ? RETENTION_CHECK_MILLIS : Math.max(0, TimeUnit.NANOSECONDS.toMillis(lastSync + flushNanos - System.nanoTime()));
+                Append first = queue.poll(wait, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch);
+                }
+            } catch (InterruptedException e) {
+                // Shutting down: log whatever is still queued and commit it
+                queue.drainTo(batch);
+                write(batch, dirty);
+                sync(dirty);
+                return;
+            }
+
+            if (!batch.isEmpty()) {
+                SearchIndex.logChanged(write(batch, dirty));
+            }
+            if (!dirty.isEmpty() && System.nanoTime() - lastSync >= flushNanos) {
+                sync(dirty);
+                lastSync = System.nanoTime();
+            }
+
+            unmapReleased(dirty);
+
+            long now = System.currentTimeMillis();
+            if (now - lastRetention >= RETENTION_CHECK_MILLIS) {
+                SearchIndex.logChanged(deleteExpired(now));
+                unmapIdle(now, dirty);
+                lastRetention = now;
+            }
+        }
+    }
+
+    // The keys of the rooms it appended to
+    private static Set<String> write(List<Append> batch, Set<RoomLog> dirty) {
+        Set<String> appended = new HashSet<>();
+        for (Append append : batch) {
+            try {
+                RoomLog log = logs.get(append.roomKey());
+                if (log == null) {
+                    log = RoomLog.open(RoomLog.directoryFor(root, append.roomKey()), ServerConfig.getLogSegmentBytes(), ServerConfig.getLogIndexIntervalBytes());
+                    logs.put(append.roomKey(), log);
+                }
+                if (log.append(append.timestampMillis(), append.type(), append.text().getBytes(StandardCharsets.UTF_8))) {
+                    // Size retention is checked as soon as a room grows a segment
+                    deletedSegments.add(log.deleteExpired(retentionCutoff(System.currentTimeMillis()), ServerConfig.getLogRetentionBytes()));
+                }
+                dirty.add(log);
+                appended.add(append.roomKey());
+                appendedMessages.increment();
+            } catch (IOException e) {
+                failedMessages.increment();
+                System.out.println("MessageLog.java : write " + append.roomKey() + ": " + e.getMessage());
+            }
+        }
+        batch.clear();
+        return appended;
+    }
+
+    // Group commit: one force per room for everything written since the last one
+    private static void sync(Set<RoomLog> dirty) {
+        long start = System.nanoTime();
+        for (RoomLog log : dirty) {
+            log.flush();
+        }
+        dirty.clear();
+        syncs.increment();
+        syncNanos.add(System.nanoTime() - start);
+    }
+
+    private static long retentionCutoff(long now) {
+        int retentionHours = ServerConfig.getLogRetentionHours();
+        return retentionHours > 0 ? now - TimeUnit.HOURS.toMillis(retentionHours) : 0;
+    }
+
+    // The keys of the rooms that lost segments
+    private static Set<String> deleteExpired(long now) {
+        long cutoff = retentionCutoff(now);
+        long maxBytes = ServerConfig.getLogRetentionBytes();
+        Set<String> shrunk = new HashSet<>();
+        for (RoomLog log : logs.values()) {
+            int deleted = log.deleteExpired(cutoff, maxBytes);
+            if (deleted > 0) {
+                deletedSegments.add(deleted);
+                shrunk.add(log.getRoomKey());
+            }
+        }
+        return shrunk;
+    }
+
+    // unmap() commits whatever the log still had pending, so it no longer needs a sync
+    private static void unmapReleased(Set<RoomLog> dirty) {
+        String roomKey;
+        while ((roomKey = released.poll()) != null) {
+            RoomLog log = logs.get(roomKey);
+            if (log != null && log.isMapped()) {
+                dirty.remove(log);
+                log.unmap();
+                unmappedLogs.increment();
+            }
+        }
+    }
+
+    private static void unmapIdle(long now, Set<RoomLog> dirty) {
+        long idleMillis = TimeUnit.MINUTES.toMillis(ServerConfig.getLogIdleMinutes());
+        for (RoomLog log : logs.values()) {
+            if (now - log.getLastUsedMillis() >= idleMillis && !dirty.contains(log) && log.isMapped()) {
+                log.unmap();
+                unmappedLogs.increment();
+            }
+        }
+    }
+
+    private static void stop() {
+        Thread thread = writer;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(5000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public static String describe() {
+        if (root == null) {
+            return "log off";
+        }
+
+        long bytes = 0;
+        int mapped = 0;
+        for (RoomLog log : logs.values()) {
+            bytes += log.getSizeBytes();
+            if (log.isMapped()) {
+                mapped++;
+            }
+        }
+        long syncCount = syncs.sum();
+        double averageMillis = syncCount == 0 ? 0 : syncNanos.sum() / 1e6 / syncCount;
+        return "log rooms=" + logs.size()
+                + ", mapped=" + mapped
+                + ", segments=" + bytes / 1024 / 1024 + "MB"
+                + ", queued=" + queue.size()
+                + ", appended=" + appendedMessages.sum()
+                + ", dropped=" + droppedMessages.sum()
+                + ", failed=" + failedMessages.sum()
+                + ", syncs=" + syncCount + " (avg " + String.format("%.2f", averageMillis) + "ms)"
+                + ", deletedSegments=" + deletedSegments.sum()
+                + ", unmapped=" + unmappedLogs.sum();
+    }
+}
@@ -0,0 +1,657 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import client.EncodedMessage;
+import client.FrameCodec;
+import client.OutboundQueue;
+import client.RoomInfo;
+import client.RoomMember;
+import client.StreamCompressor;
+
+/**
+ * Non-blocking forum server. A fixed set of event loops own the client channels and
+ * do line framing, reads and broadcast writes, so idle clients no longer cost a thread each.
+ * The wire protocol is the same newline-terminated text that ClientHandler speaks:
+ * the first line is the username, every following line is broadcast to the other clients.
+ * DM and GC clients send the ConnectionRouter join line first and are kept in their own room.
+ * Clients may negotiate FrameCodec binary frames with a "PROTO 1" first line, exactly as with ConnectionRouter.
+ * Outbound queues follow the same tong.outbound.* bounds and slow-consumer policy as OutboundQueue.
+ * Room membership and fan-out live on RoomShard threads, shared with the blocking handlers.
+ */
+public class NioServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int MAX_LINE_LENGTH = 1024 * 1024;
+    private static final String FORUM_ROOM = "forum";
+
+    private final ServerSocketChannel serverChannel;
+    private final int port;
+    private final EventLoop[] eventLoops;
+    private final int maxFrameBytes = ServerConfig.getMaxFrameBytes();
+    private int nextLoop = 0;
+
+    public NioServer(ServerSocketChannel serverChannel, int port, int eventLoopCount) throws IOException {
+        this.serverChannel = serverChannel;
+        this.port = port;
+        this.eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(i);
+        }
+    }
+
+    public void startServer() {
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.start();
+        }
+
+        try {
+            System.out.println("NIO Server started on port " + port + " with " + eventLoops.length + " event loops. Waiting for connections...");
+            while (serverChannel.isOpen()) {
+                SocketChannel channel = serverChannel.accept();
+                System.out.println("New client connected: " + channel.getRemoteAddress());
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                channel.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+
+                eventLoops[nextLoop].register(channel);
+                nextLoop = (nextLoop + 1) % eventLoops.length;
+            }
+        } catch (IOException e) {
+            System.out.println("NioServer.java : startServer");
+            e.printStackTrace();
+            closeServerSocket();
+        }
+    }
+
+    public void closeServerSocket() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            System.out.println("NioServer.java : closeServerSocket");
+        }
+
+        for (EventLoop eventLoop : eventLoops) {
+            eventLoop.shutdown();
+        }
+    }
+
+    public int getConnectionCount() {
+        return RoomShard.getMemberCount();
+    }
+
+    // Encoded on the event loop, fanned out on the room's shard, which also relays forum messages in its order
+    private static void broadcast(Connection sender, byte type, String messageToSend) {
+        EncodedMessage message = EncodedMessage.of(type, sender.roomId, messageToSend);
+        RoomShard shard = sender.shard;
+        shard.execute(sender.roomKey, () -> {
+            shard.broadcast(sender.roomKey, message, member -> !member.getClientUsername().equals(sender.username));
+            if (FORUM_ROOM.equals(sender.roomKey)) {
+                ClusterBus.publish(type, messageToSend);
+            }
+        });
+    }
+
+    private static String joinNotice(Connection connection) {
+        if (FORUM_ROOM.equals(connection.roomKey)) {
+            return connection.username + " has entered the chat!";
+        }
+        return connection.username + " has joined " + connection.roomLabel + "!";
+    }
+
+    private static String leaveNotice(Connection connection) {
+        return connection.username + " has left " + connection.roomLabel + "!";
+    }
+
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Thread thread;
+        private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingFlushes = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private volatile boolean running = true;
+
+        EventLoop(int index) throws IOException {
+            this.selector = Selector.open();
+            this.thread = new Thread(this, "tong-nio-loop-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void register(SocketChannel channel) {
+            pendingRegistrations.add(channel);
+            selector.wakeup();
+        }
+
+        void scheduleFlush(Connection connection) {
+            pendingFlushes.add(connection);
+            if (Thread.currentThread() != thread) {
+                selector.wakeup();
+            }
+        }
+
+        void shutdown() {
+            running = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    processRegistrations();
+                    processSelectedKeys();
+                    processFlushes();
+                } catch (IOException e) {
+                    System.out.println("NioServer.java : event loop " + thread.getName());
+                    e.printStackTrace();
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection connection) {
+                    close(connection);
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void processRegistrations() {
+            SocketChannel channel;
+            while ((channel = pendingRegistrations.poll()) != null) {
+                try {
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.handshake = Handshake.start(connection::disconnect, connection.describeRemote());
+                } catch (IOException e) {
+                    try {
+                        channel.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private void processSelectedKeys() {
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+
+                Connection connection = (Connection) key.attachment();
+                if (key.isValid() && key.isReadable()) {
+                    read(connection);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    flush(connection);
+                }
+            }
+        }
+
+        private void processFlushes() {
+            Connection connection;
+            while ((connection = pendingFlushes.poll()) != null) {
+                connection.flushScheduled.set(false);
+                flush(connection);
+            }
+        }
+
+        private void read(Connection connection) {
+            try {
+                readBuffer.clear();
+                int read = connection.channel.read(readBuffer);
+                if (read < 0) {
+                    close(connection);
+                    return;
+                }
+                connection.lastReadNanos = System.nanoTime();
+
+                readBuffer.flip();
+                while (readBuffer.hasRemaining()) {
+                    if (connection.compressor != null) {
+                        // Everything after a DEFLATE negotiation is compressed
+                        for (byte b : connection.compressor.inflate(readBuffer)) {
+                            if (!readByte(connection, b)) {
+                                return;
+                            }
+                        }
+                        break;
+                    }
+                    if (!readByte(connection, readBuffer.get())) {
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+
+        // False once the connection has been closed
+        private boolean readByte(Connection connection, byte b) throws IOException {
+            if (connection.framed) {
+                readFrameByte(connection, b);
+            } else if (b == '\n') {
+                onLine(connection, connection.takeLine());
+            } else if (connection.lineBuffer.size() < MAX_LINE_LENGTH) {
+                connection.lineBuffer.write(b);
+            } else {
+                System.out.println("NioServer.java : line too long from " + connection.username);
+                close(connection);
+                return false;
+            }
+            return !connection.closed.get();
+        }
+
+        private void readFrameByte(Connection connection, byte b) throws IOException {
+            connection.lineBuffer.write(b);
+            int size = connection.lineBuffer.size();
+            if (connection.frameLength < 0) {
+                if (size == 4) {
+                    connection.frameLength = ByteBuffer.wrap(connection.lineBuffer.toByteArray()).getInt();
+                    FrameCodec.checkLength(connection.frameLength, maxFrameBytes);
+                }
+                return;
+            }
+
+            if (size == 4 + connection.frameLength) {
+                byte[] bytes = connection.lineBuffer.toByteArray();
+                connection.lineBuffer.reset();
+                connection.frameLength = -1;
+
+                FrameCodec.Frame frame = FrameCodec.decode(bytes, 4, bytes.length - 4);
+                if (FrameCodec.isHeartbeat(frame)) {
+                    return;
+                }
+                if (frame.type == FrameCodec.TYPE_TEXT || frame.type == FrameCodec.TYPE_CONTROL) {
+                    onLine(connection, frame.payload);
+                }
+            }
+        }
+
+        private void onLine(Connection connection, String line) {
+            if (connection.username != null) {
+                if (connection.directoryKey != null) {
+                    RoomDirectory.touch(connection.directoryKey);
+                }
+                broadcast(connection, FrameCodec.TYPE_TEXT, line);
+                return;
+            }
+
+            if (connection.roomKey == null && !connection.negotiated && line.startsWith(FrameCodec.NEGOTIATE_PREFIX)) {
+                // The client waits for this reply, so every byte after the PROTO line is already a frame
+                connection.negotiated = true;
+                boolean framed = FrameCodec.acceptsNegotiation(line);
+                boolean deflate = framed && ServerConfig.isCompressionEnabled() && FrameCodec.hasOption(line, FrameCodec.OPTION_DEFLATE);
+                String replyLine = !framed ? FrameCodec.NEGOTIATE_DECLINE
+                        : deflate ? FrameCodec.NEGOTIATE_ACCEPT + " " + FrameCodec.OPTION_DEFLATE : FrameCodec.NEGOTIATE_ACCEPT;
+                EncodedMessage reply = EncodedMessage.ofLine(replyLine);
+                connection.send(reply);
+                reply.release();
+                connection.framed = framed;
+                if (deflate) {
+                    connection.compressor = new StreamCompressor(connection.describeRemote());
+                }
+                if (framed) {
+                    // Text clients cannot answer a PING, so only framed ones get heartbeats and idle timeouts
+                    connection.idleWatch = IdleWatch.start(() -> connection.lastReadNanos, connection::ping, connection::disconnect);
+                }
+                return;
+            }
+
+            if (connection.roomKey == null && connection.framed && JoinRequest.isPreamble(line)) {
+                connection.joinRequest = connection.joinRequest.with(line);
+                return;
+            }
+            if (connection.roomKey == null && ConnectionRouter.isOneShotRequest(line)) {
+                connection.handshake.complete();
+                for (String response : ConnectionRouter.answerOneShotRequest(line)) {
+                    EncodedMessage message = EncodedMessage.of(FrameCodec.TYPE_CONTROL, FrameCodec.FORUM_ROOM_ID, response);
+                    connection.send(message);
+                    message.release();
+                }
+                connection.closeAfterFlush = true;
+                return;
+            }
+            if (connection.roomKey == null && line.startsWith(ConnectionRouter.JOIN_DM)) {
+                connection.directoryKey = line.substring(ConnectionRouter.JOIN_DM.length()).trim();
+                connection.roomKey = "dm:" + connection.directoryKey;
+                connection.roomLabel = "the DM";
+                connection.directoryType = RoomInfo.TYPE_DM;
+                RoomDirectory.register(RoomInfo.TYPE_DM, connection.directoryKey, connection.directoryKey);
+                connection.roomId = RoomDirectory.getRoomId(connection.directoryKey);
+                return;
+            }
+            if (connection.roomKey == null && line.startsWith(ConnectionRouter.JOIN_GC)) {
+                String[] parts = line.substring(ConnectionRouter.JOIN_GC.length()).trim().split(" ", 2);
+                connection.directoryKey = parts[0];
+                connection.roomKey = "gc:" + parts[0];
+                connection.roomLabel = parts.length > 1 && !parts[1].isBlank() ? parts[1].trim() : parts[0];
+                connection.directoryType = RoomInfo.TYPE_GC;
+                RoomDirectory.register(RoomInfo.TYPE_GC, connection.directoryKey, connection.roomLabel);
+                connection.roomId = RoomDirectory.getRoomId(connection.directoryKey);
+                return;
+            }
+
+            if (connection.roomKey == null) {
+                connection.roomKey = FORUM_ROOM;
+                connection.roomLabel = "the chat";
+            }
+            if (!connection.handshake.complete()) {
+                return;
+            }
+            connection.username = line;
+            connection.shard = RoomShard.forRoom(connection.roomKey);
+            if (connection.framed) {
+                connection.sessionToken = SessionRegistry.open(connection.roomKey, connection.username);
+            }
+            connection.shard.execute(connection.roomKey, () -> {
+                connection.shard.join(connection.roomKey, connection);
+                if (connection.directoryKey != null) {
+                    // Again, in case the room emptied and was unregistered since the JOIN line
+                    String name = RoomInfo.TYPE_GC.equals(connection.directoryType) ? connection.roomLabel : connection.directoryKey;
+                    RoomDirectory.register(connection.directoryType, connection.directoryKey, name);
+                    RoomDirectory.memberJoined(connection.directoryKey);
+                }
+                SessionRegistry.attach(connection.shard, connection.roomKey, connection, connection.sessionToken, connection.joinRequest);
+            });
+            broadcast(connection, FrameCodec.TYPE_SYSTEM, joinNotice(connection));
+        }
+
+        private void flush(Connection connection) {
+            SelectionKey key = connection.key;
+            if (key == null || !key.isValid()) {
+                return;
+            }
+
+            if (connection.evicted) {
+                close(connection);
+                return;
+            }
+
+            try {
+                while (true) {
+                    // Only the loop takes from the head, and it drops the oldest queued messages past capacity itself.
+                    // Everything queued since the last flush goes out in one gathering write, up to the byte budget.
+                    if (connection.pendingMessages.isEmpty() && !connection.takeBatch()) {
+                        break;
+                    }
+
+                    connection.pendingRemaining -= connection.channel.write(connection.pendingWrite);
+                    if (connection.pendingRemaining > 0) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    for (EncodedMessage message : connection.pendingMessages) {
+                        ServerStats.messageDelivered(message.length(connection.framed));
+                    }
+                    ServerStats.batchFlushed(connection.pendingMessages.size());
+                    connection.releasePending();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                if (connection.closeAfterFlush) {
+                    close(connection);
+                }
+            } catch (IOException e) {
+                close(connection);
+            }
+        }
+
+        private void close(Connection connection) {
+            if (!connection.closed.compareAndSet(false, true)) {
+                return;
+            }
+
+            if (connection.key != null) {
+                connection.key.cancel();
+            }
+            try {
+                connection.channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+
+            if (connection.compressor != null) {
+                connection.compressor.close();
+            }
+            if (connection.idleWatch != null) {
+                connection.idleWatch.stop();
+            }
+            if (connection.handshake != null) {
+                connection.handshake.abandon();
+            }
+            if (connection.sessionToken != null) {
+                SessionRegistry.detach(connection.sessionToken);
+            }
+            EncodedMessage queued;
+            while ((queued = connection.outbound.poll()) != null) {
+                queued.release();
+            }
+            connection.releasePending();
+            ServerStats.messagesDequeued(connection.queuedCount.getAndSet(0));
+            if (connection.shard != null) {
+                RoomShard shard = connection.shard;
+                shard.execute(connection.roomKey, () -> {
+                    if (!shard.leave(connection.roomKey, connection)) {
+                        return;
+                    }
+                    if (connection.directoryKey != null) {
+                        RoomDirectory.memberLeft(connection.directoryKey);
+                    }
+                    broadcast(connection, FrameCodec.TYPE_SYSTEM, leaveNotice(connection));
+                    if (connection.directoryKey != null && !shard.hasMembers(connection.roomKey)) {
+                        RoomDirectory.unregister(connection.directoryKey);
+                        shard.forget(connection.roomKey);
+                    }
+                });
+            }
+        }
+    }
+
+    private static class Connection implements RoomMember {
+        private final EventLoop eventLoop;
+        private final SocketChannel channel;
+        private final Queue<EncodedMessage> outbound = new ConcurrentLinkedQueue<>();
+        private final ByteArrayOutputStream lineBuffer = new ByteArrayOutputStream();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private final AtomicInteger queuedCount = new AtomicInteger();
+        private final int capacity = ServerConfig.getOutboundCapacity();
+        private final int highWaterMark = ServerConfig.getOutboundHighWaterMark();
+        private final long disconnectAfterMillis = ServerConfig.getSlowConsumerDisconnectMillis();
+        private final OutboundQueue.SlowConsumerPolicy policy = OutboundQueue.currentPolicy();
+        private volatile long overHighWaterSince = 0;
+        private volatile boolean evicted;
+        private final int coalesceBytes = ServerConfig.getCoalesceBytes();
+        private final ArrayList<EncodedMessage> pendingMessages = new ArrayList<>();
+        private ByteBuffer[] pendingWrite;
+        private long pendingRemaining;
+        private SelectionKey key;
+        private String roomKey;
+        private String directoryKey;
+        private String directoryType;
+        private RoomShard shard;
+        private boolean closeAfterFlush;
+        private String roomLabel;
+        private String username;
+        private int roomId = FrameCodec.FORUM_ROOM_ID;
+        private boolean negotiated;
+        private volatile boolean framed;
+        private int frameLength = -1;
+        private StreamCompressor compressor;
+        private volatile long lastReadNanos = System.nanoTime();
+        private IdleWatch idleWatch;
+        private Handshake handshake;
+        private JoinRequest joinRequest = JoinRequest.DEFAULT;
+        private String sessionToken;
+
+        Connection(EventLoop eventLoop, SocketChannel channel) {
+            this.eventLoop = eventLoop;
+            this.channel = channel;
+        }
+
+        void send(EncodedMessage message) {
+            if (closed.get()) {
+                return;
+            }
+            enqueue(message);
+            if (flushScheduled.compareAndSet(false, true)) {
+                eventLoop.scheduleFlush(this);
+            }
+        }
+
+        private void enqueue(EncodedMessage message) {
+            // Producers only add and count; the event loop drops the oldest past capacity in takeBatch()
+            int depth = queuedCount.incrementAndGet();
+            outbound.add(message.retain());
+            ServerStats.messageEnqueued(depth);
+
+            if (policy == OutboundQueue.SlowConsumerPolicy.DISCONNECT && depth > highWaterMark && !evicted) {
+                long now = System.currentTimeMillis();
+                if (overHighWaterSince == 0) {
+                    overHighWaterSince = now;
+                } else if (now - overHighWaterSince >= disconnectAfterMillis) {
+                    evicted = true;
+                    ServerStats.slowConsumerEvicted();
+                    System.out.println("NioServer.java : evicting slow consumer " + username);
+                }
+            }
+        }
+
+        @Override
+        public String getClientUsername() {
+            return username;
+        }
+
+        @Override
+        public void deliver(EncodedMessage message) {
+            send(message);
+        }
+
+        // Everything is queued before the flush is scheduled, so it goes out in one gathering write
+        @Override
+        public void deliverAll(List<EncodedMessage> messages) {
+            if (closed.get()) {
+                return;
+            }
+            for (EncodedMessage message : messages) {
+                enqueue(message);
+            }
+            if (flushScheduled.compareAndSet(false, true)) {
+                eventLoop.scheduleFlush(this);
+            }
+        }
+
+        // Closed by the event loop on its next flush
+        @Override
+        public void disconnect() {
+            evicted = true;
+            if (flushScheduled.compareAndSet(false, true)) {
+                eventLoop.scheduleFlush(this);
+            }
+        }
+
+        void ping() {
+            EncodedMessage ping = EncodedMessage.of(FrameCodec.TYPE_CONTROL, roomId, FrameCodec.HEARTBEAT_PING);
+            send(ping);
+            ping.release();
+        }
+
+        void dequeued() {
+            if (queuedCount.decrementAndGet() <= highWaterMark) {
+                overHighWaterSince = 0;
+            }
+            ServerStats.messagesDequeued(1);
+        }
+
+        // Runs on the event loop, the only thread that takes from the head, so the message peeked is the one polled
+        boolean takeBatch() throws IOException {
+            dropOldest();
+            ArrayList<ByteBuffer> buffers = new ArrayList<>();
+            EncodedMessage message;
+            while ((message = outbound.peek()) != null) {
+                // Line-only messages (the negotiation reply) go out alone and are never compressed
+                if (!pendingMessages.isEmpty() && (message.isLineOnly() || pendingRemaining + message.length(framed) > coalesceBytes)) {
+                    break;
+                }
+                outbound.poll();
+                pendingMessages.add(message);
+                Collections.addAll(buffers, message.buffers(framed));
+                pendingRemaining += message.length(framed);
+                dequeued();
+                if (message.isLineOnly()) {
+                    break;
+                }
+            }
+
+            pendingWrite = buffers.toArray(new ByteBuffer[0]);
+            if (compressor != null && !pendingMessages.isEmpty() && !pendingMessages.get(0).isLineOnly()) {
+                pendingWrite = new ByteBuffer[] { compressor.deflate(pendingWrite) };
+                pendingRemaining = pendingWrite[0].remaining();
+            }
+            return !pendingMessages.isEmpty();
+        }
+
+        // The drop-oldest policy, applied before each batch; a line-only message at the head is sent, never dropped
+        private void dropOldest() {
+            EncodedMessage oldest;
+            while (queuedCount.get() > capacity && (oldest = outbound.peek()) != null && !oldest.isLineOnly()) {
+                outbound.poll();
+                oldest.release();
+                queuedCount.decrementAndGet();
+                ServerStats.messageDropped();
+            }
+        }
+
+        String describeRemote() {
+            try {
+                return String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                return "closed";
+            }
+        }
+
+        void releasePending() {
+            for (EncodedMessage message : pendingMessages) {
+                message.release();
+            }
+            pendingMessages.clear();
+            pendingWrite = null;
+            pendingRemaining = 0;
+        }
+
+        String takeLine() {
+            int length = lineBuffer.size();
+            byte[] bytes = lineBuffer.toByteArray();
+            lineBuffer.reset();
+            if (length > 0 && bytes[length - 1] == '\r') {
+                length--;
+            }
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+    }
+}
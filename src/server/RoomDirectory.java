@@ -0,0 +1,151 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import client.FrameCodec;
+import client.RoomInfo;
+
+/**
+ * Server-side directory of live DM and GC rooms, keyed by dmKey/gcKey. Clients resolve a room
+ * with one request on the shared listener instead of typing an IP and guessing a port:
+ *
+ *   DIRECTORY LOOKUP <key>              -> ROOM ... | NOT_FOUND <key>
+ *   DIRECTORY LIST GC <page> <pageSize> -> ROOM ... lines, then END <total>
+ */
+public class RoomDirectory {
+    public static final String DIRECTORY_REQUEST = "DIRECTORY ";
+    public static final int MAX_PAGE_SIZE = 100;
+
+    private static final Map<String, Entry> rooms = new ConcurrentHashMap<>();
+    // Sorted copy of the group chats so a page is a walk over the map, not a sort per request
+    private static final ConcurrentSkipListMap<String, Entry> groupChats = new ConcurrentSkipListMap<>();
+    private static final RoomShard updates = new RoomShard("tong-directory");
+    private static final AtomicInteger nextRoomId = new AtomicInteger(FrameCodec.FORUM_ROOM_ID + 1);
+
+    private static class Entry {
+        final int id = nextRoomId.getAndIncrement();
+        final String type;
+        final String key;
+        final String name;
+        // Written only on the updates thread
+        volatile int memberCount;
+        volatile long lastActivity = System.currentTimeMillis();
+
+        Entry(String type, String key, String name) {
+            this.type = type;
+            this.key = key;
+            this.name = name;
+        }
+
+        RoomInfo snapshot() {
+            return new RoomInfo(type, key, ServerConfig.getAdvertisedHost(), ServerConfig.getServerPort(),
+                    memberCount, lastActivity, name);
+        }
+    }
+
+    public static void register(String type, String key, String name) {
+        Entry entry = rooms.computeIfAbsent(key, _ -> new Entry(type, key, name));
+        if (RoomInfo.TYPE_GC.equals(entry.type)) {
+            groupChats.putIfAbsent(key, entry);
+        }
+    }
+
+    // Numeric id carried in binary frames; 0 (the forum) when the room is not registered
+    public static int getRoomId(String key) {
+        Entry entry = rooms.get(key);
+        return entry == null ? FrameCodec.FORUM_ROOM_ID : entry.id;
+    }
+
+    public static void unregister(String key) {
+        rooms.remove(key);
+        groupChats.remove(key);
+    }
+
+    // Presence updates arrive from every room shard as messages and are applied on one thread
+    public static void memberJoined(String key) {
+        updates.execute(() -> adjustMembers(key, 1));
+    }
+
+    public static void memberLeft(String key) {
+        updates.execute(() -> adjustMembers(key, -1));
+    }
+
+    public static void touch(String key) {
+        long now = System.currentTimeMillis();
+        updates.execute(() -> {
+            Entry entry = rooms.get(key);
+            if (entry != null) {
+                entry.lastActivity = now;
+            }
+        });
+    }
+
+    private static void adjustMembers(String key, int delta) {
+        Entry entry = rooms.get(key);
+        if (entry != null) {
+            entry.memberCount += delta;
+            entry.lastActivity = System.currentTimeMillis();
+        }
+    }
+
+    public static RoomInfo lookup(String key) {
+        Entry entry = rooms.get(key);
+        return entry != null ? entry.snapshot() : null;
+    }
+
+    public static List<RoomInfo> listGroupChats(int page, int pageSize) {
+        int size = Math.max(1, Math.min(pageSize, MAX_PAGE_SIZE));
+        int skip = Math.max(0, page) * size;
+        List<RoomInfo> result = new ArrayList<>(size);
+
+        for (Entry entry : groupChats.values()) {
+            if (skip > 0) {
+                skip--;
+                continue;
+            }
+            if (result.size() == size) {
+                break;
+            }
+            result.add(entry.snapshot());
+        }
+        return result;
+    }
+
+    public static int getGroupChatCount() {
+        return groupChats.size();
+    }
+
+    // Answers one DIRECTORY request line; the caller writes the lines back and closes the connection
+    public static List<String> handleRequest(String line) {
+        List<String> response = new ArrayList<>();
+        String[] parts = line.substring(DIRECTORY_REQUEST.length()).trim().split("\\s+");
+
+        if (parts.length == 2 && parts[0].equals("LOOKUP")) {
+            RoomInfo info = lookup(parts[1]);
+            response.add(info != null ? info.toLine() : "NOT_FOUND " + parts[1]);
+        } else if (parts.length >= 2 && parts[0].equals("LIST") && parts[1].equals(RoomInfo.TYPE_GC)) {
+            int page = parts.length > 2 ? parseOrDefault(parts[2], 0) : 0;
+            int pageSize = parts.length > 3 ? parseOrDefault(parts[3], 20) : 20;
+            for (RoomInfo info : listGroupChats(page, pageSize)) {
+                response.add(info.toLine());
+            }
+            response.add("END " + groupChats.size());
+        } else {
+            response.add("ERROR unknown directory request");
+        }
+        return response;
+    }
+
+    private static int parseOrDefault(String value, int defaultValue) {
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,506 @@
+package server;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * The durable log of one room: a directory of fixed-size segment files, each written through a
+ * MappedByteBuffer and named after the offset of its first message, with a sparse index file
+ * beside it mapping every tong.log.indexBytes of records to their offset. Only the MessageLog
+ * writer thread appends, rolls and deletes segments; readers on any thread see every message
+ * below the offset the writer last published. The index entries double as a sparse time index,
+ * since every record they point at carries its timestamp. Each segment's mappings belong to
+ * their own Arena, so unmap() gives the address space back at once instead of whenever the
+ * buffers are collected; readers pin a segment while they use it and are never unmapped under.
+ * Records never span segments:
+ *
+ *   int  size             bytes after this field
+ *   int  crc              CRC32C of everything after it
+ *   long offset
+ *   long timestampMillis
+ *   byte type
+ *   ...  payload          UTF-8
+ */
+class RoomLog {
+    static final int RECORD_HEADER_SIZE = 25;
+    private static final int INDEX_ENTRY_SIZE = 8;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".index";
+
+    private final String roomKey;
+    private final Path directory;
+    private final int segmentBytes;
+    private final int indexIntervalBytes;
+    private final int indexCapacity;
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final CRC32C crc = new CRC32C();
+    private Segment active;
+    private int dirtyFrom = -1;
+    private volatile long nextOffset;
+    private volatile long lastUsedMillis = System.currentTimeMillis();
+
+    private RoomLog(String roomKey, Path directory, int segmentBytes, int indexIntervalBytes) {
+        this.roomKey = roomKey;
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.indexIntervalBytes = indexIntervalBytes;
+        this.indexCapacity = segmentBytes / indexIntervalBytes + 1;
+    }
+
+    static Path directoryFor(Path root, String roomKey) {
+        return root.resolve(URLEncoder.encode(roomKey, StandardCharsets.UTF_8));
+    }
+
+    static String roomKeyOf(Path directory) {
+        return URLDecoder.decode(directory.getFileName().toString(), StandardCharsets.UTF_8);
+    }
+
+    // Only the last segment is scanned, to find where writing stopped; older ones are mapped when first read
+    static RoomLog open(Path directory, int segmentBytes, int indexIntervalBytes) throws IOException {
+        Files.createDirectories(directory);
+        RoomLog log = new RoomLog(roomKeyOf(directory), directory, segmentBytes, indexIntervalBytes);
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    long baseOffset = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    log.segments.put(baseOffset, log.new Segment(baseOffset));
+                }
+            }
+        }
+
+        if (log.segments.isEmpty()) {
+            log.roll(0);
+        } else {
+            log.active = log.segments.lastEntry().getValue();
+            log.nextOffset = log.active.recover();
+        }
+        return log;
+    }
+
+    String getRoomKey() {
+        return roomKey;
+    }
+
+    long getNextOffset() {
+        return nextOffset;
+    }
+
+    long getFirstOffset() {
+        return segments.firstKey();
+    }
+
+    long getSizeBytes() {
+        return (long) segments.size() * segmentBytes;
+    }
+
+    long getLastUsedMillis() {
+        return lastUsedMillis;
+    }
+
+    boolean isMapped() {
+        for (Segment segment : segments.values()) {
+            if (segment.buffer != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Writer thread only. Commits what was appended and unmaps every segment no reader is using;
+    // the log stays open, and the next append or read maps what it needs again.
+    void unmap() {
+        flush();
+        for (Segment segment : segments.values()) {
+            segment.unmap();
+        }
+    }
+
+    // Writer thread only. The record is in the page cache when this returns; flush() makes it durable.
+    // True when it started a new segment.
+    boolean append(long timestampMillis, byte type, byte[] payload) throws IOException {
+        int recordSize = RECORD_HEADER_SIZE + payload.length;
+        if (recordSize > segmentBytes) {
+            throw new IOException("Message of " + payload.length + " bytes does not fit a " + segmentBytes + " byte segment");
+        }
+        boolean rolled = active.position + recordSize > segmentBytes;
+        if (rolled) {
+            flush();
+            roll(nextOffset);
+        }
+
+        lastUsedMillis = System.currentTimeMillis();
+        MappedByteBuffer buffer = active.buffer();
+        int position = active.position;
+        long offset = nextOffset;
+        buffer.putInt(position, recordSize - 4);
+        buffer.putLong(position + 8, offset);
+        buffer.putLong(position + 16, timestampMillis);
+        buffer.put(position + 24, type);
+        buffer.put(position + RECORD_HEADER_SIZE, payload);
+        // Checksummed from heap copies: CRC32C cannot read a buffer an Arena may close
+        crc.reset();
+        crc.update(ByteBuffer.allocate(RECORD_HEADER_SIZE - 8).putLong(offset).putLong(timestampMillis).put(type).array());
+        crc.update(payload);
+        buffer.putInt(position + 4, (int) crc.getValue());
+
+        active.index(offset, position);
+        if (dirtyFrom < 0) {
+            dirtyFrom = position;
+        }
+        active.position = position + recordSize;
+        nextOffset = offset + 1;
+        return rolled;
+    }
+
+    // Writer thread only: one msync for everything appended since the last flush
+    boolean flush() {
+        if (dirtyFrom < 0) {
+            return false;
+        }
+        active.buffer.force(dirtyFrom, active.position - dirtyFrom);
+        active.indexBuffer.force();
+        dirtyFrom = -1;
+        return true;
+    }
+
+    // Writer thread only. Deletes whole segments, oldest first, while the room is over maxBytes or
+    // a segment's newest message is older than cutoffMillis; the active segment always stays.
+    int deleteExpired(long cutoffMillis, long maxBytes) {
+        int deleted = 0;
+        while (segments.size() > 1) {
+            Map.Entry<Long, Segment> oldest = segments.firstEntry();
+            Segment next = segments.higherEntry(oldest.getKey()).getValue();
+            // Everything in a segment is older than the first message of the next one
+            boolean expired = cutoffMillis > 0 && next.firstTimestamp() < cutoffMillis;
+            if (!expired && getSizeBytes() <= maxBytes) {
+                break;
+            }
+            segments.remove(oldest.getKey());
+            oldest.getValue().delete();
+            deleted++;
+        }
+        return deleted;
+    }
+
+    // Up to max messages starting at fromOffset, or at the oldest retained one if that was deleted
+    List<LoggedMessage> read(long fromOffset, int max) {
+        lastUsedMillis = System.currentTimeMillis();
+        long end = nextOffset;
+        List<LoggedMessage> messages = new ArrayList<>();
+        long offset = Math.max(fromOffset, getFirstOffset());
+
+        while (messages.size() < max && offset < end) {
+            Map.Entry<Long, Segment> entry = segments.floorEntry(offset);
+            if (entry == null) {
+                break;
+            }
+            Map.Entry<Long, Segment> following = segments.higherEntry(entry.getKey());
+            long segmentEnd = following == null ? end : Math.min(end, following.getKey());
+
+            Segment segment = entry.getValue();
+            try {
+                ByteBuffer buffer = segment.acquire();
+                long[] start = segment.lookup(offset);
+                long current = start[0];
+                int position = (int) start[1];
+                while (current < segmentEnd && messages.size() < max) {
+                    int size = buffer.getInt(position);
+                    if (size < RECORD_HEADER_SIZE - 4 || position + 4 + size > buffer.capacity() || buffer.getLong(position + 8) != current) {
+                        // A torn tail from a crash; whatever was after it is gone
+                        break;
+                    }
+                    if (current >= offset) {
+                        byte[] payload = new byte[size + 4 - RECORD_HEADER_SIZE];
+                        buffer.get(position + RECORD_HEADER_SIZE, payload);
+                        messages.add(new LoggedMessage(current, buffer.getLong(position + 16), buffer.get(position + 24),
+                                new String(payload, StandardCharsets.UTF_8)));
+                    }
+                    position += 4 + size;
+                    current++;
+                }
+            } catch (IOException e) {
+                // Deleted by retention while this read was looking for it
+                System.out.println("RoomLog.java : read " + roomKey);
+            } finally {
+                segment.release();
+            }
+            offset = segmentEnd;
+        }
+        return messages;
+    }
+
+    // The first offset logged at or after timestampMillis, or nextOffset if there is none. A binary
+    // search over the segments' first timestamps, then over the timestamps of the chosen segment's
+    // sparse index entries, then a scan of at most tong.log.indexBytes. Timestamps only grow within
+    // a room because its messages are logged in the order its shard broadcast them.
+    long offsetAt(long timestampMillis) {
+        lastUsedMillis = System.currentTimeMillis();
+        long end = nextOffset;
+        List<Segment> list = new ArrayList<>(segments.values());
+        int low = 0;
+        int high = list.size() - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (list.get(middle).firstTimestamp() < timestampMillis) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        if (found < 0) {
+            return list.getFirst().baseOffset;
+        }
+
+        Segment segment = list.get(found);
+        long segmentEnd = found + 1 < list.size() ? list.get(found + 1).baseOffset : end;
+        try {
+            ByteBuffer buffer = segment.acquire();
+            int entry = segment.lastEntryBefore(timestampMillis);
+            long current = segment.baseOffset + segment.indexBuffer.getInt(entry * INDEX_ENTRY_SIZE);
+            int position = segment.indexBuffer.getInt(entry * INDEX_ENTRY_SIZE + 4);
+            while (current < segmentEnd) {
+                int size = buffer.getInt(position);
+                if (size < RECORD_HEADER_SIZE - 4 || position + 4 + size > buffer.capacity() || buffer.getLong(position + 8) != current) {
+                    break;
+                }
+                if (buffer.getLong(position + 16) >= timestampMillis) {
+                    return current;
+                }
+                position += 4 + size;
+                current++;
+            }
+        } catch (IOException e) {
+            System.out.println("RoomLog.java : offsetAt " + roomKey);
+        } finally {
+            segment.release();
+        }
+        return segmentEnd;
+    }
+
+    private void roll(long baseOffset) throws IOException {
+        Segment segment = new Segment(baseOffset);
+        segment.create();
+        segments.put(baseOffset, segment);
+        active = segment;
+    }
+
+    private class Segment {
+        private final long baseOffset;
+        private final Path path;
+        private final Path indexPath;
+        private volatile MappedByteBuffer buffer;
+        private MappedByteBuffer indexBuffer;
+        private Arena arena;
+        // Guarded by this: readers inside acquire()/release(), and whether delete() left the unmapping to the last of them
+        private int readers;
+        private boolean deleted;
+        private volatile int indexCount;
+        private int position;
+        private int lastIndexedPosition;
+
+        Segment(long baseOffset) {
+            this.baseOffset = baseOffset;
+            String name = String.format("%020d", baseOffset);
+            this.path = directory.resolve(name + SEGMENT_SUFFIX);
+            this.indexPath = directory.resolve(name + INDEX_SUFFIX);
+        }
+
+        synchronized void create() throws IOException {
+            arena = Arena.ofShared();
+            buffer = map(path, segmentBytes);
+            indexBuffer = map(indexPath, indexCapacity * INDEX_ENTRY_SIZE);
+        }
+
+        // Mapped on first use, or again after unmap(); an index ends at the first empty entry after the first
+        MappedByteBuffer buffer() throws IOException {
+            MappedByteBuffer mapped = buffer;
+            if (mapped == null) {
+                synchronized (this) {
+                    if (buffer == null) {
+                        if (deleted) {
+                            throw new IOException("Segment deleted: " + path);
+                        }
+                        arena = Arena.ofShared();
+                        try {
+                            indexBuffer = map(indexPath, indexCapacity * INDEX_ENTRY_SIZE);
+                            int count = 1;
+                            while (count < indexCapacity && indexBuffer.getInt(count * INDEX_ENTRY_SIZE + 4) > 0) {
+                                count++;
+                            }
+                            indexCount = count;
+                            buffer = map(path, segmentBytes);
+                        } catch (IOException e) {
+                            indexBuffer = null;
+                            arena.close();
+                            arena = null;
+                            throw e;
+                        }
+                    }
+                    mapped = buffer;
+                }
+            }
+            return mapped;
+        }
+
+        // Any thread but the writer: the mapping stays until the matching release(), even if it fails
+        synchronized MappedByteBuffer acquire() throws IOException {
+            readers++;
+            return buffer();
+        }
+
+        synchronized void release() {
+            readers--;
+            if (readers == 0 && deleted) {
+                unmapNow();
+            }
+        }
+
+        // Writer thread only, which never uses a segment it is unmapping; one being read is left for later
+        synchronized void unmap() {
+            if (readers == 0) {
+                unmapNow();
+            }
+        }
+
+        private void unmapNow() {
+            if (arena != null) {
+                buffer = null;
+                indexBuffer = null;
+                arena.close();
+                arena = null;
+            }
+        }
+
+        // Scans from the start, keeping every record whose size, offset and checksum hold up;
+        // the index is rebuilt on the way and the first bad record is cut off
+        long recover() throws IOException {
+            MappedByteBuffer mapped = buffer();
+            long offset = baseOffset;
+            int at = 0;
+            indexCount = 0;
+            while (at + RECORD_HEADER_SIZE <= segmentBytes) {
+                int size = mapped.getInt(at);
+                if (size < RECORD_HEADER_SIZE - 4 || at + 4 + size > segmentBytes || mapped.getLong(at + 8) != offset) {
+                    break;
+                }
+                byte[] checked = new byte[size - 4];
+                mapped.get(at + 8, checked);
+                crc.reset();
+                crc.update(checked);
+                if ((int) crc.getValue() != mapped.getInt(at + 4)) {
+                    break;
+                }
+                index(offset, at);
+                at += 4 + size;
+                offset++;
+            }
+
+            if (at + 4 <= segmentBytes) {
+                mapped.putInt(at, 0);
+            }
+            for (int i = indexCount * INDEX_ENTRY_SIZE; i < indexCapacity * INDEX_ENTRY_SIZE; i += 4) {
+                indexBuffer.putInt(i, 0);
+            }
+            position = at;
+            return offset;
+        }
+
+        void index(long offset, int at) {
+            if (indexCount < indexCapacity && (indexCount == 0 || at - lastIndexedPosition >= indexIntervalBytes)) {
+                indexBuffer.putInt(indexCount * INDEX_ENTRY_SIZE, (int) (offset - baseOffset));
+                indexBuffer.putInt(indexCount * INDEX_ENTRY_SIZE + 4, at);
+                lastIndexedPosition = at;
+                indexCount++;
+            }
+        }
+
+        // The indexed offset and position at or before offset: a binary search, then a short scan
+        long[] lookup(long offset) {
+            int low = 0;
+            int high = indexCount - 1;
+            long relative = offset - baseOffset;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (indexBuffer.getInt(middle * INDEX_ENTRY_SIZE) <= relative) {
+                    low = middle;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            if (high < 0) {
+                return new long[] { baseOffset, 0 };
+            }
+            return new long[] { baseOffset + indexBuffer.getInt(low * INDEX_ENTRY_SIZE), indexBuffer.getInt(low * INDEX_ENTRY_SIZE + 4) };
+        }
+
+        // The last index entry whose record is older than timestampMillis; entry 0 if none is
+        int lastEntryBefore(long timestampMillis) {
+            int low = 0;
+            int high = indexCount - 1;
+            int found = 0;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (buffer.getLong(indexBuffer.getInt(middle * INDEX_ENTRY_SIZE + 4) + 16) < timestampMillis) {
+                    found = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return found;
+        }
+
+        // Long.MAX_VALUE for a segment nothing has been written to yet
+        long firstTimestamp() {
+            try {
+                MappedByteBuffer mapped = acquire();
+                return mapped.getInt(0) == 0 ? Long.MAX_VALUE : mapped.getLong(16);
+            } catch (IOException e) {
+                return Long.MAX_VALUE;
+            } finally {
+                release();
+            }
+        }
+
+        // Readers still using the mapping keep it until the last one is done; then it goes too
+        void delete() {
+            synchronized (this) {
+                deleted = true;
+                if (readers == 0) {
+                    unmapNow();
+                }
+            }
+            try {
+                Files.deleteIfExists(path);
+                Files.deleteIfExists(indexPath);
+            } catch (IOException e) {
+                System.out.println("RoomLog.java : delete " + path);
+                e.printStackTrace();
+            }
+        }
+
+        private MappedByteBuffer map(Path file, int size) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return (MappedByteBuffer) channel.map(FileChannel.MapMode.READ_WRITE, 0, size, arena).asByteBuffer();
+            }
+        }
+    }
+}
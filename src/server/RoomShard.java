@@ -0,0 +1,425 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import client.EncodedMessage;
+import client.FrameCodec;
+import client.RoomMember;
+import database.MessageDAO;
+
+/**
+ * Single-threaded event loop that owns a subset of the rooms. A room (the forum, each DM, each GC)
+ * is pinned to one of tong.shards shards by hashing its key, and every join, leave and broadcast
+ * for it runs as a task on that shard's thread, so room membership is plain collections with no
+ * locks and fan-out for different rooms runs on different cores. Other threads only post tasks,
+ * always naming the room they are for.
+ * Each broadcast gets the next sequence number of its room and goes into the room's history ring,
+ * a preallocated array of the last tong.history.ringSize broadcasts. New members are backfilled
+ * from it in one batch, and a reconnecting client is sent exactly what it missed. All rings on a
+ * shard share 1/shards of tong.history.maxMB; past that, rooms nobody is in are evicted whole,
+ * least recently used first, and then the least recently used rooms lose their oldest messages.
+ * Chat messages are also handed to the MessageLog, and a room that is created again starts with
+ * the tail of its log in the ring. That tail is read on a history loader thread, never the
+ * shard's; the room's tasks wait for it in order while other rooms carry on, and the log is let
+ * go of (its segments unmapped) once the room is forgotten or evicted.
+ */
+public class RoomShard implements Runnable {
+    private static final RoomShard[] shards = createShards(ServerConfig.getShardCount());
+    private static final ExecutorService historyLoader = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "tong-history-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final LinkedBlockingQueue<Runnable> mailbox = new LinkedBlockingQueue<>();
+    // Access order, so iteration starts at the least recently used room
+    private final LinkedHashMap<String, Room> rooms = new LinkedHashMap<>(16, 0.75f, true);
+    // Rooms whose log tail is being read, with the tasks that arrived for them meanwhile
+    private final Map<String, List<Runnable>> loading = new HashMap<>();
+    private final int ringSize = ServerConfig.getHistoryRingSize();
+    private final int backfillMessages = ServerConfig.getHistoryBackfillMessages();
+    private final long backfillMillis = TimeUnit.MINUTES.toMillis(ServerConfig.getHistoryBackfillMinutes());
+    private final long historyBudget = ServerConfig.getHistoryMaxBytes() / ServerConfig.getShardCount();
+    private final Thread thread;
+    private volatile int roomCount;
+    private volatile int memberCount;
+    private volatile long tasksRun;
+    private volatile long historyBytes;
+    private volatile long historyEvictions;
+
+    RoomShard(String name) {
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private static RoomShard[] createShards(int count) {
+        RoomShard[] created = new RoomShard[Math.max(1, count)];
+        for (int i = 0; i < created.length; i++) {
+            created[i] = new RoomShard("tong-shard-" + i);
+        }
+        return created;
+    }
+
+    public static RoomShard forRoom(String roomKey) {
+        return shards[Math.floorMod(roomKey.hashCode(), shards.length)];
+    }
+
+    // For work that touches no room, such as RoomDirectory's presence updates
+    public void execute(Runnable task) {
+        mailbox.add(task);
+    }
+
+    // Runs task on this shard after every task posted for roomKey before it. A room the shard does
+    // not have yet is first given the tail of its MessageLog, read off the shard.
+    public void execute(String roomKey, Runnable task) {
+        mailbox.add(() -> {
+            List<Runnable> waiting = loading.get(roomKey);
+            if (waiting != null) {
+                waiting.add(task);
+            } else if (rooms.containsKey(roomKey) || ringSize == 0 || !MessageLog.isEnabled()) {
+                task.run();
+            } else {
+                waiting = new ArrayList<>();
+                waiting.add(task);
+                loading.put(roomKey, waiting);
+                historyLoader.execute(() -> {
+                    List<LoggedMessage> recent = loadHistory(roomKey);
+                    execute(() -> restoreHistory(roomKey, recent));
+                });
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                runTask(mailbox.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            System.out.println("RoomShard.java : " + thread.getName());
+            e.printStackTrace();
+        }
+        tasksRun++;
+    }
+
+    // History loader thread. The tail is in the page cache unless the room has been quiet for a long time.
+    private List<LoggedMessage> loadHistory(String roomKey) {
+        try {
+            return MessageLog.recent(roomKey, ringSize);
+        } catch (RuntimeException e) {
+            System.out.println("RoomShard.java : loadHistory " + roomKey);
+            e.printStackTrace();
+            return List.of();
+        }
+    }
+
+    // Back on the shard: the room starts with its logged tail, then its waiting tasks run in order
+    private void restoreHistory(String roomKey, List<LoggedMessage> recent) {
+        List<Runnable> waiting = loading.remove(roomKey);
+        if (!rooms.containsKey(roomKey)) {
+            int colon = roomKey.indexOf(':');
+            int roomId = colon < 0 ? FrameCodec.FORUM_ROOM_ID : RoomDirectory.getRoomId(roomKey.substring(colon + 1));
+            Room room = new Room();
+            rooms.put(roomKey, room);
+            roomCount = rooms.size();
+            for (LoggedMessage logged : recent) {
+                EncodedMessage message = EncodedMessage.of(logged.type(), roomId, logged.text());
+                message.assignSequence(++room.lastSequence);
+                room.record(new Retained(message, _ -> true, logged.timestampMillis()));
+            }
+            if (historyBytes > historyBudget) {
+                trimHistory(room);
+            }
+        }
+        for (Runnable task : waiting) {
+            runTask(task);
+        }
+    }
+
+    // The methods below run on this shard's thread only
+
+    public void join(String roomKey, RoomMember member) {
+        checkThread();
+        // Normally execute() has restored the room already; without a log it starts empty
+        Room room = rooms.get(roomKey);
+        if (room == null) {
+            room = new Room();
+            rooms.put(roomKey, room);
+        }
+        room.members.add(member);
+        roomCount = rooms.size();
+        memberCount++;
+    }
+
+    // False if the member was not in the room. An emptied room keeps its sequence and history
+    // until forget() or eviction, so its members can still resume after a short disconnect.
+    public boolean leave(String roomKey, RoomMember member) {
+        checkThread();
+        Room room = rooms.get(roomKey);
+        if (room == null) {
+            return false;
+        }
+
+        for (int i = 0; i < room.members.size(); i++) {
+            if (room.members.get(i) == member) {
+                room.members.remove(i);
+                memberCount--;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public boolean hasMembers(String roomKey) {
+        checkThread();
+        Room room = rooms.get(roomKey);
+        return room != null && !room.members.isEmpty();
+    }
+
+    public List<RoomMember> members(String roomKey) {
+        checkThread();
+        Room room = rooms.get(roomKey);
+        return room == null ? List.of() : new ArrayList<>(room.members);
+    }
+
+    // Drops a closed room's history; any remaining members are forgotten too
+    public void forget(String roomKey) {
+        checkThread();
+        Room room = rooms.remove(roomKey);
+        if (room != null) {
+            memberCount -= room.members.size();
+            room.clearHistory();
+            roomCount = rooms.size();
+            MessageLog.release(roomKey);
+        }
+    }
+
+    // Sequences and retains the message, offers it to every member the filter accepts, then drops the caller's reference
+    public void broadcast(String roomKey, EncodedMessage message, Predicate<RoomMember> recipients) {
+        broadcast(roomKey, message, recipients, true);
+    }
+
+    // A message another cluster node already stored in the messages table: logged and delivered
+    // here like any other, but not written to the database a second time
+    public void broadcastRelayed(String roomKey, EncodedMessage message, Predicate<RoomMember> recipients) {
+        broadcast(roomKey, message, recipients, false);
+    }
+
+    private void broadcast(String roomKey, EncodedMessage message, Predicate<RoomMember> recipients, boolean store) {
+        checkThread();
+        try {
+            // Nobody has joined, or the room was closed: nothing to deliver or retain
+            Room room = rooms.get(roomKey);
+            if (room == null) {
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            message.assignSequence(++room.lastSequence);
+            if (message.getType() == FrameCodec.TYPE_TEXT) {
+                MessageLog.append(roomKey, message.getType(), message.getText(), now);
+                if (store) {
+                    MessageDAO.insertMessage(roomKey, SearchIndex.senderOf(message.getText()), message.getText(), now);
+                }
+            }
+            if (ringSize > 0) {
+                room.record(new Retained(message.retain(), recipients, now));
+                if (historyBytes > historyBudget) {
+                    trimHistory(room);
+                }
+            }
+
+            for (RoomMember member : room.members) {
+                if (recipients.test(member)) {
+                    member.deliver(message);
+                }
+            }
+        } finally {
+            message.release();
+        }
+    }
+
+    public long getLastSequence(String roomKey) {
+        checkThread();
+        Room room = rooms.get(roomKey);
+        return room == null ? 0 : room.lastSequence;
+    }
+
+    // Sends every retained message after afterSequence; false if some of them are no longer retained
+    public boolean replay(String roomKey, RoomMember member, long afterSequence) {
+        checkThread();
+        Room room = rooms.get(roomKey);
+        if (room == null || afterSequence > room.lastSequence) {
+            return false;
+        }
+        if (afterSequence == room.lastSequence) {
+            return true;
+        }
+
+        if (room.size == 0 || room.get(0).message.getSequence() > afterSequence + 1) {
+            return false;
+        }
+        // The original recipient filter still applies, so a client is not sent its own messages back
+        List<EncodedMessage> missed = new ArrayList<>();
+        for (int i = 0; i < room.size; i++) {
+            Retained retained = room.get(i);
+            if (retained.message.getSequence() > afterSequence && retained.recipients.test(member)) {
+                missed.add(retained.message);
+            }
+        }
+        member.deliverAll(missed);
+        return true;
+    }
+
+    // Sends a new member the room's latest chat messages, at most limit of them (-1 for the
+    // configured tong.history.messages) and none older than tong.history.minutes
+    public void backfill(String roomKey, RoomMember member, int limit) {
+        checkThread();
+        Room room = rooms.get(roomKey);
+        int wanted = limit < 0 ? backfillMessages : Math.min(limit, backfillMessages);
+        if (room == null || wanted == 0) {
+            return;
+        }
+
+        long oldestAllowed = backfillMillis > 0 ? System.currentTimeMillis() - backfillMillis : Long.MIN_VALUE;
+        List<EncodedMessage> recent = new ArrayList<>(Math.min(wanted, room.size));
+        for (int i = room.size - 1; i >= 0 && recent.size() < wanted; i--) {
+            Retained retained = room.get(i);
+            if (retained.createdMillis < oldestAllowed) {
+                break;
+            }
+            // Join and leave notices are only news when they happen
+            if (retained.message.getType() == FrameCodec.TYPE_TEXT) {
+                recent.add(retained.message);
+            }
+        }
+        if (!recent.isEmpty()) {
+            Collections.reverse(recent);
+            member.deliverAll(recent);
+            ServerStats.historyBackfilled(recent.size());
+        }
+    }
+
+    // Called once this shard's history is over budget, after current just recorded a message
+    private void trimHistory(Room current) {
+        Iterator<Map.Entry<String, Room>> iterator = rooms.entrySet().iterator();
+        while (historyBytes > historyBudget && iterator.hasNext()) {
+            Map.Entry<String, Room> entry = iterator.next();
+            Room room = entry.getValue();
+            if (room != current && room.members.isEmpty()) {
+                room.clearHistory();
+                iterator.remove();
+                historyEvictions++;
+                MessageLog.release(entry.getKey());
+            }
+        }
+        roomCount = rooms.size();
+
+        // What is left is in use; the least recently used rooms give up their oldest messages
+        for (Room room : rooms.values()) {
+            while (historyBytes > historyBudget && room.size > 0) {
+                room.dropOldest();
+            }
+            if (historyBytes <= historyBudget) {
+                return;
+            }
+        }
+    }
+
+    private record Retained(EncodedMessage message, Predicate<RoomMember> recipients, long createdMillis) {
+    }
+
+    // Ring slots are allocated with the room and reused; only the messages in them change
+    private class Room {
+        private final ArrayList<RoomMember> members = new ArrayList<>();
+        private final Retained[] ring = new Retained[ringSize];
+        private int head;
+        private int size;
+        private long lastSequence;
+
+        // Oldest first
+        Retained get(int index) {
+            return ring[(head + index) % ring.length];
+        }
+
+        void record(Retained retained) {
+            if (size == ring.length) {
+                dropOldest();
+            }
+            ring[(head + size) % ring.length] = retained;
+            size++;
+            historyBytes += retained.message.length(false);
+        }
+
+        void dropOldest() {
+            Retained oldest = ring[head];
+            ring[head] = null;
+            head = (head + 1) % ring.length;
+            size--;
+            historyBytes -= oldest.message.length(false);
+            oldest.message.release();
+        }
+
+        void clearHistory() {
+            while (size > 0) {
+                dropOldest();
+            }
+        }
+    }
+
+    private void checkThread() {
+        if (Thread.currentThread() != thread) {
+            throw new IllegalStateException("Room state touched outside " + thread.getName());
+        }
+    }
+
+    public static int getMemberCount() {
+        int total = 0;
+        for (RoomShard shard : shards) {
+            total += shard.memberCount;
+        }
+        return total;
+    }
+
+    public static long getHistoryBytes() {
+        long total = 0;
+        for (RoomShard shard : shards) {
+            total += shard.historyBytes;
+        }
+        return total;
+    }
+
+    public static String describe() {
+        StringBuilder sb = new StringBuilder("shards=" + shards.length);
+        for (RoomShard shard : shards) {
+            sb.append(" [rooms=").append(shard.roomCount)
+                    .append(" members=").append(shard.memberCount)
+                    .append(" history=").append(shard.historyBytes / 1024).append('/').append(shard.historyBudget / 1024).append("KB")
+                    .append(" evicted=").append(shard.historyEvictions)
+                    .append(" queued=").append(shard.mailbox.size())
+                    .append(" tasks=").append(shard.tasksRun).append(']');
+        }
+        return sb.toString();
+    }
+}
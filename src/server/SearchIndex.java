@@ -0,0 +1,572 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import client.SearchHit;
+
+/**
+ * Full-text search over the MessageLog. An indexer thread follows every room's log and adds each
+ * new message to that room's inverted index as soon as the log writer has stored it, so the
+ * index only ever grows by appending. The writer names the rooms each batch touched, and only
+ * those are visited. Each term maps to a posting list of (offset, term count) pairs,
+ * delta-encoded as varints, with a skip entry every 128 postings so an AND query jumps through
+ * long lists instead of decoding them. Postings of messages that retention deleted are
+ * cut from the front of the lists once enough of the room is gone.
+ *
+ *   SEARCH <sessions> <limit> <query...>  -> HIT ... lines, best first, then END <count>
+ *
+ * sessions is the SESSION token of one of the caller's connections, or a comma-separated list of
+ * them. The server resolves each to its room through the SessionRegistry and searches exactly
+ * those rooms, the forum, DMs and GCs alike. A token that is unknown, belongs to a closed
+ * connection or to another user fails the whole request, so nobody can search a room they are
+ * not in.
+ * Hits contain every query term and are ranked by how rare the terms are in their room and how
+ * often they occur in the message, with newer messages ahead on ties.
+ *
+ * The same posting lists, keyed by the sender name that starts each message ("alice: hi"),
+ * let ChatHistory page through one sender's messages without reading everyone else's.
+ */
+public class SearchIndex {
+    public static final String SEARCH_REQUEST = "SEARCH ";
+    public static final int MAX_HITS = 100;
+
+    private static final int SKIP_INTERVAL = 128;
+    private static final int BATCH_SIZE = 1024;
+    private static final int MIN_TERM_LENGTH = 2;
+    private static final int MAX_TERM_LENGTH = 32;
+    private static final int MAX_QUERY_TERMS = 8;
+    private static final int MAX_SENDER_LENGTH = 64;
+    private static final long MIN_PRUNE_MESSAGES = 10000;
+
+    private static final Map<String, RoomIndex> rooms = new ConcurrentHashMap<>();
+    private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private static final Semaphore pending = new Semaphore(0);
+    // Rooms whose log changed since the indexer last caught them up
+    private static final Set<String> pendingRooms = ConcurrentHashMap.newKeySet();
+    private static volatile Thread indexer;
+
+    private static final LongAdder indexedMessages = new LongAdder();
+    private static final LongAdder queries = new LongAdder();
+    private static final LongAdder queryNanos = new LongAdder();
+
+    // Starts after MessageLog.start(); the retained log is indexed in the background first
+    public static synchronized void start() {
+        if (indexer != null || !MessageLog.isEnabled()) {
+            return;
+        }
+        indexer = new Thread(SearchIndex::indexLoop, "tong-search-indexer");
+        indexer.setDaemon(true);
+        indexer.start();
+        pendingRooms.addAll(MessageLog.getRoomKeys());
+        pending.release();
+    }
+
+    // Called by the log writer with the rooms it stored a batch for or deleted segments of
+    static void logChanged(Collection<String> roomKeys) {
+        if (indexer != null && !roomKeys.isEmpty()) {
+            pendingRooms.addAll(roomKeys);
+            pending.release();
+        }
+    }
+
+    private static void indexLoop() {
+        while (true) {
+            try {
+                pending.acquire();
+                pending.drainPermits();
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            // Taken out before catching up, so a room the writer names meanwhile comes round again
+            Iterator<String> changed = pendingRooms.iterator();
+            while (changed.hasNext()) {
+                String roomKey = changed.next();
+                changed.remove();
+                try {
+                    catchUp(roomKey);
+                } catch (RuntimeException e) {
+                    System.out.println("SearchIndex.java : " + roomKey);
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Indexes everything the room's log has stored since the last call
+    private static void catchUp(String roomKey) {
+        RoomIndex room = rooms.computeIfAbsent(roomKey, _ -> new RoomIndex());
+        long end = MessageLog.getNextOffset(roomKey);
+
+        while (room.indexedUpTo < end) {
+            List<LoggedMessage> batch = MessageLog.read(roomKey, room.indexedUpTo, BATCH_SIZE);
+            if (batch.isEmpty()) {
+                break;
+            }
+            // Tokenized before taking the lock, so searches only wait for the list appends
+            List<Map<String, Integer>> terms = new ArrayList<>(batch.size());
+            List<String> senders = new ArrayList<>(batch.size());
+            for (LoggedMessage message : batch) {
+                terms.add(termCounts(message.text()));
+                String sender = senderOf(message.text());
+                senders.add(sender == null ? null : sender.toLowerCase());
+            }
+
+            lock.writeLock().lock();
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    room.add(batch.get(i).offset(), terms.get(i), senders.get(i));
+                }
+                room.indexedUpTo = batch.getLast().offset() + 1;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            indexedMessages.add(batch.size());
+        }
+
+        long firstOffset = MessageLog.getFirstOffset(roomKey);
+        if (firstOffset - room.prunedBefore >= Math.max(MIN_PRUNE_MESSAGES, (room.indexedUpTo - room.prunedBefore) / 4)) {
+            lock.writeLock().lock();
+            try {
+                room.prune(firstOffset);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    // Lower-cased runs of letters, digits and combining marks (so Bengali words stay whole)
+    static Map<String, Integer> termCounts(String text) {
+        Map<String, Integer> counts = new LinkedHashMap<>();
+        StringBuilder term = new StringBuilder();
+        for (int i = 0; i <= text.length(); ) {
+            int codePoint = i < text.length() ? text.codePointAt(i) : ' ';
+            if (isTermCharacter(codePoint)) {
+                if (term.length() < MAX_TERM_LENGTH) {
+                    term.appendCodePoint(Character.toLowerCase(codePoint));
+                }
+            } else if (!term.isEmpty()) {
+                if (term.length() >= MIN_TERM_LENGTH) {
+                    counts.merge(term.toString(), 1, Integer::sum);
+                }
+                term.setLength(0);
+            }
+            i += Character.charCount(codePoint);
+        }
+        return counts;
+    }
+
+    // Clients send "<displayName>: <message>"; null for anything else, such as system notices
+    static String senderOf(String text) {
+        int end = text.indexOf(": ");
+        if (end <= 0 || end > MAX_SENDER_LENGTH) {
+            return null;
+        }
+        return text.substring(0, end).trim();
+    }
+
+    private static boolean isTermCharacter(int codePoint) {
+        int type = Character.getType(codePoint);
+        return Character.isLetterOrDigit(codePoint) || type == Character.NON_SPACING_MARK || type == Character.COMBINING_SPACING_MARK;
+    }
+
+    // The best hits in the given rooms that contain every term of the query
+    public static List<SearchHit> search(List<String> roomKeys, String query, int limit) {
+        long start = System.nanoTime();
+        String[] terms = termCounts(query).keySet().stream().limit(MAX_QUERY_TERMS).toArray(String[]::new);
+        int wanted = Math.max(1, Math.min(limit, MAX_HITS));
+        PriorityQueue<Scored> best = new PriorityQueue<>();
+
+        if (terms.length > 0) {
+            lock.readLock().lock();
+            try {
+                for (String roomKey : roomKeys) {
+                    RoomIndex room = rooms.get(roomKey);
+                    if (room != null) {
+                        room.search(roomKey, terms, Math.max(room.prunedBefore, MessageLog.getFirstOffset(roomKey)), wanted, best);
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        Scored[] ranked = best.toArray(new Scored[0]);
+        Arrays.sort(ranked, (a, b) -> b.compareTo(a));
+        List<SearchHit> hits = new ArrayList<>(ranked.length);
+        for (Scored scored : ranked) {
+            // Retention may have deleted the message since it was ranked
+            List<LoggedMessage> logged = MessageLog.read(scored.roomKey, scored.offset, 1);
+            if (!logged.isEmpty() && logged.get(0).offset() == scored.offset) {
+                LoggedMessage message = logged.get(0);
+                hits.add(new SearchHit(scored.roomKey, message.offset(), message.timestampMillis(), message.text()));
+            }
+        }
+
+        queries.increment();
+        queryNanos.add(System.nanoTime() - start);
+        return hits;
+    }
+
+    // Up to limit offsets of the sender's messages in [low, high), oldest first: the oldest ones
+    // of the range, or its newest when newest is set. Null when the search index is off.
+    public static long[] senderOffsets(String roomKey, String sender, long low, long high, int limit, boolean newest) {
+        if (indexer == null) {
+            return null;
+        }
+
+        lock.readLock().lock();
+        try {
+            RoomIndex room = rooms.get(roomKey);
+            PostingList list = room == null ? null : room.senders.get(sender.trim().toLowerCase());
+            return list == null ? new long[0] : list.between(low, high, limit, newest);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Answers one SEARCH request line; the caller writes the lines back and closes the connection
+    public static List<String> handleRequest(String line) {
+        List<String> response = new ArrayList<>();
+        String[] parts = line.substring(SEARCH_REQUEST.length()).trim().split("\\s+", 3);
+        if (parts.length < 3) {
+            response.add("ERROR usage: SEARCH <sessions> <limit> <query>");
+            return response;
+        }
+        if (!MessageLog.isEnabled()) {
+            response.add("ERROR search needs the message log");
+            return response;
+        }
+
+        List<String> roomKeys = new ArrayList<>();
+        String username = null;
+        for (String token : parts[0].split(",")) {
+            SessionRegistry.Membership membership = SessionRegistry.membership(token);
+            if (membership == null || (username != null && !username.equals(membership.username()))) {
+                response.add("ERROR not a member");
+                return response;
+            }
+            username = membership.username();
+            if (!roomKeys.contains(membership.roomKey())) {
+                roomKeys.add(membership.roomKey());
+            }
+        }
+
+        int limit;
+        try {
+            limit = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            limit = 20;
+        }
+        List<SearchHit> hits = search(roomKeys, parts[2], limit);
+        for (SearchHit hit : hits) {
+            response.add(hit.toLine());
+        }
+        response.add("END " + hits.size());
+        return response;
+    }
+
+    public static String describe() {
+        if (indexer == null) {
+            return "search off";
+        }
+
+        long terms = 0;
+        long bytes = 0;
+        lock.readLock().lock();
+        try {
+            for (RoomIndex room : rooms.values()) {
+                terms += room.terms.size();
+                for (PostingList list : room.terms.values()) {
+                    bytes += list.length;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        long queryCount = queries.sum();
+        double averageMillis = queryCount == 0 ? 0 : queryNanos.sum() / 1e6 / queryCount;
+        return "search indexed=" + indexedMessages.sum()
+                + ", terms=" + terms
+                + ", postings=" + bytes / 1024 + "KB"
+                + ", queries=" + queryCount + " (avg " + String.format("%.2f", averageMillis) + "ms)";
+    }
+
+    private record Scored(String roomKey, long offset, double score) implements Comparable<Scored> {
+        @Override
+        public int compareTo(Scored other) {
+            int byScore = Double.compare(score, other.score);
+            return byScore != 0 ? byScore : Long.compare(offset, other.offset);
+        }
+    }
+
+    // Written only by the indexer thread, under the write lock
+    private static final class RoomIndex {
+        private final HashMap<String, PostingList> terms = new HashMap<>();
+        private final HashMap<String, PostingList> senders = new HashMap<>();
+        private long indexedUpTo;
+        private long prunedBefore;
+
+        void add(long offset, Map<String, Integer> termCounts, String sender) {
+            for (Map.Entry<String, Integer> entry : termCounts.entrySet()) {
+                terms.computeIfAbsent(entry.getKey(), _ -> new PostingList()).add(offset, entry.getValue());
+            }
+            if (sender != null) {
+                senders.computeIfAbsent(sender, _ -> new PostingList()).add(offset, 1);
+            }
+        }
+
+        // Leapfrog intersection driven by the rarest term; every match is scored and offered to best
+        void search(String roomKey, String[] queryTerms, long firstOffset, int wanted, PriorityQueue<Scored> best) {
+            PostingList[] lists = new PostingList[queryTerms.length];
+            for (int i = 0; i < queryTerms.length; i++) {
+                lists[i] = terms.get(queryTerms[i]);
+                if (lists[i] == null) {
+                    return;
+                }
+            }
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.count, b.count));
+
+            double documents = Math.max(1, indexedUpTo - prunedBefore);
+            double[] idf = new double[lists.length];
+            Cursor[] cursors = new Cursor[lists.length];
+            for (int i = 0; i < lists.length; i++) {
+                idf[i] = Math.log(1 + documents / lists[i].count);
+                cursors[i] = new Cursor(lists[i]);
+            }
+
+            long target = firstOffset;
+            while (cursors[0].advanceTo(target)) {
+                long candidate = cursors[0].offset;
+                boolean matched = true;
+                for (int i = 1; i < cursors.length; i++) {
+                    if (!cursors[i].advanceTo(candidate)) {
+                        return;
+                    }
+                    if (cursors[i].offset != candidate) {
+                        matched = false;
+                        target = cursors[i].offset;
+                        break;
+                    }
+                }
+                if (!matched) {
+                    continue;
+                }
+
+                double score = 0;
+                for (int i = 0; i < cursors.length; i++) {
+                    score += idf[i] * (1 + Math.log(cursors[i].frequency));
+                }
+                // Newer messages win ties and near-ties
+                score += 0.1 * (candidate - prunedBefore + 1) / documents;
+                best.add(new Scored(roomKey, candidate, score));
+                if (best.size() > wanted) {
+                    best.poll();
+                }
+                target = candidate + 1;
+            }
+        }
+
+        void prune(long firstOffset) {
+            prune(terms, firstOffset);
+            prune(senders, firstOffset);
+            prunedBefore = firstOffset;
+        }
+
+        private static void prune(Map<String, PostingList> lists, long firstOffset) {
+            Iterator<PostingList> iterator = lists.values().iterator();
+            while (iterator.hasNext()) {
+                PostingList list = iterator.next();
+                if (list.lastOffset < firstOffset) {
+                    iterator.remove();
+                } else {
+                    list.dropBefore(firstOffset);
+                }
+            }
+        }
+    }
+
+    private static final class PostingList {
+        private byte[] data = new byte[8];
+        private int length;
+        private int count;
+        private long lastOffset = -1;
+        // Skip k leads to posting (k + 1) * SKIP_INTERVAL: the offset before it and its byte position
+        private long[] skipOffsets = new long[0];
+        private int[] skipPositions = new int[0];
+
+        void add(long offset, int frequency) {
+            if (count > 0 && count % SKIP_INTERVAL == 0) {
+                int skip = count / SKIP_INTERVAL - 1;
+                if (skip == skipOffsets.length) {
+                    skipOffsets = Arrays.copyOf(skipOffsets, Math.max(4, skip * 2));
+                    skipPositions = Arrays.copyOf(skipPositions, skipOffsets.length);
+                }
+                skipOffsets[skip] = lastOffset;
+                skipPositions[skip] = length;
+            }
+            writeVarLong(offset - lastOffset);
+            writeVarLong(frequency);
+            lastOffset = offset;
+            count++;
+        }
+
+        // Re-encodes the postings at or after firstOffset; the list must keep at least one
+        void dropBefore(long firstOffset) {
+            PostingList kept = new PostingList();
+            Cursor cursor = new Cursor(this);
+            if (cursor.advanceTo(firstOffset)) {
+                do {
+                    kept.add(cursor.offset, cursor.frequency);
+                } while (cursor.next());
+            }
+            data = kept.data;
+            length = kept.length;
+            count = kept.count;
+            lastOffset = kept.lastOffset;
+            skipOffsets = kept.skipOffsets;
+            skipPositions = kept.skipPositions;
+        }
+
+        long[] between(long low, long high, int limit, boolean newest) {
+            long[] found = new long[Math.max(0, limit)];
+            int n = 0;
+            if (!newest) {
+                Cursor cursor = new Cursor(this);
+                if (cursor.advanceTo(low)) {
+                    do {
+                        if (cursor.offset >= high) {
+                            break;
+                        }
+                        found[n++] = cursor.offset;
+                    } while (n < found.length && cursor.next());
+                }
+                return Arrays.copyOf(found, n);
+            }
+
+            // Backwards one skip block at a time, starting from the last block with a posting below high
+            int block = count > 0 ? (count - 1) / SKIP_INTERVAL : -1;
+            while (block > 0 && skipOffsets[block - 1] >= high) {
+                block--;
+            }
+            long[] decoded = new long[SKIP_INTERVAL];
+            for (; block >= 0 && n < found.length; block--) {
+                Cursor cursor = new Cursor(this);
+                if (block > 0) {
+                    cursor.index = block * SKIP_INTERVAL;
+                    cursor.offset = skipOffsets[block - 1];
+                    cursor.position = skipPositions[block - 1];
+                }
+                int size = 0;
+                while (size < SKIP_INTERVAL && cursor.next()) {
+                    decoded[size++] = cursor.offset;
+                }
+                for (int i = size - 1; i >= 0 && n < found.length; i--) {
+                    if (decoded[i] < low) {
+                        block = 0;
+                        break;
+                    }
+                    if (decoded[i] < high) {
+                        found[n++] = decoded[i];
+                    }
+                }
+            }
+            long[] oldestFirst = new long[n];
+            for (int i = 0; i < n; i++) {
+                oldestFirst[i] = found[n - 1 - i];
+            }
+            return oldestFirst;
+        }
+
+        private void writeVarLong(long value) {
+            if (length + 10 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            while ((value & ~0x7FL) != 0) {
+                data[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+    }
+
+    private static final class Cursor {
+        private final PostingList list;
+        private int position;
+        private int index;
+        private long offset = -1;
+        private int frequency;
+
+        Cursor(PostingList list) {
+            this.list = list;
+        }
+
+        boolean next() {
+            if (index == list.count) {
+                return false;
+            }
+            offset += readVarLong();
+            frequency = (int) readVarLong();
+            index++;
+            return true;
+        }
+
+        // Moves to the first posting at or after target, jumping whole skip blocks; false when there is none
+        boolean advanceTo(long target) {
+            if (index > 0 && offset >= target) {
+                return true;
+            }
+
+            int skipCount = list.count > 0 ? (list.count - 1) / SKIP_INTERVAL : 0;
+            int low = index / SKIP_INTERVAL;
+            int high = skipCount - 1;
+            int found = -1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (list.skipOffsets[middle] < target) {
+                    found = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            if (found >= 0 && (found + 1) * SKIP_INTERVAL > index) {
+                index = (found + 1) * SKIP_INTERVAL;
+                offset = list.skipOffsets[found];
+                position = list.skipPositions[found];
+            }
+
+            while (next()) {
+                if (offset >= target) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = list.data[position++];
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+}
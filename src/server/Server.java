@@ -1,14 +1,21 @@
 package server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
 
-import client.ClientHandler;
+import database.MessageDAO;
 
 public class Server {
+    public static final String DEFAULT_HOST = "localhost";
+    public static final int DEFAULT_PORT = 1234;
+
     public ServerSocket serverSocket;
     public int port;
+    private final ExecutorService clientExecutor = ServerExecutors.newRoomExecutor("forum");
 
     public Server(ServerSocket serverSocket, int port) {
         this.serverSocket = serverSocket;
@@ -16,19 +23,16 @@ public class Server {
     }
 
     public Server(ServerSocket serverSocket) {
-        this(serverSocket, 1234);
+        this(serverSocket, DEFAULT_PORT);
     }
 
     public void startServer() {
         try {
-            System.out.println("Server started on port 1234. Waiting for connections...");
+            System.out.println("Server started on port " + port + " (" + ServerExecutors.describe() + "). Waiting for connections...");
             while (!serverSocket.isClosed()) {
                 Socket socket = serverSocket.accept();
-                System.out.println("New client connected: " + socket.getInetAddress());
-                ClientHandler clientHandler = new ClientHandler(socket);
-
-                Thread thread = new Thread(clientHandler);
-                thread.start();
+                System.out.println("New client connected: " + socket.getInetAddress() + " (" + ServerExecutors.describe() + ")");
+                clientExecutor.execute(() -> ConnectionRouter.route(socket));
             }
         } catch (IOException e) {
             System.out.println("Server.java : startServer");
@@ -42,6 +46,7 @@ public class Server {
             if (serverSocket != null) {
                 serverSocket.close();
             }
+            clientExecutor.shutdownNow();
         } catch (IOException e) {
             System.out.println("Server.java : closeServerSocket");
         }
@@ -49,8 +54,23 @@ public class Server {
 
     public static void main(String[] args) {
         try {
-            int portVal = 1234;
-            ServerSocket serverSocket = new ServerSocket(portVal);
+            int portVal = ServerConfig.getServerPort();
+            ServerStats.startReporter();
+            MessageLog.start();
+            SearchIndex.start();
+            MessageDAO.start(ServerConfig.getDbBatchSize(), ServerConfig.getDbMaxLatencyMillis(), ServerConfig.getDbQueueCapacity());
+            ClusterBus.start(portVal);
+
+            if (ServerConfig.MODE_NIO.equals(ServerConfig.getServerMode())) {
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                serverChannel.bind(new InetSocketAddress(portVal));
+                NioServer nioServer = new NioServer(serverChannel, portVal, ServerConfig.getEventLoopCount());
+                nioServer.startServer();
+                return;
+            }
+
+            // Opened through a channel so client writers can use gathering writes
+            ServerSocket serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(portVal)).socket();
             Server server = new Server(serverSocket, portVal);
             server.startServer();
         } catch (IOException e) {
@@ -0,0 +1,228 @@
+package server;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import client.FrameCodec;
+
+public class ServerConfig {
+    public static final String MODE_BLOCKING = "blocking";
+    public static final String MODE_NIO = "nio";
+
+    public static final String EXECUTOR_PLATFORM = "platform";
+    public static final String EXECUTOR_VIRTUAL = "virtual";
+
+    // Read once at startup, e.g. java -Dtong.server.mode=nio -cp "bin;lib/*" server.Server
+    public static String getServerMode() {
+        return System.getProperty("tong.server.mode", MODE_BLOCKING).trim().toLowerCase();
+    }
+
+    public static int getEventLoopCount() {
+        int defaultLoops = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+        return getInt("tong.nio.loops", defaultLoops);
+    }
+
+    // Room shard event loops; every room is pinned to one of them by key hash
+    public static int getShardCount() {
+        return Math.max(1, getInt("tong.shards", Runtime.getRuntime().availableProcessors()));
+    }
+
+    // Thread kind used for accept loops and per-connection handlers in blocking mode
+    public static String getExecutorMode() {
+        return System.getProperty("tong.server.executor", EXECUTOR_PLATFORM).trim().toLowerCase();
+    }
+
+    // Endpoint the server listens on and the room directory hands out to clients
+    public static String getAdvertisedHost() {
+        return System.getProperty("tong.server.host", Server.DEFAULT_HOST);
+    }
+
+    public static int getServerPort() {
+        return getInt("tong.server.port", Server.DEFAULT_PORT);
+    }
+
+    // Per-connection outbound queue: capacity, high-water mark and what to do with slow consumers
+    public static int getOutboundCapacity() {
+        return Math.max(1, getInt("tong.outbound.capacity", 1024));
+    }
+
+    public static int getOutboundHighWaterMark() {
+        return Math.min(getOutboundCapacity(), Math.max(1, getInt("tong.outbound.highWater", 768)));
+    }
+
+    public static String getSlowConsumerPolicy() {
+        return System.getProperty("tong.outbound.policy", "drop-oldest").trim().toLowerCase();
+    }
+
+    public static int getSlowConsumerDisconnectMillis() {
+        return Math.max(0, getInt("tong.outbound.disconnectAfterMs", 5000));
+    }
+
+    // Write coalescing for busy connections: byte budget per write and how long to wait for more
+    public static int getCoalesceBytes() {
+        return Math.max(1, getInt("tong.outbound.coalesceBytes", 64 * 1024));
+    }
+
+    public static int getCoalesceWindowMicros() {
+        return Math.max(0, getInt("tong.outbound.coalesceMicros", 500));
+    }
+
+    // Largest binary frame a client may send before the connection is dropped
+    public static int getMaxFrameBytes() {
+        return Math.max(FrameCodec.HEADER_SIZE, getInt("tong.frame.maxBytes", FrameCodec.DEFAULT_MAX_FRAME_SIZE));
+    }
+
+    // Whether clients may negotiate deflate compression: "deflate" (default) or "off"
+    public static boolean isCompressionEnabled() {
+        return !"off".equals(System.getProperty("tong.compression", "deflate").trim().toLowerCase());
+    }
+
+    // Cluster peer links: the port other nodes connect to, and their "host:port" link addresses
+    public static int getClusterPort() {
+        return getInt("tong.cluster.port", 0);
+    }
+
+    public static List<String> getClusterPeers() {
+        List<String> peers = new ArrayList<>();
+        for (String peer : System.getProperty("tong.cluster.peers", "").split(",")) {
+            if (!peer.isBlank()) {
+                peers.add(peer.trim());
+            }
+        }
+        return peers;
+    }
+
+    public static String getClusterNodeId(int serverPort) {
+        return System.getProperty("tong.cluster.nodeId", getAdvertisedHost() + ":" + serverPort).trim();
+    }
+
+    // Shared by every node; peer links that cannot prove they know it are refused
+    public static String getClusterSecret() {
+        return System.getProperty("tong.cluster.secret", "");
+    }
+
+    public static int getClusterBatchSize() {
+        return Math.max(1, getInt("tong.cluster.batch", 256));
+    }
+
+    // Where a down peer's messages wait once they no longer fit in memory, and how much of them.
+    // Beside the log directory, not in it, where every subdirectory is taken for a room.
+    public static String getClusterSpoolDirectory() {
+        String logDirectory = getLogDirectory();
+        String fallback = logDirectory.isEmpty() ? System.getProperty("java.io.tmpdir") + "/tong-cluster"
+                : Paths.get(logDirectory).toAbsolutePath().resolveSibling("cluster").toString();
+        return System.getProperty("tong.cluster.spoolDir", fallback).trim();
+    }
+
+    public static long getClusterSpoolMaxBytes() {
+        return Math.max(1, getInt("tong.cluster.spoolMB", 256)) * 1024L * 1024L;
+    }
+
+    // How long a new connection has to finish PROTO, JOIN and username before it is closed
+    public static int getHandshakeTimeoutMillis() {
+        return Math.max(0, getInt("tong.handshake.timeoutMs", 10000));
+    }
+
+    // Heartbeat and idle timeout for framed clients, checked on a timing wheel with this tick
+    public static int getIdlePingSeconds() {
+        return Math.max(0, getInt("tong.idle.pingSec", 30));
+    }
+
+    public static int getIdleTimeoutSeconds() {
+        return Math.max(0, getInt("tong.idle.timeoutSec", 90));
+    }
+
+    public static int getTimerTickMillis() {
+        return Math.max(1, getInt("tong.timer.tickMs", 100));
+    }
+
+    // Per-room history ring, used for both late-joiner backfill and reconnect replay
+    public static int getHistoryRingSize() {
+        return Math.max(0, getInt("tong.history.ringSize", 256));
+    }
+
+    public static int getHistoryBackfillMessages() {
+        return Math.max(0, getInt("tong.history.messages", 50));
+    }
+
+    public static int getHistoryBackfillMinutes() {
+        return Math.max(0, getInt("tong.history.minutes", 60));
+    }
+
+    public static long getHistoryMaxBytes() {
+        return Math.max(0, getInt("tong.history.maxMB", 64)) * 1024L * 1024L;
+    }
+
+    // How long a dropped session stays resumable
+    public static int getResumeTtlSeconds() {
+        return Math.max(0, getInt("tong.resume.ttlSec", 120));
+    }
+
+    // Durable per-room message log; an empty tong.log.dir turns it off
+    public static String getLogDirectory() {
+        return System.getProperty("tong.log.dir", "data/messages").trim();
+    }
+
+    // A segment must hold at least one frame of the largest size
+    public static int getLogSegmentBytes() {
+        long megabytes = Math.max(1, getInt("tong.log.segmentMB", 16));
+        return (int) Math.max(getMaxFrameBytes() + RoomLog.RECORD_HEADER_SIZE, Math.min(1024, megabytes) * 1024 * 1024);
+    }
+
+    public static int getLogIndexIntervalBytes() {
+        return Math.max(64, getInt("tong.log.indexBytes", 4096));
+    }
+
+    public static int getLogFlushMillis() {
+        return Math.max(0, getInt("tong.log.flushMs", 100));
+    }
+
+    public static int getLogQueueCapacity() {
+        return Math.max(1, getInt("tong.log.queue", 65536));
+    }
+
+    public static int getLogRetentionHours() {
+        return Math.max(0, getInt("tong.log.retentionHours", 168));
+    }
+
+    public static long getLogRetentionBytes() {
+        return Math.max(1, getInt("tong.log.retentionMB", 1024)) * 1024L * 1024L;
+    }
+
+    // A room log nobody has written or read for this long has its segments unmapped
+    public static int getLogIdleMinutes() {
+        return Math.max(1, getInt("tong.log.idleMinutes", 10));
+    }
+
+    // Rows per INSERT into the messages table; 0 keeps messages out of the database
+    public static int getDbBatchSize() {
+        return Math.max(0, getInt("tong.db.batchSize", 500));
+    }
+
+    public static int getDbMaxLatencyMillis() {
+        return Math.max(0, getInt("tong.db.maxLatencyMs", 200));
+    }
+
+    public static int getDbQueueCapacity() {
+        return Math.max(1, getInt("tong.db.queue", 20000));
+    }
+
+    public static int getStatsIntervalSeconds() {
+        return Math.max(0, getInt("tong.stats.intervalSec", 60));
+    }
+
+    static int getInt(String name, int defaultValue) {
+        String value = System.getProperty(name);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("ServerConfig : ignoring invalid " + name + "=" + value);
+            return defaultValue;
+        }
+    }
+}
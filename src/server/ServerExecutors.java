@@ -0,0 +1,88 @@
+package server;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import utils.HashedTimingWheel;
+
+/**
+ * Creates the accept-loop threads and the per-room handler executors for the blocking servers.
+ * With -Dtong.server.executor=virtual every accept loop and client handler runs on a virtual thread,
+ * so tens of thousands of mostly idle connections no longer pin a platform stack each.
+ * Every room (the forum, each DM, each GC) owns one executor, and shutting the room down ends its threads.
+ */
+public class ServerExecutors {
+    private static final AtomicInteger liveThreads = new AtomicInteger();
+    private static final AtomicLong startedThreads = new AtomicLong();
+    private static final ExecutorService writers = Executors.newThreadPerTaskExecutor(counting(Thread.ofVirtual().name("tong-writer-", 0).factory()));
+    private static final HashedTimingWheel timer = new HashedTimingWheel("tong-timeouts", ServerConfig.getTimerTickMillis(), 512);
+
+    static {
+        timer.start();
+    }
+
+    public static boolean usesVirtualThreads() {
+        return ServerConfig.EXECUTOR_VIRTUAL.equals(ServerConfig.getExecutorMode());
+    }
+
+    public static Thread startAcceptor(String name, Runnable acceptLoop) {
+        Thread thread = newThreadFactory(name, false).newThread(acceptLoop);
+        thread.start();
+        return thread;
+    }
+
+    // Outbound queues are drained here only while they hold something, each burst on a fresh virtual
+    // thread whatever tong.server.executor says, so an idle connection has no writer thread at all
+    public static void executeWrite(Runnable drain) {
+        writers.execute(drain);
+    }
+
+    // One timing wheel for every connection deadline: handshakes, heartbeats and idle timeouts
+    public static HashedTimingWheel getTimer() {
+        return timer;
+    }
+
+    public static ExecutorService newRoomExecutor(String roomName) {
+        return Executors.newThreadPerTaskExecutor(newThreadFactory("tong-" + roomName + "-client-", true));
+    }
+
+    public static int getLiveThreadCount() {
+        return liveThreads.get();
+    }
+
+    public static long getStartedThreadCount() {
+        return startedThreads.get();
+    }
+
+    public static String describe() {
+        return (usesVirtualThreads() ? "virtual" : "platform") + " threads, live=" + liveThreads.get()
+                + ", started=" + startedThreads.get();
+    }
+
+    private static ThreadFactory newThreadFactory(String name, boolean numbered) {
+        ThreadFactory delegate;
+        if (usesVirtualThreads()) {
+            Thread.Builder.OfVirtual builder = Thread.ofVirtual();
+            delegate = (numbered ? builder.name(name, 0) : builder.name(name)).factory();
+        } else {
+            Thread.Builder.OfPlatform builder = Thread.ofPlatform().daemon(true);
+            delegate = (numbered ? builder.name(name, 0) : builder.name(name)).factory();
+        }
+        return counting(delegate);
+    }
+
+    private static ThreadFactory counting(ThreadFactory delegate) {
+        return task -> delegate.newThread(() -> {
+            liveThreads.incrementAndGet();
+            startedThreads.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                liveThreads.decrementAndGet();
+            }
+        });
+    }
+}
@@ -0,0 +1,180 @@
+package server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import client.StreamCompressor;
+import database.DatabaseHelper;
+import database.MessageDAO;
+
+/**
+ * Process-wide server counters, printed every tong.stats.intervalSec seconds.
+ */
+public class ServerStats {
+    private static final LongAdder queuedMessages = new LongAdder();
+    private static final AtomicLong maxQueueDepth = new AtomicLong();
+    private static final LongAdder enqueuedMessages = new LongAdder();
+    private static final LongAdder droppedMessages = new LongAdder();
+    private static final LongAdder slowConsumerEvictions = new LongAdder();
+    private static final LongAdder encodedMessages = new LongAdder();
+    private static final LongAdder encodedBytes = new LongAdder();
+    private static final LongAdder deliveredMessages = new LongAdder();
+    private static final LongAdder deliveredBytes = new LongAdder();
+    private static final LongAdder flushes = new LongAdder();
+    private static final LongAdder flushedMessages = new LongAdder();
+    private static final LongAdder handshakes = new LongAdder();
+    private static final LongAdder handshakeNanos = new LongAdder();
+    private static final AtomicLong maxHandshakeNanos = new AtomicLong();
+    private static final LongAdder handshakeTimeouts = new LongAdder();
+    private static final LongAdder heartbeatsSent = new LongAdder();
+    private static final LongAdder idleTimeouts = new LongAdder();
+    private static final LongAdder backfills = new LongAdder();
+    private static final LongAdder backfilledMessages = new LongAdder();
+    private static final Set<StreamCompressor> compressors = ConcurrentHashMap.newKeySet();
+
+    private static ScheduledExecutorService reporter;
+
+    public static void messageEnqueued(int depthAfter) {
+        enqueuedMessages.increment();
+        queuedMessages.increment();
+        maxQueueDepth.accumulateAndGet(depthAfter, Math::max);
+    }
+
+    public static void messagesDequeued(int count) {
+        queuedMessages.add(-count);
+    }
+
+    public static void messageDropped() {
+        droppedMessages.increment();
+        queuedMessages.decrement();
+    }
+
+    public static void slowConsumerEvicted() {
+        slowConsumerEvictions.increment();
+    }
+
+    // Encoded once per broadcast, delivered once per recipient
+    public static void messageEncoded(int bytes) {
+        encodedMessages.increment();
+        encodedBytes.add(bytes);
+    }
+
+    public static void messageDelivered(int bytes) {
+        deliveredMessages.increment();
+        deliveredBytes.add(bytes);
+    }
+
+    // One write call carrying a batch of messages; each message past the first is a syscall saved
+    public static void batchFlushed(int messages) {
+        flushes.increment();
+        flushedMessages.add(messages);
+    }
+
+    // Accept to username (or directory request), measured per connection
+    public static void handshakeCompleted(long nanos) {
+        handshakes.increment();
+        handshakeNanos.add(nanos);
+        maxHandshakeNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    public static void handshakeTimedOut() {
+        handshakeTimeouts.increment();
+    }
+
+    private static String describeHandshakes() {
+        long count = handshakes.sum();
+        double averageMillis = count == 0 ? 0 : handshakeNanos.sum() / 1e6 / count;
+        return "handshakes=" + count
+                + ", avg=" + String.format("%.2f", averageMillis) + "ms"
+                + ", max=" + String.format("%.2f", maxHandshakeNanos.get() / 1e6) + "ms"
+                + ", timeouts=" + handshakeTimeouts.sum();
+    }
+
+    public static void heartbeatSent() {
+        heartbeatsSent.increment();
+    }
+
+    public static void idleTimedOut() {
+        idleTimeouts.increment();
+    }
+
+    public static void historyBackfilled(int messages) {
+        backfills.increment();
+        backfilledMessages.add(messages);
+    }
+
+    public static void compressionStarted(StreamCompressor compressor) {
+        compressors.add(compressor);
+    }
+
+    public static void compressionEnded(StreamCompressor compressor) {
+        compressors.remove(compressor);
+    }
+
+    // Ratio and deflate/inflate time for every live compressed connection, one per line
+    public static String describeCompression() {
+        StringBuilder sb = new StringBuilder();
+        long plain = 0;
+        long compressed = 0;
+        long cpuNanos = 0;
+        for (StreamCompressor compressor : compressors) {
+            sb.append("\n  ").append(compressor.describe());
+            plain += compressor.getPlainBytesOut();
+            compressed += compressor.getCompressedBytesOut();
+            cpuNanos += compressor.getCpuNanos();
+        }
+
+        String ratio = compressed == 0 ? "-" : String.format("%.2f", (double) plain / compressed);
+        return "compression " + compressors.size() + " connections, out " + plain + "B->" + compressed + "B ("
+                + ratio + "x), cpu " + cpuNanos / 1_000_000 + "ms" + sb;
+    }
+
+    public static String describe() {
+        long flushCount = flushes.sum();
+        long flushedCount = flushedMessages.sum();
+        String perFlush = flushCount == 0 ? "0" : String.format("%.2f", (double) flushedCount / flushCount);
+
+        return "outbound queued=" + queuedMessages.sum()
+                + ", maxDepth=" + maxQueueDepth.get()
+                + ", enqueued=" + enqueuedMessages.sum()
+                + ", dropped=" + droppedMessages.sum()
+                + ", evictions=" + slowConsumerEvictions.sum()
+                + "; encoded " + encodedMessages.sum() + " msgs/" + encodedBytes.sum() + "B"
+                + ", delivered " + deliveredMessages.sum() + " msgs/" + deliveredBytes.sum() + "B"
+                + "; flushes=" + flushCount + ", msgs/flush=" + perFlush + ", syscallsSaved=" + (flushedCount - flushCount)
+                + "; " + describeHandshakes()
+                + "; timers=" + ServerExecutors.getTimer().getPendingCount() + ", pings=" + heartbeatsSent.sum() + ", idleTimeouts=" + idleTimeouts.sum()
+                + "; " + ServerExecutors.describe()
+                + "; history=" + RoomShard.getHistoryBytes() / 1024 + "KB, backfills=" + backfills.sum() + ", backfilled=" + backfilledMessages.sum()
+                + "; " + RoomShard.describe()
+                + "; " + SessionRegistry.describe()
+                + "; " + MessageLog.describe()
+                + "; " + SearchIndex.describe()
+                + "; " + MessageDAO.describe() + ", " + DatabaseHelper.describePool()
+                + "; " + ClusterBus.describe();
+    }
+
+    public static synchronized void startReporter() {
+        int interval = ServerConfig.getStatsIntervalSeconds();
+        if (reporter != null || interval == 0) {
+            return;
+        }
+
+        reporter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "tong-stats");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            System.out.println("Server stats: " + describe());
+            if (!compressors.isEmpty()) {
+                System.out.println("Server stats: " + describeCompression());
+            }
+        }, interval, interval, TimeUnit.SECONDS);
+    }
+}
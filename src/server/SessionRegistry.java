@@ -0,0 +1,125 @@
+package server;
+
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import client.EncodedMessage;
+import client.FrameCodec;
+import client.RoomMember;
+import utils.HashedTimingWheel;
+
+/**
+ * What a member is sent right after joining, and resumable sessions for framed clients. A plain
+ * join is backfilled from the room's history ring (see JoinRequest for "HISTORY <n>"). After joining, a client is sent "SESSION <token>";
+ * when it reconnects it sends "RESUME <token> <lastSeq>" before its join line and username.
+ * If the token is still known for that room and user, the room's shard replays every retained
+ * broadcast after lastSeq. Otherwise it sends "GAP <lastSeq> <latestSeq>" so the client knows
+ * those messages have to come from somewhere else. Tokens are single-use and expire
+ * tong.resume.ttlSec after their connection closes.
+ */
+public class SessionRegistry {
+    private static final SecureRandom random = new SecureRandom();
+    private static final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private static final LongAdder resumed = new LongAdder();
+    private static final LongAdder gaps = new LongAdder();
+
+    // Who holds a token: the room it was issued for and the username that joined with it
+    public record Membership(String roomKey, String username) {
+    }
+
+    private static class Session {
+        private final String roomKey;
+        private final String username;
+        private volatile HashedTimingWheel.Timeout expiry;
+
+        Session(String roomKey, String username) {
+            this.roomKey = roomKey;
+            this.username = username;
+        }
+    }
+
+    // Registered up front so a connection that closes before attach() still gets its expiry
+    public static String open(String roomKey, String username) {
+        byte[] bytes = new byte[16];
+        random.nextBytes(bytes);
+        String token = HexFormat.of().formatHex(bytes);
+        sessions.put(token, new Session(roomKey, username));
+        return token;
+    }
+
+    // Runs on the room's shard right after the join, so the backfill or replay and live messages
+    // neither overlap nor skip. token is null for text clients, which cannot resume.
+    public static void attach(RoomShard shard, String roomKey, RoomMember member, String token, JoinRequest request) {
+        if (request.resumeLine() != null) {
+            resume(shard, roomKey, member, request.resumeLine());
+        } else {
+            shard.backfill(roomKey, member, request.historyLimit());
+        }
+        if (token != null) {
+            sendControl(member, FrameCodec.SESSION_PREFIX + token);
+        }
+    }
+
+    private static void resume(RoomShard shard, String roomKey, RoomMember member, String resumeLine) {
+        String[] parts = resumeLine.substring(FrameCodec.RESUME_PREFIX.length()).trim().split(" ");
+        long afterSequence;
+        try {
+            afterSequence = parts.length == 2 ? Long.parseLong(parts[1]) : -1;
+        } catch (NumberFormatException e) {
+            afterSequence = -1;
+        }
+
+        Session session = afterSequence < 0 ? null : sessions.remove(parts[0]);
+        if (session != null && session.expiry != null) {
+            session.expiry.cancel();
+        }
+        boolean valid = session != null && session.roomKey.equals(roomKey) && session.username.equals(member.getClientUsername());
+        if (valid && shard.replay(roomKey, member, afterSequence)) {
+            resumed.increment();
+            return;
+        }
+
+        gaps.increment();
+        sendControl(member, FrameCodec.GAP_PREFIX + Math.max(0, afterSequence) + " " + shard.getLastSequence(roomKey));
+    }
+
+    // The membership behind a token whose connection is still open; null for an unknown token or
+    // one only kept for resuming. Only a current member of a room holds such a token for it, so
+    // this is what SEARCH and FETCH are authorized with.
+    public static Membership membership(String token) {
+        Session session = token == null ? null : sessions.get(token);
+        if (session == null || session.expiry != null) {
+            return null;
+        }
+        return new Membership(session.roomKey, session.username);
+    }
+
+    // The connection is gone; its token stays usable for tong.resume.ttlSec
+    public static void detach(String token) {
+        Session session = sessions.get(token);
+        if (session == null) {
+            return;
+        }
+
+        int ttlSeconds = ServerConfig.getResumeTtlSeconds();
+        if (ttlSeconds == 0) {
+            sessions.remove(token, session);
+            return;
+        }
+        session.expiry = ServerExecutors.getTimer().schedule(() -> sessions.remove(token, session), ttlSeconds, TimeUnit.SECONDS);
+    }
+
+    private static void sendControl(RoomMember member, String text) {
+        EncodedMessage message = EncodedMessage.of(FrameCodec.TYPE_CONTROL, FrameCodec.FORUM_ROOM_ID, text);
+        member.deliver(message);
+        message.release();
+    }
+
+    public static String describe() {
+        return "sessions=" + sessions.size() + ", resumed=" + resumed.sum() + ", gaps=" + gaps.sum();
+    }
+}
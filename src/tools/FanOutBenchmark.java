@@ -0,0 +1,163 @@
+package tools;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import client.EncodedMessage;
+import client.FrameCodec;
+
+/**
+ * Bytes allocated, bytes UTF-8 encoded and time per broadcast fan-out, the way the handlers used
+ * to write a message and the way they write it now.
+ *
+ *   per-recipient  every recipient's BufferedWriter over an OutputStreamWriter encodes the String
+ *                  again, then flushes it to the socket stream (ClientHandler.broadcastMessage before)
+ *   encode-once    one EncodedMessage for the whole room; every recipient's queue retains it and
+ *                  sends read-only views of the same bytes with one gathering write (OutboundQueue)
+ *
+ * Both write into sinks that discard, so only the fan-out itself is measured, on one thread.
+ *
+ *   java -cp "bin;lib/*" tools.FanOutBenchmark
+ *
+ * -Dbench.recipients (500), -Dbench.messages per run (2000) and -Dbench.runs (5) set the size; the
+ * first run warms up and is not reported.
+ */
+public class FanOutBenchmark {
+    private static final String ASCII = "alice: did anyone get the slides from today's lecture? I missed the last twenty minutes";
+    private static final String BENGALI = "রাহিম: আজকের ক্লাসের স্লাইডগুলো কেউ পেয়েছ? শেষ বিশ মিনিট মিস করেছি";
+
+    private static final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private final int recipients = Integer.getInteger("bench.recipients", 500);
+    private final int messages = Integer.getInteger("bench.messages", 2000);
+    private final int runs = Math.max(2, Integer.getInteger("bench.runs", 5));
+
+    // The per-recipient writers and channels live as long as their connections, as on the server
+    private final BufferedWriter[] writers = new BufferedWriter[recipients];
+    private final DiscardingChannel[] channels = new DiscardingChannel[recipients];
+
+    // Written by the sinks so the writes cannot be optimized away
+    private long sink;
+
+    public static void main(String[] args) throws IOException {
+        new FanOutBenchmark().run();
+    }
+
+    private void run() throws IOException {
+        for (int i = 0; i < recipients; i++) {
+            writers[i] = new BufferedWriter(new OutputStreamWriter(new DiscardingStream()));
+            channels[i] = new DiscardingChannel();
+        }
+
+        System.out.println(recipients + " recipients, " + messages + " broadcasts per run, best of " + (runs - 1) + " runs");
+        System.out.printf("%-8s %-14s %14s %14s %12s%n", "message", "fan-out", "alloc B/fanout", "encoded B", "us/fanout");
+        compare("ascii", ASCII);
+        compare("bengali", BENGALI);
+    }
+
+    private void compare(String label, String text) throws IOException {
+        report(label, "per-recipient", text, false);
+        report(label, "encode-once", text, false);
+        report(label, "encode-once", text, true);
+    }
+
+    private void report(String label, String name, String text, boolean framed) throws IOException {
+        boolean perRecipient = name.equals("per-recipient");
+        long bestBytes = Long.MAX_VALUE;
+        long bestNanos = Long.MAX_VALUE;
+        for (int run = 0; run < runs; run++) {
+            long allocatedBefore = threads.getCurrentThreadAllocatedBytes();
+            long start = System.nanoTime();
+            for (int m = 0; m < messages; m++) {
+                if (perRecipient) {
+                    perRecipient(text);
+                } else {
+                    encodeOnce(text, framed);
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            long bytes = threads.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            if (run > 0) {
+                bestBytes = Math.min(bestBytes, bytes);
+                bestNanos = Math.min(bestNanos, nanos);
+            }
+        }
+
+        int utf8Length = text.getBytes(StandardCharsets.UTF_8).length;
+        long encoded = perRecipient ? (long) utf8Length * recipients : utf8Length;
+        System.out.printf("%-8s %-14s %14d %14d %12.1f%n", label, framed ? name + " framed" : name,
+                bestBytes / messages, encoded, bestNanos / 1e3 / messages);
+    }
+
+    private void perRecipient(String text) throws IOException {
+        for (BufferedWriter writer : writers) {
+            writer.write(text);
+            writer.newLine();
+            writer.flush();
+        }
+    }
+
+    private void encodeOnce(String text, boolean framed) throws IOException {
+        EncodedMessage message = EncodedMessage.of(FrameCodec.TYPE_TEXT, FrameCodec.FORUM_ROOM_ID, text);
+        for (DiscardingChannel channel : channels) {
+            EncodedMessage queued = message.retain();
+            channel.write(queued.buffers(framed));
+            queued.release();
+        }
+        message.release();
+    }
+
+    private final class DiscardingStream extends OutputStream {
+        @Override
+        public void write(int b) {
+            sink += b;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            sink += length;
+        }
+    }
+
+    // Consumes every buffer the way a socket channel with room in its send buffer does
+    private final class DiscardingChannel implements GatheringByteChannel {
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            long written = 0;
+            for (int i = offset; i < offset + length; i++) {
+                written += sources[i].remaining();
+                sources[i].position(sources[i].limit());
+            }
+            sink += written;
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            int written = source.remaining();
+            source.position(source.limit());
+            sink += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
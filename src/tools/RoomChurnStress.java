@@ -0,0 +1,340 @@
+package tools;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import client.DirectoryClient;
+import client.RoomInfo;
+import server.ConnectionRouter;
+import server.Server;
+
+/**
+ * Concurrent join/leave/broadcast stress run against room membership, over real sockets.
+ *
+ * Every group chat gets a few observers that stay for the whole run. Churner threads then keep
+ * joining a random room, sending a numbered burst, leaving and joining again, while other
+ * churners do the same in the same rooms. Each observer must receive every burst sent while it
+ * was a member exactly once and in order, whoever else was joining or leaving at the time, and
+ * once the churners are gone the directory must count only the observers as members. The run
+ * exits with status 1 on any missing, duplicate or out-of-order message.
+ *
+ *   java -cp "bin;lib/*" tools.RoomChurnStress               (embedded server, output muted)
+ *   java -cp "bin;lib/*" tools.RoomChurnStress localhost 1234 (a running server, either mode)
+ *
+ * Sizes come from -Dstress.rooms (4), -Dstress.observers per room (2), -Dstress.churners (32),
+ * -Dstress.sessions per churner (50) and -Dstress.messages per session (20).
+ */
+public class RoomChurnStress {
+    private static final int READ_TIMEOUT_MS = 30000;
+
+    private final String host;
+    private final int port;
+    private final int rooms = Integer.getInteger("stress.rooms", 4);
+    private final int observersPerRoom = Integer.getInteger("stress.observers", 2);
+    private final int churners = Integer.getInteger("stress.churners", 32);
+    private final int sessions = Integer.getInteger("stress.sessions", 50);
+    private final int messages = Integer.getInteger("stress.messages", 20);
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+    private final List<Observer> observers = new ArrayList<>();
+    // What each churner session and each room was sent, to check the observers against
+    private final Map<String, Integer> sentBySession = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicLong> sentPerRoom = new ConcurrentHashMap<>();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicInteger churnerErrors = new AtomicInteger();
+
+    public RoomChurnStress(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public static void main(String[] args) throws Exception {
+        PrintStream report = System.out;
+        String host = Server.DEFAULT_HOST;
+        int port;
+        if (args.length >= 2) {
+            host = args[0];
+            port = Integer.parseInt(args[1]);
+        } else {
+            // An idle observer must never lose a message to the drop-oldest policy mid-run
+            System.setProperty("tong.outbound.capacity", System.getProperty("tong.outbound.capacity", "65536"));
+            System.setProperty("tong.outbound.highWater", System.getProperty("tong.outbound.highWater", "65536"));
+            ServerSocket serverSocket = ServerSocketChannel.open().bind(new InetSocketAddress(0)).socket();
+            port = serverSocket.getLocalPort();
+            Server server = new Server(serverSocket, port);
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            Thread serverThread = new Thread(server::startServer, "stress-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+        }
+
+        boolean passed = new RoomChurnStress(host, port).run(report);
+        System.exit(passed ? 0 : 1);
+    }
+
+    public boolean run(PrintStream report) throws Exception {
+        for (int room = 0; room < rooms; room++) {
+            for (int i = 0; i < observersPerRoom; i++) {
+                Observer observer = new Observer(room, "observer-" + room + "-" + i);
+                observers.add(observer);
+                observer.start();
+            }
+        }
+        awaitObserversJoined();
+
+        long start = System.nanoTime();
+        CountDownLatch done = new CountDownLatch(churners);
+        for (int c = 0; c < churners; c++) {
+            int churner = c;
+            Thread thread = new Thread(() -> {
+                try {
+                    churn(churner);
+                } finally {
+                    done.countDown();
+                }
+            }, "stress-churner-" + c);
+            thread.start();
+        }
+        done.await();
+        long churnNanos = System.nanoTime() - start;
+
+        // Every burst has been read by the server once its churner saw end of stream; let the fan-out finish
+        long expected = 0;
+        for (int room = 0; room < rooms; room++) {
+            expected += sentTo(room) * observersPerRoom;
+        }
+        awaitDelivered(expected);
+
+        int failures = churnerErrors.get();
+        for (Observer observer : observers) {
+            failures += observer.verify(report);
+        }
+        for (int room = 0; room < rooms; room++) {
+            int members = awaitMemberCount(gcKey(room), observersPerRoom);
+            if (members != observersPerRoom) {
+                report.println("room " + gcKey(room) + ": " + members + " members left, expected " + observersPerRoom);
+                failures++;
+            }
+        }
+        for (Observer observer : observers) {
+            observer.close();
+        }
+
+        long joins = (long) churners * sessions;
+        double seconds = churnNanos / 1e9;
+        report.printf("%d rooms, %d observers, %d churners: %d joins, %d leaves, %d messages in %.2fs (%.0f joins/s, %.0f messages/s)%n",
+                rooms, observers.size(), churners, joins, joins, sent.get(), seconds, joins / seconds, sent.get() / seconds);
+        report.println(failures == 0 ? "PASS: every observer got every message exactly once, in order"
+                : "FAIL: " + failures + " problems");
+        return failures == 0;
+    }
+
+    private long sentTo(int room) {
+        AtomicLong count = sentPerRoom.get(room);
+        return count == null ? 0 : count.get();
+    }
+
+    private void churn(int churner) {
+        Random random = new Random(churner);
+        for (int session = 0; session < sessions; session++) {
+            int room = random.nextInt(rooms);
+            String username = "churner-" + churner + "-" + session;
+            try (Socket socket = new Socket(host, port)) {
+                socket.setSoTimeout(READ_TIMEOUT_MS);
+                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+                writer.write(ConnectionRouter.JOIN_GC + gcKey(room) + " stress");
+                writer.newLine();
+                writer.write(username);
+                writer.newLine();
+                for (int i = 0; i < messages; i++) {
+                    writer.write(username + ": " + i);
+                    writer.newLine();
+                }
+                writer.flush();
+                sentBySession.put(username, messages);
+                sentPerRoom.computeIfAbsent(room, _ -> new AtomicLong()).addAndGet(messages);
+                sent.addAndGet(messages);
+
+                // Leave cleanly: the server reads the whole burst, sees end of stream and closes its side
+                socket.shutdownOutput();
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                while (reader.readLine() != null) {
+                    // Other churners' messages; only the observers check them
+                }
+            } catch (IOException e) {
+                System.err.println(username + ": " + e);
+                churnerErrors.incrementAndGet();
+            }
+        }
+    }
+
+    private void awaitObserversJoined() throws Exception {
+        // A probe line reaches an observer only once its join has run on the room's shard
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        for (int room = 0; room < rooms; room++) {
+            try (Socket socket = new Socket(host, port)) {
+                BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+                writer.write(ConnectionRouter.JOIN_GC + gcKey(room) + " stress");
+                writer.newLine();
+                writer.write("probe-" + room);
+                writer.newLine();
+                writer.flush();
+                while (!allProbed(room)) {
+                    if (System.nanoTime() > deadline) {
+                        throw new IllegalStateException("observers did not join " + gcKey(room));
+                    }
+                    writer.write(Observer.PROBE);
+                    writer.newLine();
+                    writer.flush();
+                    Thread.sleep(20);
+                }
+            }
+        }
+    }
+
+    private boolean allProbed(int room) {
+        for (Observer observer : observers) {
+            if (observer.room == room && !observer.probed) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void awaitDelivered(long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (System.nanoTime() < deadline) {
+            long received = 0;
+            for (Observer observer : observers) {
+                received += observer.received.get();
+            }
+            if (received >= expected) {
+                return;
+            }
+            Thread.sleep(20);
+        }
+    }
+
+    // Leaves are applied on the room's shard after the socket closes, so the count settles shortly after
+    private int awaitMemberCount(String key, int expected) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        int members = -1;
+        while (System.nanoTime() < deadline) {
+            RoomInfo info = DirectoryClient.lookup(host, port, key);
+            members = info == null ? 0 : info.getMemberCount();
+            if (members == expected) {
+                return members;
+            }
+            Thread.sleep(50);
+        }
+        return members;
+    }
+
+    private String gcKey(int room) {
+        return "stress_" + runId + "_" + room;
+    }
+
+    // Stays in one room for the whole run and records the last number seen from every churner session
+    private class Observer extends Thread {
+        static final String PROBE = "probe";
+
+        private final int room;
+        private final String roomKey;
+        private final String username;
+        private final Socket socket;
+        private final Map<String, Integer> lastSeen = new ConcurrentHashMap<>();
+        private final List<String> problems = Collections.synchronizedList(new ArrayList<>());
+        private final AtomicLong received = new AtomicLong();
+        private volatile boolean probed;
+
+        Observer(int room, String username) throws IOException {
+            super("stress-" + username);
+            setDaemon(true);
+            this.room = room;
+            this.roomKey = gcKey(room);
+            this.username = username;
+            this.socket = new Socket(host, port);
+            BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream()));
+            writer.write(ConnectionRouter.JOIN_GC + roomKey + " stress");
+            writer.newLine();
+            writer.write(username);
+            writer.newLine();
+            writer.flush();
+        }
+
+        @Override
+        public void run() {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.equals(PROBE)) {
+                        probed = true;
+                        continue;
+                    }
+                    int separator = line.lastIndexOf(": ");
+                    if (!line.startsWith("churner-") || separator < 0) {
+                        // Join and leave notices
+                        continue;
+                    }
+                    String sender = line.substring(0, separator);
+                    int number = Integer.parseInt(line.substring(separator + 2));
+                    Integer previous = lastSeen.put(sender, number);
+                    int wanted = previous == null ? 0 : previous + 1;
+                    if (number != wanted) {
+                        problems.add(sender + " sent " + number + " after " + previous);
+                    }
+                    received.incrementAndGet();
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    problems.add("connection lost: " + e);
+                }
+            }
+        }
+
+        // Every session that sent to this room must have arrived whole
+        int verify(PrintStream report) {
+            int failures = problems.size();
+            for (String problem : problems) {
+                report.println(username + ": " + problem);
+            }
+            long expected = sentTo(room);
+            if (received.get() != expected) {
+                report.println(username + ": received " + received.get() + " of " + expected);
+                failures++;
+            }
+            for (Map.Entry<String, Integer> entry : lastSeen.entrySet()) {
+                Integer count = sentBySession.get(entry.getKey());
+                if (count == null || entry.getValue() != count - 1) {
+                    report.println(username + ": " + entry.getKey() + " stopped at " + entry.getValue());
+                    failures++;
+                }
+            }
+            return failures;
+        }
+
+        void close() throws IOException {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package utils;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed timing wheel: a ring of buckets advanced by one thread every tick. A timeout lands in the
+ * bucket its deadline hashes to, with a count of full turns still to wait, so scheduling and
+ * cancelling are O(1) and each tick only looks at one bucket, however many timeouts are pending.
+ * Tasks run on the wheel thread and should only flag or hand off work; the thread runs once
+ * start() is called.
+ */
+public class HashedTimingWheel {
+    private final String name;
+    private final long tickNanos;
+    private final int mask;
+    private final List<ArrayDeque<Timeout>> buckets;
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private Thread thread;
+    private final long startNanos = System.nanoTime();
+    private long tick = 0;
+
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long remainingRounds;
+        private volatile boolean cancelled;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // Cancelled timeouts are dropped the next time the wheel passes their bucket
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    // wheelSize is rounded up to a power of two
+    public HashedTimingWheel(String name, long tickMillis, int wheelSize) {
+        int size = Integer.highestOneBit(Math.max(2, wheelSize) * 2 - 1);
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        this.mask = size - 1;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayDeque<>());
+        }
+    }
+
+    // Timeouts scheduled before this simply wait for the first tick
+    public synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(task, System.nanoTime() + Math.max(0, unit.toNanos(delay)));
+        pendingCount.incrementAndGet();
+        newTimeouts.add(timeout);
+        return timeout;
+    }
+
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    private void run() {
+        while (true) {
+            long tickEnd = startNanos + (tick + 1) * tickNanos;
+            long sleepNanos = tickEnd - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+
+            transferNewTimeouts();
+            expire(buckets.get((int) (tick & mask)), tickEnd);
+            tick++;
+        }
+    }
+
+    private void transferNewTimeouts() {
+        Timeout timeout;
+        while ((timeout = newTimeouts.poll()) != null) {
+            if (timeout.cancelled) {
+                pendingCount.decrementAndGet();
+                continue;
+            }
+
+            // Anything already due goes in the current bucket
+            long ticks = Math.max(tick, (timeout.deadline - startNanos) / tickNanos);
+            timeout.remainingRounds = (ticks - tick) / buckets.size();
+            buckets.get((int) (ticks & mask)).add(timeout);
+        }
+    }
+
+    private void expire(ArrayDeque<Timeout> bucket, long tickEnd) {
+        Iterator<Timeout> iterator = bucket.iterator();
+        while (iterator.hasNext()) {
+            Timeout timeout = iterator.next();
+            if (timeout.cancelled) {
+                iterator.remove();
+                pendingCount.decrementAndGet();
+            } else if (timeout.remainingRounds > 0) {
+                timeout.remainingRounds--;
+            } else if (timeout.deadline <= tickEnd) {
+                iterator.remove();
+                pendingCount.decrementAndGet();
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    System.out.println("HashedTimingWheel.java : " + name);
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}